@@ -0,0 +1,161 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains a dynamic AppCDS archive for each {@code spam run} target. A class data archive can
+ * only be supplied when a JVM is launched, so pacman doesn't launch anything itself: each time a
+ * target is run, it records in {@code Caches/cds/TARGET.args} the JVM arguments with which the
+ * script that launches pacman should launch the target's next run. {@code TARGET} is the
+ * {@code pkg#module} and class name given to {@code spam run}, joined by a {@code -}, with any
+ * characters other than letters, digits, {@code .}, {@code _} and {@code -} replaced by {@code _}.
+ *
+ * <p>Archives are named for the JVM and the size and mtime of every jar on the target's classpath
+ * (pacman's and the module's), so when any of those change, the recorded arguments name a new
+ * archive. While that archive does not exist, they ask the JVM to dump it at exit
+ * ({@code -XX:ArchiveClassesAtExit}), which captures the classes loaded by the target's {@link
+ * ModuleLoader}s. Once it exists, they ask the JVM to map it ({@code -XX:SharedArchiveFile}), and
+ * older archives for the target are deleted. A launching script might look like:</p>
+ *
+ * <pre>{@code
+ * ARGS=`cat $HOME/.scaled/Caches/cds/$TARGET.args 2>/dev/null`
+ * java $ARGS -Dpacman.cds=true -jar pacman.jar run "$PKGMOD" "$CLASS" "$@"
+ * }</pre>
+ *
+ * <p>This is enabled with {@code -Dpacman.cds}. Dynamic archives require JDK 13 or newer; on older
+ * JDKs nothing is recorded. A JVM that finds an archive doesn't match its classpath ignores it, so
+ * stale arguments cost only the benefit of the archive.</p>
+ */
+public class AppCDS {
+
+  /** Returns true if {@code spam run} should maintain class data archives in this JVM. */
+  public static boolean enabled () {
+    if (!Props.cds) return false;
+    String spec = System.getProperty("java.specification.version", "1.8");
+    try { return !spec.startsWith("1.") && Integer.parseInt(spec.split("\\.")[0]) >= 13; }
+    catch (NumberFormatException nfe) { return false; }
+  }
+
+  /** Returns the name of the archive files for {@code classname} in {@code pkgMod}. */
+  public static String targetName (String pkgMod, String classname) {
+    return (pkgMod + "-" + classname).replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  public AppCDS (PackageRepo repo) {
+    _repo = repo;
+  }
+
+  /** Returns the directory in which archives and their arguments are kept. */
+  public Path dir () throws IOException {
+    return _repo.metaDir("Caches").resolve("cds");
+  }
+
+  /** Updates the archive arguments for a run of {@code classname} from {@code mod} (named {@code
+    * pkgMod} on the command line), which this JVM is about to perform.
+    * @return the path to the arguments file. */
+  public Path update (Module mod, String pkgMod, String classname) throws IOException {
+    String name = targetName(pkgMod, classname);
+    Path dir = dir(), argsFile = dir.resolve(name + ".args");
+    Files.createDirectories(dir);
+    Path archive = dir.resolve(name + "-" + hash(stamp(mod)) + ".jsa");
+
+    // if we're dumping the archive, it will exist once we exit
+    boolean exists = Files.exists(archive) ||
+      jvmArgs().contains("-XX:ArchiveClassesAtExit=" + archive);
+    String args = (exists ? "-XX:SharedArchiveFile=" : "-XX:ArchiveClassesAtExit=") + archive;
+    List<String> lines = Collections.singletonList(args);
+    if (!Files.exists(argsFile) ||
+        !Files.readAllLines(argsFile, StandardCharsets.UTF_8).equals(lines)) {
+      Pacman.debug("Recording class data archive arguments for " + pkgMod + " " + classname +
+                   ": " + args);
+      Path temp = dir.resolve(name + ".args." + System.nanoTime());
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, argsFile, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // once we're using the new archive, the old ones are of no further use
+    if (Files.exists(archive)) {
+      // beware other targets whose names have ours as a prefix
+      String pattern = Pattern.quote(name) + "-[0-9a-f]+\\.jsa";
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + "-*.jsa")) {
+        for (Path file : files) {
+          if (!file.equals(archive) && file.getFileName().toString().matches(pattern))
+            Files.deleteIfExists(file);
+        }
+      }
+    }
+    return argsFile;
+  }
+
+  // the arguments with which this JVM was launched
+  protected List<String> jvmArgs () {
+    return ManagementFactory.getRuntimeMXBean().getInputArguments();
+  }
+
+  // the classpath with which pacman was launched, which is part of the archive
+  protected List<String> pacmanClasspath () {
+    List<String> path = new ArrayList<>();
+    // if we were launched by Bootstrap, we're in a URLClassLoader with pacman and its depends
+    ClassLoader loader = Pacman.class.getClassLoader();
+    if (loader instanceof URLClassLoader && loader != ClassLoader.getSystemClassLoader()) {
+      for (URL url : ((URLClassLoader)loader).getURLs()) {
+        try { path.add(Paths.get(url.toURI()).toString()); }
+        catch (Exception e) { path.add(url.getPath()); }
+      }
+    }
+    path.addAll(Arrays.asList(System.getProperty("java.class.path").split(Props.pathSep)));
+    return path;
+  }
+
+  // the JVM and the size and mtime of everything on the target's classpath; if any of it changes,
+  // we need a new archive (the JVM would ignore any stale classes, but we'd lose its benefit)
+  protected List<String> stamp (Module mod) throws IOException {
+    Set<Path> paths = new LinkedHashSet<>();
+    for (String path : pacmanClasspath()) paths.add(Paths.get(path));
+    paths.addAll(mod.depends(_repo.resolver).classpath());
+    List<String> stamp = new ArrayList<>();
+    stamp.add(Props.javaHome + " " + System.getProperty("java.vm.version"));
+    for (Path path : paths) {
+      if (!Files.exists(path)) stamp.add(path + "\tmissing");
+      else {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        stamp.add(path + "\t" + attrs.size() + "\t" + attrs.lastModifiedTime().toMillis());
+      }
+    }
+    return stamp;
+  }
+
+  protected static String hash (List<String> values) {
+    MessageDigest md = Filez.sha1();
+    for (String value : values) {
+      md.update(value.getBytes(StandardCharsets.UTF_8));
+      md.update((byte)0);
+    }
+    return Filez.toHex(md.digest());
+  }
+
+  private final PackageRepo _repo;
+}
@@ -4,14 +4,24 @@
 
 package scaled.pacman;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -62,6 +72,9 @@ public class Bootstrap {
     // determine where Scaled is (or should be) installed
     Path scaledHome = findScaledHome();
     debug("Scaled home: " + scaledHome);
+    // if a resident pacman is running, have it run our command
+    if (pargs.jvmArgs.isEmpty() && pargs.sysPropArgs.isEmpty() && !pargs.appArgs.isEmpty())
+      runDaemon(scaledHome, pargs.appArgs);
     // download mfetcher jar depend if needed
     Path mfetcherJar = resolveMfetcher();
     // check out Pacman if needed
@@ -132,6 +145,56 @@ public class Bootstrap {
     }
   }
 
+  // see Daemon for the protocol; returns only if no daemon is running or it declines our command
+  static void runDaemon (Path scaledHome, List<String> appArgs) throws IOException {
+    Path portFile = scaledHome.resolve("Caches").resolve("daemon.port");
+    if (!Files.exists(portFile)) return;
+    String[] info = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).split(" ");
+    Socket sock = new Socket();
+    try {
+      sock.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                         Integer.parseInt(info[0])), 1000);
+    } catch (IOException | RuntimeException e) {
+      debug("No daemon listening: " + e);
+      sock.close();
+      return;
+    }
+
+    try (Socket s = sock) {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(s.getOutputStream()));
+      writeString(out, info[info.length-1]);
+      out.writeInt(appArgs.size());
+      for (String arg : appArgs) writeString(out, arg);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      while (true) {
+        int type = in.readUnsignedByte();
+        if (type == 0) { // exit
+          System.out.flush();
+          System.exit(in.readInt());
+        } else if (type == 3) { // declined
+          debug("Daemon declined command, running it ourselves.");
+          return;
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        PrintStream dest = (type == 2) ? System.err : System.out;
+        dest.write(data);
+        dest.flush();
+      }
+    } catch (EOFException eofe) {
+      fail("Lost connection to pacman daemon.");
+    }
+  }
+
+  static void writeString (DataOutputStream out, String value) throws IOException {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
   static Path findJavaHome () {
     Path javaHome = Paths.get(System.getProperty("java.home"));
     // java.home may be JDK_HOME/jre
@@ -0,0 +1,233 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A content-addressed cache of module build results. A module's build is keyed on the hash of
+ * everything that goes into it (sources, resources, compiler options, compiler versions and the
+ * contents of its classpath), and the resulting {@code module.jar} is stored under that key. When
+ * a module is built with inputs we've seen before, its jar is restored rather than recompiled.
+ *
+ * <p>The cache lives in {@code BuildCache} in the Scaled metadata directory and is kept under a
+ * configurable size by evicting the least recently used entries.</p>
+ */
+public class BuildCache {
+
+  /** Builds a cache key by hashing the inputs to a module build. */
+  public class Key {
+
+    /** Adds a value to the key. */
+    public Key add (String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      _md.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+      _md.update((byte)':');
+      _md.update(bytes);
+      return this;
+    }
+
+    /** Adds a list of values to the key. */
+    public Key add (List<String> values) {
+      add(Integer.toString(values.size()));
+      for (String value : values) add(value);
+      return this;
+    }
+
+    /** Adds the names and contents of all files in {@code dir} to the key. */
+    public Key addTree (Path dir) throws IOException {
+      Map<String,String> files = new TreeMap<>();
+      if (Files.exists(dir)) Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+        throws IOException {
+          // use / as the separator so that keys agree across platforms
+          String name = dir.relativize(file).toString().replace(file.getFileSystem().
+                                                                getSeparator(), "/");
+          if (attrs.isRegularFile()) files.put(name, Filez.hash(file));
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      return addFiles(files);
+    }
+
+    /** Adds a set of files, as a sorted map from path to content hash, to the key. */
+    public Key addFiles (Map<String,String> files) {
+      add(Integer.toString(files.size()));
+      for (Map.Entry<String,String> entry : files.entrySet()) {
+        add(entry.getKey());
+        add(entry.getValue());
+      }
+      return this;
+    }
+
+    /** Adds the contents of the classpath entry {@code path} to the key. Its location is not
+      * included, so that the same jar in different places yields the same key. */
+    public Key addClasspath (Path path) throws IOException {
+      if (Files.isDirectory(path)) return addTree(path);
+      return add(Files.exists(path) ? entryHash(path) : "missing");
+    }
+
+    /** Returns the hex-encoded key. */
+    public String finish () {
+      return Filez.toHex(_md.digest());
+    }
+
+    private final MessageDigest _md = Filez.sha1();
+  }
+
+  public BuildCache (PackageRepo repo) {
+    _repo = repo;
+  }
+
+  /** Returns a new, empty key. */
+  public Key key () {
+    return new Key().add("v" + VERSION);
+  }
+
+  /** Restores the build results for {@code key} into {@code mod}'s {@code module.jar} and classes
+    * directory, if we have them.
+    * @param classesOnly if true, only class files are extracted into the classes directory. This is
+    * the case when resources are written straight into the jar rather than via that directory.
+    * @return true if the results were restored, false if {@code key} was not in the cache. */
+  public boolean restore (String key, Module mod, boolean classesOnly) throws IOException {
+    Path entry = dir().resolve(key + ".jar");
+    if (!Files.exists(entry)) {
+      _misses.incrementAndGet();
+      return false;
+    }
+    // note that this entry was recently used
+    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+
+    Path classesDir = mod.classesDir();
+    _repo.reaper.trash(classesDir);
+    Files.createDirectories(classesDir);
+    try (InputStream fin = Files.newInputStream(entry);
+         ZipInputStream in = new ZipInputStream(fin)) {
+      for (ZipEntry ze; (ze = in.getNextEntry()) != null; ) {
+        // the manifest is generated when the jar is written; it's not one of the build results
+        if (ze.getName().equals(JarFile.MANIFEST_NAME)) continue;
+        // directories are created as needed for the files we extract
+        if (classesOnly && (ze.isDirectory() || !ze.getName().endsWith(".class"))) continue;
+        Path target = classesDir.resolve(ze.getName()).normalize();
+        if (!target.startsWith(classesDir)) throw new IOException(
+          "Invalid entry in cached build: " + ze.getName());
+        if (ze.isDirectory()) Files.createDirectories(target);
+        else {
+          Files.createDirectories(target.getParent());
+          Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+    }
+
+    Path moduleJar = mod.moduleJar();
+    Path newJar = moduleJar.resolveSibling("new-"+moduleJar.getFileName());
+    Files.copy(entry, newJar, StandardCopyOption.REPLACE_EXISTING);
+    if (Files.exists(moduleJar)) Files.move(moduleJar, moduleJar.resolveSibling(
+      "old-"+moduleJar.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(newJar, moduleJar);
+    _hits.incrementAndGet();
+    return true;
+  }
+
+  /** Stores {@code moduleJar} as the build result for {@code key}. */
+  public void store (String key, Path moduleJar) throws IOException {
+    Path dir = dir();
+    // copy to a temp file and then move into place so that readers never see a partial entry
+    Path temp = Files.createTempFile(dir, key, ".tmp");
+    try {
+      Files.copy(moduleJar, temp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temp, dir.resolve(key + ".jar"), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    evict(dir);
+  }
+
+  /** Resets the hit and miss counts to zero. */
+  public void resetCounts () {
+    _hits.set(0);
+    _misses.set(0);
+  }
+
+  /** Returns the number of cache hits since this cache was created (or last reset). */
+  public int hits () { return _hits.get(); }
+
+  /** Returns the number of cache misses since this cache was created (or last reset). */
+  public int misses () { return _misses.get(); }
+
+  /** Deletes the least recently used entries until the cache fits in its size limit. */
+  protected synchronized void evict (Path dir) throws IOException {
+    class Entry {
+      final Path path; final long size, lastUsed;
+      Entry (Path path, BasicFileAttributes attrs) {
+        this.path = path;
+        this.size = attrs.size();
+        this.lastUsed = attrs.lastModifiedTime().toMillis();
+      }
+    }
+    List<Entry> entries = new ArrayList<>();
+    long total = 0L;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.jar")) {
+      for (Path path : stream) {
+        Entry entry = new Entry(path, Files.readAttributes(path, BasicFileAttributes.class));
+        entries.add(entry);
+        total += entry.size;
+      }
+    }
+    if (total <= Props.buildCacheSize) return;
+
+    entries.sort((e1, e2) -> Long.compare(e1.lastUsed, e2.lastUsed));
+    for (Entry entry : entries) {
+      if (total <= Props.buildCacheSize) break;
+      Pacman.debug("Evicting build cache entry: " + entry.path.getFileName());
+      // another process may have gotten there first
+      Files.deleteIfExists(entry.path);
+      total -= entry.size;
+    }
+  }
+
+  protected String entryHash (Path path) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    String stamp = attrs.lastModifiedTime().toMillis() + ":" + attrs.size();
+    String[] cached = _entryHashes.get(path);
+    if (cached != null && cached[0].equals(stamp)) return cached[1];
+    String hash = Filez.hash(path);
+    _entryHashes.put(path, new String[] { stamp, hash });
+    return hash;
+  }
+
+  protected Path dir () throws IOException {
+    return _repo.metaDir("BuildCache");
+  }
+
+  private final PackageRepo _repo;
+  private final AtomicInteger _hits = new AtomicInteger(), _misses = new AtomicInteger();
+  // classpath jars are shared by many modules, so we remember their hashes (keyed on path and
+  // validated by mtime and size) rather than rehashing them for every module
+  private final Map<Path,String[]> _entryHashes = new ConcurrentHashMap<>();
+
+  private static final int VERSION = 1;
+}
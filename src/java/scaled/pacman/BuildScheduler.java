@@ -0,0 +1,371 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds (or cleans) a collection of packages by scheduling their modules as a DAG. A module is
+ * started as soon as all of the modules on which it depends have completed, regardless of which
+ * package they're in. Modules are dispatched on a work-stealing pool and, when more modules are
+ * ready than there are threads, those heading the longest remaining chain of dependents (as
+ * estimated from the durations of previous builds) go first.
+ *
+ * <p>When a module fails, no further modules are started and in-flight builds are interrupted.
+ * Interrupted builds destroy any compiler processes they have forked, drop their connections to
+ * resident compiler workers, and abandon in-process compiles at javac's next file access.</p>
+ */
+public class BuildScheduler {
+
+  /** An operation to apply to each module. */
+  public interface Action {
+    void apply (PackageBuilder builder, Module mod) throws Exception;
+  }
+
+  public BuildScheduler (PackageRepo repo) {
+    _repo = repo;
+    _durations = loadDurations();
+  }
+
+  /** Cleans and builds all modules in {@code pkgs}. */
+  public void build (Collection<Package> pkgs) throws IOException {
+    List<Node> nodes = plan(pkgs);
+    // resolve depends up front; that's not thread-safe, and we'd redundantly resolve shared depends
+    resolveDepends(nodes);
+    run("build", nodes, PackageBuilder::build);
+    saveDurations();
+  }
+
+  /** Rebuilds the modules in {@code changed} (a map from module to the paths in its source tree that
+    * have changed, or null if unknown) if their sources have in fact changed, along with any
+    * modules in {@code pkgs} that depend (directly or transitively) on a module whose ABI changed
+    * as a result.
+    * @return the modules that were rebuilt. */
+  public Set<Module> rebuild (Collection<Package> pkgs, Map<Module,Collection<Path>> changed)
+    throws IOException {
+    List<Node> nodes = plan(pkgs);
+    // prune the DAG down to the changed modules and their downstream dependents
+    Set<Node> affected = new HashSet<>();
+    Map<Module,Set<Module>> upstream = new HashMap<>();
+    for (Node node : nodes) { // nodes are in topological order, so one pass suffices
+      if (changed.containsKey(node.mod) || affected.contains(node)) {
+        affected.add(node);
+        affected.addAll(node.dependents);
+      }
+      // a module compiles against everything upstream of it (classpaths are transitive), so we
+      // pass our upstream modules on to our dependents along with ourselves
+      Set<Module> ups = upstream.getOrDefault(node.mod, Collections.emptySet());
+      for (Node dep : node.dependents) {
+        Set<Module> dups = upstream.computeIfAbsent(dep.mod, m -> new HashSet<>());
+        dups.add(node.mod);
+        dups.addAll(ups);
+      }
+    }
+    List<Node> pruned = new ArrayList<>();
+    for (Node node : nodes) if (affected.contains(node)) {
+      node.dependents.retainAll(affected);
+      node.pending.set(0);
+      pruned.add(node);
+    }
+    for (Node node : pruned) for (Node dep : node.dependents) dep.pending.incrementAndGet();
+
+    resolveDepends(pruned);
+    Set<Module> rebuilt = ConcurrentHashMap.newKeySet();
+    Set<Module> abiChanged = ConcurrentHashMap.newKeySet();
+    run("rebuild", pruned, (builder, mod) -> {
+      Fingerprint before = Fingerprint.load(mod);
+      // if the ABI of something we depend on (directly or transitively) changed, we must build in
+      // full (which will be a cache hit if we've seen this combination of inputs before)
+      Set<Module> ups = upstream.getOrDefault(mod, Collections.emptySet());
+      if (!Collections.disjoint(ups, abiChanged)) builder.build(mod);
+      else if (!changed.containsKey(mod) || !builder.rebuild(mod, changed.get(mod))) return;
+      rebuilt.add(mod);
+      if (!Fingerprint.sameAbi(before, Fingerprint.load(mod))) abiChanged.add(mod);
+    });
+    return rebuilt;
+  }
+
+  protected void resolveDepends (List<Node> nodes) {
+    // first resolve every module's Maven depends in one deduplicated pass
+    List<Module> mods = new ArrayList<>();
+    for (Node node : nodes) mods.add(node.mod);
+    _repo.resolveCache.plan(mods, _repo.resolver);
+    for (Node node : nodes) node.mod.depends(_repo.resolver);
+  }
+
+  /** Cleans all modules in {@code pkgs}. */
+  public void clean (Collection<Package> pkgs) throws IOException {
+    run("clean", plan(pkgs), PackageBuilder::clean);
+  }
+
+  /** Returns the number of threads used to run {@code count} modules. Absent an explicit setting,
+    * we use a thread per core, limited such that each gets a reasonable share of our heap (in
+    * which javac runs). */
+  public static int threads (int count) {
+    int threads = Props.buildThreads;
+    if (threads <= 0) {
+      long byMemory = Runtime.getRuntime().maxMemory() / HEAP_PER_BUILD;
+      threads = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), byMemory));
+    }
+    return Math.max(1, Math.min(threads, count));
+  }
+
+  /** Applies {@code action} to all {@code nodes}, in dependency order. */
+  protected void run (String verb, List<Node> nodes, Action action) throws IOException {
+    if (nodes.isEmpty()) return;
+    int threads = threads(nodes.size());
+    Pacman.debug("Scheduling " + nodes.size() + " modules on " + threads + " threads.");
+
+    // compute the length of the longest path from each node to the end of the build; we prioritize
+    // nodes with the longest remaining path (the "critical path") when choosing what to run next
+    long defCost = defaultDuration();
+    for (int ii = nodes.size()-1; ii >= 0; ii--) {
+      Node node = nodes.get(ii);
+      long maxDep = 0L;
+      for (Node dep : node.dependents) maxDep = Math.max(maxDep, dep.priority);
+      Long cost = _durations.get(node.key());
+      node.priority = (cost == null ? defCost : cost) + maxDep;
+    }
+
+    _tagged = (threads > 1);
+    _remain = nodes.size();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<Node> roots = new ArrayList<>();
+      for (Node node : nodes) if (node.pending.get() == 0) roots.add(node);
+      // the pool runs external submissions roughly in order, so submit the most critical first
+      roots.sort((n1, n2) -> Long.compare(n2.priority, n1.priority));
+      for (Node node : roots) pool.execute(new Task(verb, node, action));
+
+      synchronized (this) {
+        // wait until everything is done, or until a failure has been noted and all in-flight work
+        // has wound down (builds that were never started are never going to be)
+        while (_remain > 0 && (_failures.isEmpty() || !_running.isEmpty())) {
+          try { wait(); }
+          catch (InterruptedException ie) {
+            interruptRunning();
+            throw new IOException("Interrupted waiting for " + verb);
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    if (!_failures.isEmpty()) {
+      Map.Entry<Module,Throwable> first = _failures.entrySet().iterator().next();
+      throw new IOException(_failures.size() + " module(s) failed to " + verb + ", first: " +
+                            first.getKey(), first.getValue());
+    }
+  }
+
+  /** Builds the DAG of the modules in {@code pkgs}, returning them in topological order. Depends on
+    * modules that are not in {@code pkgs} are assumed to be satisfied. */
+  protected List<Node> plan (Collection<Package> pkgs) {
+    Map<Source,Node> nodes = new LinkedHashMap<>();
+    for (Package pkg : pkgs) {
+      PackageBuilder builder = new PackageBuilder(_repo, pkg);
+      for (Module mod : pkg.modules()) nodes.put(mod.source, new Node(mod, builder));
+    }
+    for (Node node : nodes.values()) {
+      Set<Node> deps = new HashSet<>();
+      for (Depend dep : node.mod.depends) if (dep.isSource()) {
+        Node dnode = nodes.get(resolveModule(node.mod, (Source)dep.id));
+        if (dnode != null && dnode != node && deps.add(dnode)) {
+          dnode.dependents.add(node);
+          node.pending.incrementAndGet();
+        }
+      }
+    }
+
+    // sort the nodes topologically (Kahn-style), which also catches cycles
+    List<Node> sorted = new ArrayList<>();
+    Map<Node,Integer> indegree = new HashMap<>();
+    Deque<Node> ready = new ArrayDeque<>();
+    for (Node node : nodes.values()) {
+      indegree.put(node, node.pending.get());
+      if (node.pending.get() == 0) ready.add(node);
+    }
+    while (!ready.isEmpty()) {
+      Node node = ready.remove();
+      sorted.add(node);
+      for (Node dep : node.dependents) {
+        int remain = indegree.get(dep) - 1;
+        indegree.put(dep, remain);
+        if (remain == 0) ready.add(dep);
+      }
+    }
+    if (sorted.size() < nodes.size()) {
+      List<Module> cyclic = new ArrayList<>();
+      for (Node node : nodes.values()) if (indegree.get(node) > 0) cyclic.add(node.mod);
+      throw new IllegalStateException("Cyclic module dependencies: " + cyclic);
+    }
+    return sorted;
+  }
+
+  protected Source resolveModule (Module mod, Source dep) {
+    // resolve siblings via our package, as it may not yet be registered with the repo
+    if (mod.isSibling(dep)) {
+      Module sib = mod.pkg.module(dep.module());
+      return (sib == null) ? null : sib.source;
+    }
+    Optional<Module> dmod = _repo.resolver.moduleBySource(dep);
+    return dmod.isPresent() ? dmod.get().source : null;
+  }
+
+  protected synchronized boolean start (Node node) {
+    if (!_failures.isEmpty()) return false;
+    _running.put(Thread.currentThread(), node);
+    return true;
+  }
+
+  protected synchronized void finished (Node node) {
+    _running.remove(Thread.currentThread());
+    _remain -= 1;
+    notifyAll();
+  }
+
+  protected synchronized void fail (Node node, Throwable cause) {
+    _failures.put(node.mod, cause);
+    // interrupt all other in-flight work, so that we stop as quickly as possible
+    interruptRunning();
+    notifyAll();
+  }
+
+  protected synchronized void interruptRunning () {
+    for (Thread thread : _running.keySet()) {
+      if (thread != Thread.currentThread()) thread.interrupt();
+    }
+  }
+
+  protected long defaultDuration () {
+    if (_durations.isEmpty()) return 1000L;
+    long total = 0L;
+    for (long duration : _durations.values()) total += duration;
+    return total / _durations.size();
+  }
+
+  protected Map<String,Long> loadDurations () {
+    Map<String,Long> durations = new ConcurrentHashMap<>();
+    try {
+      Path file = durationsFile();
+      if (Files.exists(file)) for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        String[] bits = line.split("\t");
+        if (bits.length == 2) durations.put(bits[0], Long.parseLong(bits[1]));
+      }
+    } catch (IOException | NumberFormatException e) {
+      Log.log("Failed to read build durations", "error", e);
+    }
+    return durations;
+  }
+
+  protected void saveDurations () {
+    try {
+      List<String> lines = new ArrayList<>();
+      for (Map.Entry<String,Long> entry : _durations.entrySet()) {
+        lines.add(entry.getKey() + "\t" + entry.getValue());
+      }
+      Path file = durationsFile(), temp = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ioe) {
+      Log.log("Failed to save build durations", "error", ioe);
+    }
+  }
+
+  protected Path durationsFile () throws IOException {
+    return _repo.metaDir("Caches").resolve("build-times");
+  }
+
+  protected static class Node {
+    public final Module mod;
+    public final PackageBuilder builder;
+    public final List<Node> dependents = new ArrayList<>();
+    public final AtomicInteger pending = new AtomicInteger();
+    public long priority;
+
+    public Node (Module mod, PackageBuilder builder) {
+      this.mod = mod;
+      this.builder = builder;
+    }
+
+    public String key () {
+      return mod.source.toString();
+    }
+
+    @Override public String toString () {
+      return builder.what(mod);
+    }
+  }
+
+  protected class Task extends RecursiveAction {
+    public Task (String verb, Node node, Action action) {
+      _verb = verb;
+      _node = node;
+      _action = action;
+    }
+
+    @Override protected void compute () {
+      if (!start(_node)) return; // another module failed, so we're abandoning ship
+      if (_tagged) Log.setTag(_node.toString());
+      long start = System.currentTimeMillis();
+      Trace.Span span = Trace.begin("module", _verb + " " + _node);
+      try {
+        _action.apply(_node.builder, _node.mod);
+        _durations.put(_node.key(), System.currentTimeMillis() - start);
+      } catch (Throwable t) {
+        Log.log("Failure invoking '" + _verb + "' in: " + _node.mod.root, "error", t);
+        fail(_node, t);
+        return;
+      } finally {
+        span.end();
+        Log.setTag(null);
+        // if we were interrupted due to another failure, don't carry that over to the next task
+        Thread.interrupted();
+        finished(_node);
+      }
+
+      // fork our newly ready dependents; we fork the most critical last, because our worker's deque
+      // is LIFO, so that it will be the one we run next (idle workers steal the others)
+      List<Node> ready = new ArrayList<>();
+      for (Node dep : _node.dependents) if (dep.pending.decrementAndGet() == 0) ready.add(dep);
+      ready.sort((n1, n2) -> Long.compare(n1.priority, n2.priority));
+      for (Node dep : ready) new Task(_verb, dep, _action).fork();
+    }
+
+    private final String _verb;
+    private final Node _node;
+    private final Action _action;
+  }
+
+  private final PackageRepo _repo;
+  private final Map<String,Long> _durations;
+  private final Map<Thread,Node> _running = new HashMap<>();
+  private final Map<Module,Throwable> _failures = new LinkedHashMap<>();
+  private volatile boolean _tagged;
+  private int _remain;
+
+  private static final long HEAP_PER_BUILD = 256*1024*1024L;
+}
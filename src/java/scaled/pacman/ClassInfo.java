@@ -0,0 +1,127 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extracts the bits of a class file that we need to track dependencies between classes. All class
+ * names are in internal form (i.e. {@code foo/bar/Baz$Inner}).
+ */
+public class ClassInfo {
+
+  /** The name of this class. */
+  public final String name;
+
+  /** The name of this class's superclass, or null if it has none. */
+  public final String superName;
+
+  /** The names of the interfaces directly implemented by this class. */
+  public final List<String> interfaces = new ArrayList<>();
+
+  /** The names of all classes referenced by this class, including supertypes. This is conservative:
+    * it includes any class name that appears in a descriptor or signature in the constant pool. */
+  public final Set<String> refs = new HashSet<>();
+
+  /** Whether this class declares any non-private compile-time constants. Javac inlines these into
+    * referencing classes without leaving a trace in the referrer's constant pool. */
+  public final boolean hasConstants;
+
+  /** Reads the class file at {@code path}. */
+  public static ClassInfo read (Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return new ClassInfo(new DataInputStream(new BufferedInputStream(in)));
+    }
+  }
+
+  public ClassInfo (DataInputStream in) throws IOException {
+    if (in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+    in.readUnsignedShort(); in.readUnsignedShort(); // minor and major version
+
+    // read the constant pool; we care only about utf8s and class references
+    int count = in.readUnsignedShort();
+    String[] utf8s = new String[count];
+    int[] classes = new int[count];
+    for (int ii = 1; ii < count; ii++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+      case 1: utf8s[ii] = in.readUTF(); break; // Utf8
+      case 7: classes[ii] = in.readUnsignedShort(); break; // Class
+      case 8: case 16: case 19: case 20: in.skipBytes(2); break; // String, MethodType, Module, Package
+      case 15: in.skipBytes(3); break; // MethodHandle
+      case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+      case 5: case 6: in.skipBytes(8); ii++; break; // Long and Double take two slots
+      default: throw new IOException("Unknown constant pool tag " + tag + " at " + ii);
+      }
+    }
+
+    in.readUnsignedShort(); // access flags
+    name = utf8s[classes[in.readUnsignedShort()]];
+    int superIdx = in.readUnsignedShort();
+    superName = (superIdx == 0) ? null : utf8s[classes[superIdx]];
+    int icount = in.readUnsignedShort();
+    for (int ii = 0; ii < icount; ii++) interfaces.add(utf8s[classes[in.readUnsignedShort()]]);
+
+    // note whether any field bears a ConstantValue attribute
+    boolean constants = false;
+    int fcount = in.readUnsignedShort();
+    for (int ii = 0; ii < fcount; ii++) {
+      int access = in.readUnsignedShort();
+      in.skipBytes(4); // name and descriptor
+      int acount = in.readUnsignedShort();
+      for (int aa = 0; aa < acount; aa++) {
+        String aname = utf8s[in.readUnsignedShort()];
+        in.skipBytes(in.readInt());
+        if ((access & ACC_PRIVATE) == 0 && "ConstantValue".equals(aname)) constants = true;
+      }
+    }
+    hasConstants = constants;
+
+    // now gather up all of our references
+    for (int ii = 1; ii < count; ii++) {
+      if (classes[ii] != 0) {
+        String cname = utf8s[classes[ii]];
+        if (cname.startsWith("[")) addDescriptorRefs(cname);
+        else refs.add(cname);
+      }
+      else if (utf8s[ii] != null) addDescriptorRefs(utf8s[ii]);
+    }
+    refs.remove(name);
+  }
+
+  @Override public String toString () {
+    return name + " extends " + superName + " implements " + interfaces;
+  }
+
+  // extracts Lfoo/bar/Baz; style references from a descriptor or signature; we apply this to all
+  // utf8 constants, so we must be careful to reject things that don't look like class names
+  private void addDescriptorRefs (String desc) {
+    int len = desc.length();
+    for (int ii = 0; ii < len; ii++) {
+      if (desc.charAt(ii) != 'L') continue;
+      int end = ii+1;
+      while (end < len && isNameChar(desc.charAt(end))) end++;
+      if (end < len && end > ii+1 && (desc.charAt(end) == ';' || desc.charAt(end) == '<')) {
+        refs.add(desc.substring(ii+1, end));
+        ii = end;
+      }
+    }
+  }
+
+  private static boolean isNameChar (char c) {
+    return c == '/' || c == '$' || Character.isJavaIdentifierPart(c);
+  }
+
+  private static final int ACC_PRIVATE = 0x0002;
+}
@@ -0,0 +1,198 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A long-lived compiler process. Pacman launches one of these per compiler version (see {@link
+ * Compilers}) and sends it compile requests over a loopback socket, which saves a JVM launch and a
+ * cold compiler for each module. The worker exits when it has been idle for a while.
+ *
+ * <p>Usage: {@code CompilerWorker idleSecs portFile compilerJar [compilerJar ...]}. Once the worker
+ * is listening, it writes {@code port token} to {@code portFile}. Clients must send the token
+ * before their request.</p>
+ */
+public class CompilerWorker {
+
+  /** Frame type for a chunk of compiler output. */
+  public static final int OUTPUT = 1;
+  /** Frame type for the compiler's exit code. This is the final frame of a response. */
+  public static final int EXIT = 0;
+
+  public static void main (String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: CompilerWorker idleSecs portFile compilerJar [compilerJar ...]");
+      System.exit(255);
+    }
+    int idleSecs = Integer.parseInt(args[0]);
+    Path portFile = Paths.get(args[1]);
+    List<String> jars = Arrays.asList(args).subList(2, args.length);
+    new CompilerWorker(jars).serve(idleSecs, portFile);
+  }
+
+  public CompilerWorker (List<String> jars) throws IOException {
+    URL[] urls = new URL[jars.size()];
+    for (int ii = 0; ii < urls.length; ii++) urls[ii] = Paths.get(jars.get(ii)).toUri().toURL();
+    // keep our own classes out of the compiler's classloader
+    _loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+  }
+
+  /** Services requests until we've been idle for {@code idleSecs}. */
+  public void serve (int idleSecs, Path portFile) throws IOException {
+    String token = Long.toHexString(new SecureRandom().nextLong());
+    try (ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout(idleSecs*1000);
+      String portInfo = server.getLocalPort() + " " + token;
+      Path temp = Files.createTempFile(portFile.getParent(), "worker", ".tmp");
+      Filez.restrictToOwner(temp);
+      Files.write(temp, portInfo.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, portFile, StandardCopyOption.REPLACE_EXISTING);
+
+      // route all console output through our relay, which forwards to the current client; some
+      // compilers (scalac) capture System.out/err when they're first initialized, so we install
+      // the relay once, up front, and never change it
+      System.setOut(new PrintStream(_relay, true));
+      System.setErr(new PrintStream(_relay, true));
+
+      while (true) {
+        try (Socket sock = server.accept()) {
+          handle(sock, token);
+        } catch (SocketTimeoutException ste) {
+          break; // we've been idle long enough
+        } catch (Exception e) {
+          _stderr.println("CompilerWorker request failed: " + e);
+        }
+      }
+    } finally {
+      // only delete the port file if it's still ours (a replacement worker may have clobbered it)
+      try {
+        String info = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8);
+        if (info.endsWith(" " + token)) Files.delete(portFile);
+      } catch (IOException ioe) {} // no problem
+    }
+  }
+
+  protected void handle (Socket sock, String token) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+    if (!token.equals(readString(in))) return; // not one of ours
+    String mainClass = readString(in);
+    String[] args = new String[in.readInt()];
+    for (int ii = 0; ii < args.length; ii++) args[ii] = readString(in);
+
+    int code;
+    _relay.target = out;
+    Thread.currentThread().setContextClassLoader(_loader);
+    try {
+      code = compile(mainClass, args);
+    } catch (Throwable t) {
+      Throwable cause = (t instanceof InvocationTargetException) ? t.getCause() : t;
+      cause.printStackTrace(System.err);
+      code = 255;
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      _relay.target = null;
+    }
+    out.writeByte(EXIT);
+    out.writeInt(code);
+    out.flush();
+  }
+
+  protected int compile (String mainClass, String[] args) throws Exception {
+    Class<?> clazz = _loader.loadClass(mainClass);
+    switch (mainClass) {
+    case "scala.tools.nsc.Main": {
+      // the compiler's main() calls System.exit, so we call process() on the Main object instead
+      Object main = _loader.loadClass(mainClass + "$").getField("MODULE$").get(null);
+      Object ok = main.getClass().getMethod("process", String[].class).invoke(main, (Object)args);
+      if (ok instanceof Boolean) return (Boolean)ok ? 0 : 1;
+      // before 2.12, process() returned Unit, so we have to ask its reporter how things went
+      Object reporter = main.getClass().getMethod("reporter").invoke(main);
+      Object errors = reporter.getClass().getMethod("hasErrors").invoke(reporter);
+      return Boolean.TRUE.equals(errors) ? 1 : 0;
+    }
+    case "org.jetbrains.kotlin.cli.jvm.K2JVMCompiler": {
+      Object compiler = clazz.getConstructor().newInstance();
+      Method exec = clazz.getMethod("exec", PrintStream.class, String[].class);
+      Object exitCode = exec.invoke(compiler, System.err, args);
+      return String.valueOf(exitCode).equals("OK") ? 0 : 1;
+    }
+    default:
+      throw new IllegalArgumentException("Unsupported compiler: " + mainClass);
+    }
+  }
+
+  public static String readString (DataInputStream in) throws IOException {
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  public static void writeString (DataOutputStream out, String value) throws IOException {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  /** Forwards output to the client of the request currently being processed. */
+  protected static class Relay extends OutputStream {
+    public volatile DataOutputStream target;
+
+    /** Creates a relay that sends output in frames of type {@code type}. */
+    public Relay (int type) {
+      _type = type;
+    }
+
+    @Override public void write (int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override public void write (byte[] b, int off, int len) throws IOException {
+      DataOutputStream out = target;
+      if (out == null) return; // output between requests goes nowhere
+      // relays for different streams may share a target, so we lock that rather than ourselves
+      synchronized (out) {
+        out.writeByte(_type);
+        out.writeInt(len);
+        out.write(b, off, len);
+      }
+    }
+
+    @Override public void flush () throws IOException {
+      DataOutputStream out = target;
+      if (out != null) synchronized (out) { out.flush(); }
+    }
+
+    private final int _type;
+  }
+
+  private final URLClassLoader _loader;
+  private final Relay _relay = new Relay(OUTPUT);
+  private final PrintStream _stderr = System.err;
+}
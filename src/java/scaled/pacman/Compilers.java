@@ -0,0 +1,282 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the compilers we run for non-Java languages. Compiler classpaths are resolved once per
+ * session, and compiles are sent to resident {@link CompilerWorker} processes, keyed by compiler
+ * version, which keep a warm JIT and classloader between modules (and between invocations of
+ * pacman). There may be multiple workers per compiler, one for each concurrent build slot.
+ */
+public class Compilers {
+
+  public Compilers (PackageRepo repo) {
+    _repo = repo;
+  }
+
+  /** The javac options whose argument is a path or path list. */
+  public static final Set<String> JAVAC_PATH_OPTS = new HashSet<>(Arrays.asList(
+    "-d", "-s", "-h", "-cp", "-classpath", "--class-path", "-sourcepath", "--source-path",
+    "-bootclasspath", "--boot-class-path", "-extdirs", "-endorseddirs", "-processorpath",
+    "--processor-path", "-p", "--module-path", "--module-source-path", "--upgrade-module-path",
+    "--system"));
+
+  /** The scalac options whose argument is a path or path list. Those ending in {@code :} take
+    * their (comma separated) paths in the same argument. */
+  public static final Set<String> SCALAC_PATH_OPTS = new HashSet<>(Arrays.asList(
+    "-d", "-cp", "-classpath", "--class-path", "-sourcepath", "-bootclasspath", "-extdirs",
+    "-javabootclasspath", "-javaextdirs", "-Xplugin", "-Xpluginsdir", "-Xplugin:",
+    "-Xpluginsdir:"));
+
+  /** Returns {@code opts} with the arguments of {@code pathOpts} and any {@code @argfiles}
+    * resolved against {@code root}. Used to pass user supplied compiler options to compilers that
+    * don't run in the module's directory. Paths inside argfiles are not rewritten. */
+  public static List<String> absolutize (Path root, List<String> opts, Set<String> pathOpts) {
+    List<String> abs = new ArrayList<>(opts.size());
+    for (int ii = 0; ii < opts.size(); ii++) {
+      String opt = opts.get(ii);
+      String joined = null;
+      for (String popt : pathOpts) if (popt.endsWith(":") && opt.startsWith(popt)) joined = popt;
+      if (opt.startsWith("@")) abs.add("@" + root.resolve(opt.substring(1)));
+      else if (joined != null) abs.add(
+        joined + absolutize(root, opt.substring(joined.length()), ","));
+      else if (pathOpts.contains(opt) && ii+1 < opts.size()) {
+        abs.add(opt);
+        abs.add(absolutize(root, opts.get(++ii), File.pathSeparator));
+      }
+      else abs.add(opt);
+    }
+    return abs;
+  }
+
+  private static String absolutize (Path root, String paths, String sep) {
+    StringBuilder sb = new StringBuilder();
+    for (String path : paths.split(Pattern.quote(sep), -1)) {
+      if (sb.length() > 0) sb.append(sep);
+      sb.append(path.isEmpty() ? path : root.resolve(path).toString());
+    }
+    return sb.toString();
+  }
+
+  /** Returns whether compiles will be sent to resident workers. When this is true, compiler
+    * arguments must not contain relative paths, as workers don't share our working directory.
+    * User supplied options can be made safe via {@link #absolutize}. */
+  public boolean resident () {
+    return Props.compilerDaemon;
+  }
+
+  /** Returns the classpath for the compiler identified by the Maven id {@code compilerId}. */
+  public List<Path> classpath (String compilerId) {
+    List<Path> cp = _classpaths.get(compilerId);
+    if (cp == null) {
+      cp = new ArrayList<>(_repo.mvn.resolve(RepoId.parse(compilerId)).values());
+      // don't cache failed resolutions
+      if (!cp.isEmpty() && !cp.contains(null)) _classpaths.put(compilerId, cp);
+    }
+    return cp;
+  }
+
+  /**
+   * Runs {@code mainClass} from compiler {@code compilerId} with {@code args} in a resident worker.
+   * Output from the compiler is sent to {@link Log}.
+   * @return the compiler's exit code, or -1 if no worker was available, in which case the caller
+   * should fork the compiler itself.
+   * @throws InterruptedIOException if the calling thread was interrupted during the compile.
+   */
+  public int compile (String compilerId, String mainClass, List<String> args)
+    throws InterruptedIOException {
+    if (!resident()) return -1;
+    try {
+      Path dir = _repo.metaDir("Compilers");
+      String key = key(compilerId);
+      for (int slot = 0; slot < SLOTS; slot++) {
+        String slotKey = key + "-" + slot;
+        // file locks are held per-JVM, so we also have to keep our own threads out of each other's
+        // slots; then the file lock keeps other pacman processes out
+        if (!claim(slotKey)) continue;
+        try (FileChannel chan = FileChannel.open(dir.resolve(slotKey + ".lock"),
+                                                 StandardOpenOption.CREATE,
+                                                 StandardOpenOption.WRITE);
+             FileLock lock = chan.tryLock()) {
+          if (lock != null) return compile(dir, slotKey, compilerId, mainClass, args);
+        } finally {
+          release(slotKey);
+        }
+      }
+      Pacman.debug("All compiler workers busy, forking " + mainClass);
+    } catch (InterruptedIOException | ClosedByInterruptException e) {
+      // we were interrupted because a concurrent build failed, so don't fall back to forking
+      throw new InterruptedIOException("Interrupted compiling with " + compilerId);
+    } catch (IOException ioe) {
+      Log.log("Compiler worker failed, forking compiler", "compiler", compilerId, "error", ioe);
+    }
+    return -1;
+  }
+
+  protected int compile (Path dir, String slotKey, String compilerId, String mainClass,
+                         List<String> args) throws IOException {
+    Path portFile = dir.resolve(slotKey + ".port");
+    Connection conn = Connection.open(portFile);
+    if (conn == null) {
+      launch(dir.resolve(slotKey + ".log"), portFile, compilerId);
+      long giveUp = System.currentTimeMillis() + STARTUP_WAIT;
+      while (conn == null && System.currentTimeMillis() < giveUp) {
+        try { Thread.sleep(50); }
+        catch (InterruptedException ie) {
+          throw new InterruptedIOException("Interrupted awaiting worker");
+        }
+        conn = Connection.open(portFile);
+      }
+      if (conn == null) throw new IOException("Worker failed to start, see " + slotKey + ".log");
+    }
+
+    // we talk to the worker via channel streams, which are interruptible: if we're interrupted
+    // while waiting on the compile, the connection is closed and the worker abandons its output
+    try (SocketChannel chan = conn.chan) {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(chan)));
+      CompilerWorker.writeString(out, conn.token);
+      CompilerWorker.writeString(out, mainClass);
+      out.writeInt(args.size());
+      for (String arg : args) CompilerWorker.writeString(out, arg);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(chan)));
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      while (true) {
+        int type = in.readUnsignedByte();
+        if (type == CompilerWorker.EXIT) {
+          if (line.size() > 0) Log.log(line.toString("UTF-8"));
+          return in.readInt();
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        for (byte b : data) {
+          if (b == '\n') {
+            Log.log(line.toString("UTF-8"));
+            line.reset();
+          } else if (b != '\r') line.write(b);
+        }
+      }
+    }
+  }
+
+  protected void launch (Path logFile, Path portFile, String compilerId) throws IOException {
+    List<String> cmd = new ArrayList<>();
+    cmd.add(Paths.get(Props.javaHome).resolve("bin").resolve("java").toString());
+    cmd.add("-cp");
+    cmd.add(workerClasspath().toString());
+    cmd.add(CompilerWorker.class.getName());
+    cmd.add(String.valueOf(Props.compilerIdle));
+    cmd.add(portFile.toString());
+    for (Path path : classpath(compilerId)) cmd.add(path.toString());
+
+    Pacman.debug("Launching compiler worker: " + portFile.getFileName());
+    Files.deleteIfExists(portFile);
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile.toFile()));
+    pb.start();
+  }
+
+  protected synchronized boolean claim (String slotKey) {
+    return _claimed.add(slotKey);
+  }
+
+  protected synchronized void release (String slotKey) {
+    _claimed.remove(slotKey);
+  }
+
+  /** Identifies workers for {@code compilerId} launched by this JDK and this version of pacman. */
+  protected String key (String compilerId) throws IOException {
+    Path worker = workerClasspath();
+    MessageDigest md = Filez.sha1();
+    md.update(compilerId.getBytes(StandardCharsets.UTF_8));
+    md.update(Props.javaHome.getBytes(StandardCharsets.UTF_8));
+    md.update(worker.toString().getBytes(StandardCharsets.UTF_8));
+    md.update(Long.toString(Files.getLastModifiedTime(worker).toMillis()).getBytes());
+    RepoId id = RepoId.parse(compilerId);
+    return id.artifactId + "-" + id.version + "-" + Filez.toHex(md.digest()).substring(0, 8);
+  }
+
+  protected static Path workerClasspath () throws IOException {
+    try {
+      return Paths.get(CompilerWorker.class.getProtectionDomain().getCodeSource().getLocation().
+                       toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException("Unable to locate pacman classes", e);
+    }
+  }
+
+  protected static class Connection {
+    public final SocketChannel chan;
+    public final String token;
+
+    /** Connects to the worker described by {@code portFile}, returning null if none is there. */
+    public static Connection open (Path portFile) {
+      try {
+        if (!Files.exists(portFile)) return null;
+        String[] info = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).split(" ");
+        if (info.length != 2) return null;
+        SocketChannel chan = SocketChannel.open();
+        try {
+          chan.socket().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                      Integer.parseInt(info[0])), CONNECT_WAIT);
+        } catch (IOException | RuntimeException e) {
+          chan.close();
+          throw e;
+        }
+        return new Connection(chan, info[1]);
+      } catch (IOException | NumberFormatException e) {
+        return null; // a stale or partially written port file
+      }
+    }
+
+    public Connection (SocketChannel chan, String token) {
+      this.chan = chan;
+      this.token = token;
+    }
+  }
+
+  private final PackageRepo _repo;
+  private final Map<String,List<Path>> _classpaths = new ConcurrentHashMap<>();
+  private final Set<String> _claimed = new HashSet<>();
+
+  private static final int SLOTS = Runtime.getRuntime().availableProcessors();
+  private static final int CONNECT_WAIT = 1000;
+  private static final long STARTUP_WAIT = 30*1000L;
+}
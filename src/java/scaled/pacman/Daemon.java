@@ -0,0 +1,163 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * A resident pacman, started by {@code spam daemon}. It keeps the package repository, resolved
+ * depends and compiler state warm and runs commands on behalf of {@link Bootstrap}, which forwards
+ * its command line to the daemon (if one is running) rather than starting pacman anew. Before each
+ * command, the daemon rescans the installed packages and reloads them if any have changed.
+ *
+ * <p>The daemon listens on a loopback socket and writes {@code port token} to {@link #portFile}.
+ * A request is the token followed by the command line. The response is a series of {@link #STDOUT}
+ * and {@link #STDERR} frames followed by an {@link #EXIT} frame, or a lone {@link #DECLINED} frame
+ * if the client should run the command itself. The daemon exits after it has been idle for {@code
+ * pacman.daemon_idle} seconds, or when pacman itself is rebuilt.</p>
+ */
+public class Daemon {
+
+  /** Frame type for the command's exit code. This is the final frame of a response. */
+  public static final int EXIT = 0;
+  /** Frame type for a chunk of the command's standard output. */
+  public static final int STDOUT = 1;
+  /** Frame type for a chunk of the command's standard error. */
+  public static final int STDERR = 2;
+  /** Frame type indicating that the client must run the command itself. */
+  public static final int DECLINED = 3;
+
+  /** Returns the file to which the daemon writes its port and token. */
+  public static Path portFile (PackageRepo repo) throws IOException {
+    return repo.metaDir("Caches").resolve("daemon.port");
+  }
+
+  /** Returns true if we're running commands on behalf of daemon clients. */
+  public static boolean serving () {
+    return _serving;
+  }
+
+  /** Creates a daemon that runs commands via {@code command}, which returns an exit code. */
+  public Daemon (PackageRepo repo, ToIntFunction<String[]> command) {
+    _repo = repo;
+    _command = command;
+  }
+
+  /** Services requests until we've been idle for {@code idleSecs} or pacman is rebuilt. */
+  public void serve (int idleSecs) throws IOException {
+    Path portFile = portFile(_repo);
+    String token = Long.toHexString(new SecureRandom().nextLong());
+    String pacmanStamp = pacmanStamp();
+    try (ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout(idleSecs*1000);
+      String portInfo = server.getLocalPort() + " " + token;
+      Path temp = Files.createTempFile(portFile.getParent(), "daemon", ".tmp");
+      Filez.restrictToOwner(temp);
+      Files.write(temp, portInfo.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, portFile, StandardCopyOption.REPLACE_EXISTING);
+      Log.log("Pacman daemon listening", "port", server.getLocalPort());
+
+      // route all console output through our relays, which forward to the current client
+      System.setOut(new PrintStream(_stdout, true));
+      System.setErr(new PrintStream(_stderr, true));
+      _serving = true;
+
+      boolean stale = false;
+      while (!stale) {
+        try (Socket sock = server.accept()) {
+          // if pacman has been rebuilt, let the client run the new code and get out of the way
+          stale = !pacmanStamp.equals(pacmanStamp());
+          handle(sock, token, stale);
+        } catch (SocketTimeoutException ste) {
+          break; // we've been idle long enough
+        } catch (Exception e) {
+          _origErr.println("Daemon request failed: " + e);
+        }
+      }
+    } finally {
+      _serving = false;
+      System.setOut(_origOut);
+      System.setErr(_origErr);
+      // only delete the port file if it's still ours (a replacement daemon may have clobbered it)
+      try {
+        String info = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8);
+        if (info.endsWith(" " + token)) Files.delete(portFile);
+      } catch (IOException ioe) {} // no problem
+    }
+  }
+
+  protected void handle (Socket sock, String token, boolean decline) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+    if (!token.equals(CompilerWorker.readString(in))) return; // not one of ours
+    String[] args = new String[in.readInt()];
+    for (int ii = 0; ii < args.length; ii++) args[ii] = CompilerWorker.readString(in);
+
+    int opts = Pacman.options(args);
+    if (decline || args.length == opts || UNSERVED.contains(args[opts])) {
+      out.writeByte(DECLINED);
+      out.flush();
+      return;
+    }
+
+    int code;
+    _stdout.target = out;
+    _stderr.target = out;
+    try {
+      // pick up any packages installed, removed or edited since our last command
+      _repo.refresh();
+      code = _command.applyAsInt(args);
+    } catch (Throwable t) {
+      t.printStackTrace(System.err);
+      code = 255;
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      _stdout.target = null;
+      _stderr.target = null;
+    }
+    out.writeByte(EXIT);
+    out.writeInt(code);
+    out.flush();
+  }
+
+  // the size and mtime of pacman's classes; if they change, pacman has been rebuilt
+  protected static String pacmanStamp () throws IOException {
+    Path path = Compilers.workerClasspath();
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    return attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+  }
+
+  private final PackageRepo _repo;
+  private final ToIntFunction<String[]> _command;
+  private final CompilerWorker.Relay _stdout = new CompilerWorker.Relay(STDOUT);
+  private final CompilerWorker.Relay _stderr = new CompilerWorker.Relay(STDERR);
+  private final PrintStream _origOut = System.out, _origErr = System.err;
+
+  private static volatile boolean _serving;
+
+  // commands that run arbitrary code, or run indefinitely, are run by the client
+  private static final Set<String> UNSERVED = new HashSet<>(Arrays.asList(
+    "run", "watch", "daemon"));
+}
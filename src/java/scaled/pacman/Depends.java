@@ -7,8 +7,10 @@ package scaled.pacman;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -58,6 +60,15 @@ public class Depends {
     ClassLoader systemLoader (Path path);
   }
 
+  /** Returns the Maven depends of {@code module} that are resolved when computing its depends. */
+  public static List<RepoId> mavenIds (Module module) {
+    List<RepoId> ids = new ArrayList<>();
+    for (Depend dep : module.depends) {
+      if (dep.scope != Depend.Scope.EXEC && dep.id instanceof RepoId) ids.add((RepoId)dep.id);
+    }
+    return ids;
+  }
+
   /** The module whose dependencies we contain. */
   public final Module mod;
 
@@ -96,11 +107,11 @@ public class Depends {
     this.missingDeps = new ArrayList<>();
     this.ignoreModuleJar = resolve.ignoreModuleJar();
 
-    List<RepoId> mvnIds = new ArrayList<>();
+    List<RepoId> mvnIds = mavenIds(module);
     List<SystemId> sysIds = new ArrayList<>();
     for (Depend dep : module.depends) {
       if (dep.scope == Depend.Scope.EXEC) continue; // omit exec depends
-      if (dep.id instanceof RepoId) mvnIds.add((RepoId)dep.id);
+      if (dep.id instanceof RepoId) continue; // handled above
       else if (dep.id instanceof SystemId) sysIds.add((SystemId)dep.id);
       else {
         Source depsrc = (Source)dep.id;
@@ -114,11 +125,17 @@ public class Depends {
       }
     }
 
+    // share an intern table with our module depends (where we can), so that merging their
+    // closures with ours is usually a matter of or-ing bitsets
+    _interner = moduleDeps.isEmpty() ? new Interner() : moduleDeps.get(0)._interner;
+
     // compute the transitive set of binary and system depends already handled by our module
     // dependencies; we'll omit those from our deps because we want to "inherit" them
-    Set<Path> haveBinaryDeps = new HashSet<>();
-    Set<String> haveSystemDeps = new HashSet<>();
-    for (Depends dep : moduleDeps) dep.accumDeps(haveBinaryDeps, haveSystemDeps);
+    BitSet haveBinaryDeps = new BitSet(), haveSystemDeps = new BitSet();
+    for (Depends dep : moduleDeps) {
+      haveBinaryDeps.or(_interner.translate(dep._closure.binary, dep._interner));
+      haveSystemDeps.or(_interner.translate(dep._closure.system, dep._interner));
+    }
 
     // resolve our Maven depends; split them into system and (private) bindeps
     if (!mvnIds.isEmpty()) {
@@ -127,10 +144,10 @@ public class Depends {
         Path path = entry.getValue();
         if (path == null) missingDeps.add(new Depend.MissingId(id));
         else if (resolve.isSystem(id)) {
-          if (!haveSystemDeps.contains(id.stableId())) systemDeps.put(path, id);
+          if (!haveSystemDeps.get(_interner.intern(id.stableId()))) systemDeps.put(path, id);
           else filteredDeps.put(path, id);
         }
-        else if (!haveBinaryDeps.contains(path)) binaryDeps.put(path, id);
+        else if (!haveBinaryDeps.get(_interner.intern(path))) binaryDeps.put(path, id);
         else filteredDeps.put(path, id);
       }
     }
@@ -138,29 +155,35 @@ public class Depends {
     // resolve our System depends; system depends are always system
     for (SystemId id : sysIds) try {
       Path path = resolve.resolve(id);
-      if (!haveSystemDeps.contains(id.stableId())) systemDeps.put(path, id);
+      if (!haveSystemDeps.get(_interner.intern(id.stableId()))) systemDeps.put(path, id);
       else filteredDeps.put(path, id);
     } catch (IllegalArgumentException e) {
       missingDeps.add(new Depend.MissingId(id));
     }
+
+    _closure = new Closure(this);
   }
 
   public void accumDeps (Set<Path> binary, Set<String> system) {
-    binary.addAll(binaryDeps.keySet());
-    for (Depend.Id sdep : systemDeps.values()) system.add(sdep.stableId());
-    for (Depends dep : moduleDeps) dep.accumDeps(binary, system);
+    for (int ii = _closure.binary.nextSetBit(0); ii >= 0; ii = _closure.binary.nextSetBit(ii+1)) {
+      binary.add((Path)_interner.get(ii));
+    }
+    for (int ii = _closure.system.nextSetBit(0); ii >= 0; ii = _closure.system.nextSetBit(ii+1)) {
+      system.add((String)_interner.get(ii));
+    }
   }
 
   public List<Path> classpath () {
-    return new ArrayList<>(buildClasspath(new LinkedHashSet<>(), true));
+    return paths(0);
   }
 
   public List<Path> dependClasspath () {
-    return new ArrayList<>(buildClasspath(new LinkedHashSet<>(), false));
+    return paths(1); // omit our own classes, which are first
   }
 
   public List<Depend.Id> flatten () {
-    return new ArrayList<>(buildFlatIds(new LinkedHashSet<>(), false));
+    Depend.Id[] ids = _closure.flatIds;
+    return new ArrayList<>(Arrays.asList(ids).subList(1, ids.length)); // omit our own source
   }
 
   /**
@@ -168,17 +191,7 @@ public class Depends {
    * set, or null if it does not exist therein.
    */
   public String findVersion (String stableId) {
-    for (Depend.Id dep : binaryDeps.values()) {
-      if (dep.stableId().equals(stableId)) return dep.version();
-    }
-    for (Depend.Id dep : systemDeps.values()) {
-      if (dep.stableId().equals(stableId)) return dep.version();
-    }
-    for (Depends mdeps : moduleDeps) {
-      String version = mdeps.findVersion(stableId);
-      if (version != null) return version;
-    }
-    return null;
+    return _closure.versions.get(stableId);
   }
 
   public void dump (PrintStream out, String indent, Set<Source> seen) {
@@ -195,26 +208,105 @@ public class Depends {
     }
   }
 
-  private Set<Path> buildClasspath (Set<Path> into, boolean self) {
-    Path modpath = mod.classpath(ignoreModuleJar);
-    if (!into.contains(modpath)) {
-      if (self) into.add(modpath);
-      into.addAll(binaryDeps.keySet());
-      into.addAll(systemDeps.keySet());
-      for (Depends dep : moduleDeps) dep.buildClasspath(into, true);
+  private List<Path> paths (int from) {
+    Object[] entries = _closure.classpath;
+    List<Path> paths = new ArrayList<>(entries.length - from);
+    for (int ii = from; ii < entries.length; ii++) {
+      Object entry = entries[ii];
+      // a module's classes may be jarred after we're resolved, so we look them up every time
+      if (entry instanceof Depends) {
+        Depends deps = (Depends)entry;
+        paths.add(deps.mod.classpath(deps.ignoreModuleJar));
+      } else paths.add((Path)entry);
     }
-    return into;
+    return paths;
   }
 
-  private Set<Depend.Id> buildFlatIds (Set<Depend.Id> into, boolean self) {
-    if (!into.contains(mod.source)) {
-      if (self) into.add(mod.source);
-      into.addAll(binaryDeps.values());
-      into.addAll(systemDeps.values());
+  /** The transitive closure of a module's depends. Depends never change once resolved, so we
+    * compute this once, from the closures of our module depends, rather than walking the whole
+    * depends graph (diamonds and all) on every query. */
+  private static class Closure {
+    /** Our classpath, in order, starting with our own classes. {@link Depends} entries stand for
+      * a module's classes, other entries are binary or system depend paths. */
+    public final Object[] classpath;
+    /** Our flattened depends, in order, starting with our own source. */
+    public final Depend.Id[] flatIds;
+    /** The interned paths of our transitive binary depends. */
+    public final BitSet binary = new BitSet();
+    /** The interned stable ids of our transitive system depends. */
+    public final BitSet system = new BitSet();
+    /** The version of each transitive depend, by stable id. Nearer depends take precedence. */
+    public final Map<String,String> versions = new HashMap<>();
+
+    public Closure (Depends deps) {
+      Set<Object> cp = new LinkedHashSet<>();
+      cp.add(deps);
+      cp.addAll(deps.binaryDeps.keySet());
+      cp.addAll(deps.systemDeps.keySet());
+      Set<Depend.Id> ids = new LinkedHashSet<>();
+      ids.add(deps.mod.source);
+      ids.addAll(deps.binaryDeps.values());
+      ids.addAll(deps.systemDeps.values());
       // we were unable to resolve them, but we can still report them
-      into.addAll(missingDeps);
-      for (Depends dep : moduleDeps) dep.buildFlatIds(into, true);
+      ids.addAll(deps.missingDeps);
+      Interner interner = deps._interner;
+      for (Path path : deps.binaryDeps.keySet()) binary.set(interner.intern(path));
+      for (Depend.Id id : deps.systemDeps.values()) system.set(interner.intern(id.stableId()));
+      for (Depend.Id id : deps.binaryDeps.values()) addVersion(id);
+      for (Depend.Id id : deps.systemDeps.values()) addVersion(id);
+
+      // a module depend's closure is the same wherever it appears, so we just merge them
+      for (Depends mdeps : deps.moduleDeps) {
+        Closure mc = mdeps._closure;
+        Collections.addAll(cp, mc.classpath);
+        Collections.addAll(ids, mc.flatIds);
+        binary.or(interner.translate(mc.binary, mdeps._interner));
+        system.or(interner.translate(mc.system, mdeps._interner));
+        for (Map.Entry<String,String> entry : mc.versions.entrySet()) {
+          versions.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+      }
+      classpath = cp.toArray();
+      flatIds = ids.toArray(new Depend.Id[ids.size()]);
+    }
+
+    private void addVersion (Depend.Id id) {
+      if (id != null) versions.putIfAbsent(id.stableId(), id.version());
+    }
+  }
+
+  /** Interns paths and stable ids so that closures can track them in bitsets. A table is shared
+    * by a graph of depends and is reclaimed along with it, so a long running pacman that reloads
+    * its packages does not accumulate the paths of every depends graph it has ever resolved. */
+  private static class Interner {
+    public synchronized int intern (Object value) {
+      Integer index = _index.get(value);
+      if (index == null) {
+        index = _values.size();
+        _values.add(value);
+        _index.put(value, index);
+      }
+      return index;
     }
-    return into;
+
+    public synchronized Object get (int index) {
+      return _values.get(index);
+    }
+
+    /** Returns {@code bits}, which index into {@code from}, as indices into this table. */
+    public BitSet translate (BitSet bits, Interner from) {
+      if (from == this) return bits;
+      BitSet xbits = new BitSet();
+      for (int ii = bits.nextSetBit(0); ii >= 0; ii = bits.nextSetBit(ii+1)) {
+        xbits.set(intern(from.get(ii)));
+      }
+      return xbits;
+    }
+
+    private final Map<Object,Integer> _index = new HashMap<>();
+    private final List<Object> _values = new ArrayList<>();
   }
+
+  private final Interner _interner;
+  private final Closure _closure;
 }
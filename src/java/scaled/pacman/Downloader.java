@@ -0,0 +1,300 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads Maven artifacts (and their POMs) into the local repository many at a time. The
+ * dependency manager fetches artifacts one at a time as it walks the dependency graph, so we work
+ * out which artifacts will be needed (from their POMs, fetched a level at a time) and fetch them
+ * here first, and the dependency manager finds them in the local repository.
+ *
+ * <p>At most {@code pacman.download_threads} files are downloaded at once, and at most {@code
+ * pacman.download_per_repo} from any one repository. Failed transfers are retried with backoff,
+ * and each file is checked against its published SHA-1 checksum (on the file pool, so that the
+ * download thread can move on to its next file) before it is moved into place.</p>
+ */
+public class Downloader {
+
+  /** The URL of Maven Central, which the dependency manager calls {@code central}. */
+  public static final String CENTRAL = "https://repo1.maven.org/maven2/";
+
+  /** Creates a downloader that fetches into {@code m2repo} from {@code repos}, which are tried in
+    * order. A repository is either a URL or {@code central}. */
+  public Downloader (Path m2repo, List<String> repos, int threads, int perRepo) {
+    _m2repo = m2repo;
+    for (String repo : repos) {
+      String url = repo.equals("central") ? CENTRAL : repo;
+      _repos.add(url.endsWith("/") ? url : url + "/");
+    }
+    _threads = Math.max(1, threads);
+    _perRepo = Math.max(1, perRepo);
+  }
+
+  /** Returns the local repository path of {@code id}. */
+  public Path localPath (RepoId id) {
+    return _m2repo.resolve(relPath(id));
+  }
+
+  /** Downloads each of {@code ids} (and its POM) that is not already in the local repository.
+    * @return the ids which could not be downloaded. */
+  public Set<RepoId> fetch (Collection<RepoId> ids) {
+    Map<String,RepoId> files = new LinkedHashMap<>();
+    for (RepoId id : ids) {
+      // snapshots must be resolved via the repository metadata, so leave them to the resolver
+      if (id.version.endsWith("-SNAPSHOT")) continue;
+      for (RepoId fid : new RepoId[] { id, pomId(id) }) {
+        String path = relPath(fid);
+        if (!Files.exists(_m2repo.resolve(path))) files.putIfAbsent(path, id);
+      }
+    }
+    Set<RepoId> failed = new LinkedHashSet<>();
+    if (files.isEmpty()) return failed;
+
+    long start = System.nanoTime();
+    AtomicInteger done = new AtomicInteger(), errors = new AtomicInteger();
+    AtomicLong bytes = new AtomicLong();
+    ExecutorService exec = Executors.newFixedThreadPool(Math.min(_threads, files.size()), r -> {
+      Thread thread = new Thread(r, "Downloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    Trace.Span span = Trace.begin("maven", "download", "files", files.size());
+    try {
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (Map.Entry<String,RepoId> entry : files.entrySet()) {
+        String path = entry.getKey();
+        futures.add(CompletableFuture.supplyAsync(() -> download(path), exec).
+          thenAcceptAsync(dl -> install(path, dl), Filez.pool()).
+          handle((nil, err) -> {
+            if (err == null) bytes.addAndGet(size(path));
+            else {
+              Throwable cause = err.getCause() == null ? err : err.getCause();
+              Log.log("Download failed", "path", path, "error", cause.getMessage());
+              errors.incrementAndGet();
+              synchronized (failed) { failed.add(entry.getValue()); }
+            }
+            Pacman.debug("Downloaded " + done.incrementAndGet() + "/" + files.size() + " " + path);
+            return null;
+          }));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    } finally {
+      span.end();
+      exec.shutdown();
+    }
+
+    long millis = Math.max(1, (System.nanoTime() - start)/1000000);
+    Log.log("Downloaded Maven artifacts", "files", files.size() - errors.get(),
+            "failed", errors.get(), "kB", bytes.get()/1024, "ms", millis,
+            "kB/s", bytes.get()*1000/1024/millis);
+    return failed;
+  }
+
+  /** Downloads what resolving each of {@code lists} will need that is not already in the local
+    * repository, along with {@code known} artifacts. POMs are fetched in waves: each wave fetches,
+    * all at once, the missing POMs that {@code local} can see from the POMs we already have. Once
+    * a list's POMs are all present, {@code local} tells us which artifacts win conflict
+    * resolution, and those are fetched in one last batch. POMs are cheap, so fetching some that
+    * resolution will end up not needing is no great loss; artifacts can be large, so we only fetch
+    * the winners. If {@code local} can't resolve a list (it uses features that only the dependency
+    * manager models, say), we fetch just its direct depends.
+    * @return the ids which could not be downloaded. */
+  public Set<RepoId> fetch (Collection<List<RepoId>> lists, Collection<RepoId> known,
+                            LocalResolver local) {
+    Set<RepoId> failed = new LinkedHashSet<>(), tried = new HashSet<>();
+    Set<RepoId> artifacts = new LinkedHashSet<>(known);
+    List<List<RepoId>> pending = new ArrayList<>(lists);
+    while (!pending.isEmpty()) {
+      Set<RepoId> wave = new LinkedHashSet<>();
+      for (Iterator<List<RepoId>> iter = pending.iterator(); iter.hasNext(); ) {
+        List<RepoId> ids = iter.next();
+        try {
+          // a POM we failed to fetch stays missing, so don't try it again
+          Set<RepoId> poms = local.missingPoms(ids);
+          poms.removeAll(tried);
+          if (!poms.isEmpty()) wave.addAll(poms);
+          else {
+            artifacts.addAll(local.artifacts(ids));
+            iter.remove();
+          }
+        } catch (LocalResolver.Miss miss) {
+          Pacman.debug("Fetching only direct depends of " + ids + ": " + miss.getMessage());
+          artifacts.addAll(ids);
+          iter.remove();
+        }
+      }
+      if (!wave.isEmpty()) {
+        tried.addAll(wave);
+        failed.addAll(fetch(wave));
+      }
+    }
+    failed.addAll(fetch(artifacts));
+    return failed;
+  }
+
+  /** A downloaded file waiting to be verified and moved into place. */
+  protected static class Download {
+    public final Path temp;
+    public final String sha1; // null if the repository has no checksum
+    public Download (Path temp, String sha1) {
+      this.temp = temp;
+      this.sha1 = sha1;
+    }
+  }
+
+  // runs on a download thread: fetches path (and its checksum) from the first repo that has it
+  protected Download download (String path) {
+    IOException error = null;
+    for (String repo : _repos) {
+      Semaphore limit;
+      synchronized (_limits) {
+        limit = _limits.computeIfAbsent(repo, r -> new Semaphore(_perRepo));
+      }
+      limit.acquireUninterruptibly();
+      try {
+        Path target = _m2repo.resolve(path);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(),
+                                        ".part");
+        try {
+          get(repo + path, temp);
+          return new Download(temp, checksum(repo + path + ".sha1", temp));
+        } catch (IOException ioe) {
+          Files.deleteIfExists(temp);
+          throw ioe;
+        }
+      } catch (FileNotFoundException fnfe) {
+        if (error == null) error = fnfe; // try the next repository
+      } catch (IOException ioe) {
+        error = ioe;
+      } finally {
+        limit.release();
+      }
+    }
+    throw new RuntimeException(error == null ? new FileNotFoundException(path) : error);
+  }
+
+  // fetches the published SHA-1 of the file downloaded to temp, or returns null if there is none
+  protected String checksum (String url, Path temp) throws IOException {
+    Path sumTemp = temp.resolveSibling(temp.getFileName() + ".sha1");
+    try {
+      get(url, sumTemp);
+      String sha1 = new String(Files.readAllBytes(sumTemp), StandardCharsets.UTF_8).trim();
+      // some checksum files also contain the file name
+      return sha1.split("\\s+")[0].toLowerCase();
+    } catch (FileNotFoundException fnfe) {
+      return null;
+    } finally {
+      Files.deleteIfExists(sumTemp);
+    }
+  }
+
+  // runs on the file pool: checks a download's checksum and moves it into place
+  protected void install (String path, Download dl) {
+    try {
+      if (dl.sha1 != null) {
+        String actual = Filez.hash(dl.temp);
+        if (!actual.equals(dl.sha1)) throw new IOException(
+          "Checksum mismatch (expected " + dl.sha1 + ", got " + actual + ")");
+      }
+      Path target = _m2repo.resolve(path);
+      Files.move(dl.temp, target, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      if (dl.sha1 != null) Files.write(target.resolveSibling(target.getFileName() + ".sha1"),
+                                       dl.sha1.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    } finally {
+      try { Files.deleteIfExists(dl.temp); }
+      catch (IOException ioe) {} // no problem
+    }
+  }
+
+  // fetches url into target, retrying server errors and failed connections; a missing file
+  // results in FileNotFoundException
+  protected void get (String url, Path target) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setRequestProperty("User-Agent", "pacman");
+        int code = conn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+          conn.disconnect();
+          throw new FileNotFoundException(url);
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+          conn.disconnect();
+          throw new IOException("HTTP " + code + " for " + url);
+        }
+        try (InputStream in = conn.getInputStream();
+             OutputStream out = Files.newOutputStream(target)) {
+          byte[] buf = new byte[65536];
+          for (int read; (read = in.read(buf)) > 0; ) out.write(buf, 0, read);
+        }
+        return;
+      } catch (FileNotFoundException fnfe) {
+        throw fnfe;
+      } catch (IOException ioe) {
+        if (attempt >= MAX_ATTEMPTS) throw ioe;
+        Pacman.debug("Retrying " + url + " (" + ioe.getMessage() + ")");
+        try { Thread.sleep(RETRY_DELAY << (attempt-1)); }
+        catch (InterruptedException ie) { throw new IOException("Interrupted fetching " + url); }
+      }
+    }
+  }
+
+  protected static RepoId pomId (RepoId id) {
+    return new RepoId(id.groupId, id.artifactId, id.version, "pom");
+  }
+
+  protected static String relPath (RepoId id) {
+    return id.groupId.replace('.', '/') + "/" + id.artifactId + "/" + id.version + "/" +
+      id.artifactId + "-" + id.version + (id.classifier == null ? "" : "-" + id.classifier) +
+      "." + id.kind;
+  }
+
+  private long size (String path) {
+    try { return Files.size(_m2repo.resolve(path)); }
+    catch (IOException ioe) { return 0; }
+  }
+
+  private final Path _m2repo;
+  private final List<String> _repos = new ArrayList<>();
+  private final int _threads, _perRepo;
+  private final Map<String,Semaphore> _limits = new HashMap<>();
+
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long RETRY_DELAY = 250; // millis, doubled after each failed attempt
+  private static final int CONNECT_TIMEOUT = 10*1000, READ_TIMEOUT = 30*1000;
+}
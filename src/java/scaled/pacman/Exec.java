@@ -7,6 +7,7 @@ package scaled.pacman;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,10 +19,24 @@ public class Exec {
 
   public static class Handle {
     public int waitFor () throws IOException {
-      _pb.inheritIO();
+      // if our log output is tagged (because we're running alongside other builds) or is relayed
+      // to a daemon client, route the process's output through the log as well, otherwise it goes
+      // straight to our stdout/err
+      boolean tagged = Log.isTagged() || Daemon.serving();
+      if (tagged) _pb.redirectErrorStream(true);
+      else _pb.inheritIO();
       Process p = _pb.start();
-      try { return p.waitFor(); }
-      catch (InterruptedException e) { throw new IOException("Process.waitFor() interrupted"); }
+      // relay output on a separate thread, so that this one waits (interruptibly) on the process
+      Thread relay = tagged ? relay(p, Log.tag()) : null;
+      try {
+        int code = p.waitFor();
+        if (relay != null) relay.join();
+        return code;
+      } catch (InterruptedException e) {
+        // we're interrupted when a concurrent build fails, so don't leave the process running
+        p.destroyForcibly();
+        throw new InterruptedIOException("Interrupted waiting for " + _pb.command().get(0));
+      }
     }
 
     public void expect (int exitCode, String onError) throws IOException {
@@ -46,6 +61,19 @@ public class Exec {
       return output;
     }
 
+    private static Thread relay (Process p, String tag) {
+      Thread thread = new Thread(() -> {
+        Log.setTag(tag);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+          String line;
+          while ((line = in.readLine()) != null) Log.log(line);
+        } catch (IOException ioe) {} // the process was destroyed
+      }, "Exec-output");
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+    }
+
     private Handle (ProcessBuilder pb) {
       _pb = pb;
     }
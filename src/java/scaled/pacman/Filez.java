@@ -6,12 +6,26 @@ package scaled.pacman;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** File utilities. */
 public class Filez {
@@ -24,7 +38,37 @@ public class Filez {
 
   /** Deletes {@code dir} and all of its contents. */
   public static void deleteAll (Path dir) throws IOException {
-    if (!Files.exists(dir)) return; // our job is already done
+    if (parallel()) deleteAll(dir, pool());
+    else deleteAllSerial(dir);
+  }
+
+  /** Deletes {@code dir} and all of its contents, processing subdirectories in parallel on
+    * {@code pool}. If {@code dir} is a symlink or a regular file, only it is deleted. */
+  public static void deleteAll (Path dir, ForkJoinPool pool) throws IOException {
+    if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) return; // our job is already done
+    // walk() follows a symlinked root, and we must not delete the contents of the link's target
+    if (Files.isSymbolicLink(dir)) {
+      Files.delete(dir);
+      return;
+    }
+    // nor can it list a plain file, which has no contents to delete anyway
+    if (!Files.isDirectory(dir)) {
+      safeDelete(dir);
+      return;
+    }
+    walk(pool, dir, new TreeVisitor() {
+      public void visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+        safeDelete(file);
+      }
+      public void postVisitDirectory (Path dir) throws IOException {
+        safeDelete(dir);
+      }
+    });
+  }
+
+  /** Deletes {@code dir} and all of its contents on the calling thread. */
+  public static void deleteAllSerial (Path dir) throws IOException {
+    if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) return; // our job is already done
     Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
       @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
       throws IOException {
@@ -40,9 +84,68 @@ public class Filez {
     });
   }
 
+  /** Deletes the contents of {@code dir} except for the files in {@code keep} (and the directories
+    * that contain them). */
+  public static void deleteAllExcept (Path dir, Set<Path> keep) throws IOException {
+    if (!Files.exists(dir)) return; // our job is already done
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+      throws IOException {
+        if (!attrs.isDirectory() && !keep.contains(file)) safeDelete(file);
+        return FileVisitResult.CONTINUE;
+      }
+      @Override public FileVisitResult postVisitDirectory (Path sdir, IOException exn)
+      throws IOException {
+        if (exn != null) throw exn;
+        if (!sdir.equals(dir)) {
+          try (DirectoryStream<Path> contents = Files.newDirectoryStream(sdir)) {
+            if (!contents.iterator().hasNext()) safeDelete(sdir);
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /** Makes {@code target} a hard link to {@code source}, replacing any existing file. If the file
+    * system doesn't support that (or the files are on different devices), copies it instead.
+    * @return true if a link was made, false if the file was copied. */
+  public static boolean linkOrCopy (Path source, Path target) throws IOException {
+    Files.deleteIfExists(target);
+    try {
+      Files.createLink(target, source);
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+      return false;
+    }
+  }
+
   /** Copies the contents of {@code fromDir} into {@code toDir} recursively.
     * The directory structure under {@code fromDir} is replicated into {@code toDir} as needed. */
   public static void copyAll (Path fromDir, Path toDir) throws IOException {
+    if (parallel()) copyAll(fromDir, toDir, pool());
+    else copyAllSerial(fromDir, toDir);
+  }
+
+  /** Copies the contents of {@code fromDir} into {@code toDir} recursively, processing
+    * subdirectories in parallel on {@code pool}. */
+  public static void copyAll (Path fromDir, Path toDir, ForkJoinPool pool) throws IOException {
+    Files.createDirectories(toDir);
+    walk(pool, fromDir, new TreeVisitor() {
+      public void preVisitDirectory (Path dir) throws IOException {
+        Path targetDir = toDir.resolve(fromDir.relativize(dir));
+        if (!Files.exists(targetDir)) Files.createDirectory(targetDir);
+      }
+      public void visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+        Files.copy(file, toDir.resolve(fromDir.relativize(file)),
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+    });
+  }
+
+  /** Copies the contents of {@code fromDir} into {@code toDir} on the calling thread. */
+  public static void copyAllSerial (Path fromDir, Path toDir) throws IOException {
     Files.createDirectories(toDir);
     Files.walkFileTree(fromDir, new SimpleFileVisitor<Path>() {
       @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs)
@@ -64,6 +167,27 @@ public class Filez {
   /** Scans {@code dir} for any file that is newer than {@code stamp}.
     * @return true if a newer file was found, false if not. */
   public static boolean existsNewer (long stamp, Path dir) throws IOException {
+    return parallel() ? existsNewer(stamp, dir, pool()) : existsNewerSerial(stamp, dir);
+  }
+
+  /** Scans {@code dir} for any file that is newer than {@code stamp}, processing subdirectories in
+    * parallel on {@code pool}. The scan stops as soon as any thread finds a newer file.
+    * @return true if a newer file was found, false if not. */
+  public static boolean existsNewer (long stamp, Path dir, ForkJoinPool pool) throws IOException {
+    if (!Files.exists(dir)) return false;
+    AtomicBoolean sawNewer = new AtomicBoolean();
+    walk(pool, dir, new TreeVisitor() {
+      public void visitFile (Path file, BasicFileAttributes attrs) {
+        if (attrs.lastModifiedTime().toMillis() >= stamp) sawNewer.set(true);
+      }
+      public boolean done () { return sawNewer.get(); }
+    });
+    return sawNewer.get();
+  }
+
+  /** Scans {@code dir} for any file that is newer than {@code stamp} on the calling thread.
+    * @return true if a newer file was found, false if not. */
+  public static boolean existsNewerSerial (long stamp, Path dir) throws IOException {
     if (!Files.exists(dir)) return false;
     boolean[] sawNewer = new boolean[1]; // false
     Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
@@ -76,4 +200,105 @@ public class Filez {
     });
     return sawNewer[0];
   }
+
+  /** Callbacks for {@link #walk}. {@link #visitFile} and the directory callbacks for different
+    * directories may be called concurrently. */
+  public interface TreeVisitor {
+    /** Called before the contents of {@code dir} are visited. */
+    default void preVisitDirectory (Path dir) throws IOException {}
+    /** Called for each non-directory (including symlinks, which are not followed). */
+    void visitFile (Path file, BasicFileAttributes attrs) throws IOException;
+    /** Called after {@code dir}'s contents (including all of its subdirectories) are visited. */
+    default void postVisitDirectory (Path dir) throws IOException {}
+    /** Returns true if the walk should stop early. */
+    default boolean done () { return false; }
+  }
+
+  /** Walks the tree rooted at {@code dir} on {@code pool}, visiting each directory's files on one
+    * thread and forking a task for each of its subdirectories. On file systems where each operation
+    * waits on the disk or network, this keeps many operations in flight at once. */
+  public static void walk (ForkJoinPool pool, Path dir, TreeVisitor visitor) throws IOException {
+    try {
+      pool.invoke(new WalkTask(dir, visitor));
+    } catch (UncheckedIOException uioe) {
+      throw uioe.getCause();
+    }
+  }
+
+  /** Returns the pool used for parallel file operations, creating it if needed. */
+  public static synchronized ForkJoinPool pool () {
+    if (_pool == null) _pool = new ForkJoinPool(Props.fileThreads);
+    return _pool;
+  }
+
+  protected static boolean parallel () {
+    return Props.fileThreads > 1;
+  }
+
+  protected static class WalkTask extends RecursiveAction {
+    public WalkTask (Path dir, TreeVisitor visitor) {
+      _dir = dir;
+      _visitor = visitor;
+    }
+
+    @Override protected void compute () {
+      try {
+        _visitor.preVisitDirectory(_dir);
+        List<WalkTask> subtasks = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(_dir)) {
+          for (Path path : stream) {
+            if (_visitor.done()) break;
+            BasicFileAttributes attrs = Files.readAttributes(
+              path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isDirectory()) _visitor.visitFile(path, attrs);
+            else {
+              WalkTask task = new WalkTask(path, _visitor);
+              task.fork();
+              subtasks.add(task);
+            }
+          }
+        }
+        for (WalkTask task : subtasks) task.join();
+        if (!_visitor.done()) _visitor.postVisitDirectory(_dir);
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+    }
+
+    private final Path _dir;
+    private final TreeVisitor _visitor;
+  }
+
+  /** Limits access to {@code file} to its owner, if the file system supports POSIX permissions. */
+  public static void restrictToOwner (Path file) throws IOException {
+    if (Files.getFileStore(file).supportsFileAttributeView(PosixFileAttributeView.class)) {
+      Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+    }
+  }
+
+  /** Returns the hex-encoded SHA-1 hash of the contents of {@code file}. */
+  public static String hash (Path file) throws IOException {
+    MessageDigest md = sha1();
+    byte[] buf = new byte[65536];
+    try (InputStream in = Files.newInputStream(file)) {
+      for (int read; (read = in.read(buf)) > 0; ) md.update(buf, 0, read);
+    }
+    return toHex(md.digest());
+  }
+
+  /** Returns a new SHA-1 message digest. */
+  public static MessageDigest sha1 () {
+    try { return MessageDigest.getInstance("SHA-1"); }
+    catch (NoSuchAlgorithmException e) { throw new AssertionError(e); } // required by the JDK
+  }
+
+  /** Returns {@code bytes} as a string of lowercase hex digits. */
+  public static String toHex (byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length*2);
+    for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).
+                           append(Character.forDigit(b & 0xF, 16));
+    return sb.toString();
+  }
+
+  private static ForkJoinPool _pool;
 }
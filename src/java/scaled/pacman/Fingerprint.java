@@ -0,0 +1,346 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The fingerprint of a module's build output: a hash of its {@code module.jar} and a hash of its
+ * ABI. The ABI comprises the signatures of its classes and their non-private members, the values of
+ * its constants and any compiler metadata (like Scala and Kotlin signature annotations) that other
+ * compilers read. Changes to method bodies or private members don't alter the ABI, so modules that
+ * depend on a module whose ABI is unchanged need not be recompiled. The exception is Scala and
+ * Kotlin classes, whose method bodies may be inlined into (or, for macros, run by) the compiles of
+ * their dependents; the ABI of those classes includes the code of their non-private methods.
+ *
+ * <p>A fingerprint is recorded in {@code target/module.abi} each time a module's jar is written.</p>
+ */
+public class Fingerprint {
+
+  /** A hash of the bytes of the module jar. */
+  public final String jarHash;
+
+  /** A hash of the ABI of the classes in the module jar. */
+  public final String abiHash;
+
+  /** Returns the file in which the fingerprint of {@code mod} is recorded. */
+  public static Path file (Module mod) {
+    return mod.outputDir().resolve("module.abi");
+  }
+
+  /** Loads the fingerprint recorded for {@code mod}, returning null if none exists. */
+  public static Fingerprint load (Module mod) {
+    try {
+      List<String> lines = Files.readAllLines(file(mod), StandardCharsets.UTF_8);
+      return (lines.size() < 2) ? null : new Fingerprint(lines.get(0), lines.get(1));
+    } catch (NoSuchFileException nsfe) {
+      return null;
+    } catch (IOException ioe) {
+      Log.log("Unable to read ABI fingerprint", "mod", mod, "error", ioe);
+      return null;
+    }
+  }
+
+  /** Computes and records the fingerprint of {@code mod}'s (freshly written) module jar. If the jar
+    * is byte for byte the same as when the previous fingerprint was recorded, its ABI is not
+    * recomputed. */
+  public static Fingerprint record (Module mod) throws IOException {
+    Path jar = mod.moduleJar(), file = file(mod);
+    if (!Files.exists(jar)) {
+      Files.deleteIfExists(file);
+      return null;
+    }
+    Trace.Span span = Trace.begin("jar", "fingerprint", "jar", jar);
+    try {
+      String jarHash = Filez.hash(jar);
+      Fingerprint prev = load(mod);
+      Fingerprint fp = (prev != null && prev.jarHash.equals(jarHash)) ? prev :
+        new Fingerprint(jarHash, abiHash(jar));
+      Files.write(file, (fp.jarHash + "\n" + fp.abiHash + "\n").getBytes(StandardCharsets.UTF_8));
+      return fp;
+    } finally {
+      span.end();
+    }
+  }
+
+  /** Computes a hash of the ABI of the classes in {@code jar}. */
+  public static String abiHash (Path jar) throws IOException {
+    Map<String,String> classes = new TreeMap<>();
+    try (InputStream fin = Files.newInputStream(jar);
+         ZipInputStream in = new ZipInputStream(new BufferedInputStream(fin))) {
+      for (ZipEntry ze; (ze = in.getNextEntry()) != null; ) {
+        String name = ze.getName();
+        if (!name.endsWith(".class") || name.endsWith("module-info.class")) continue;
+        String abi = classAbi(new DataInputStream(in));
+        if (abi != null) classes.put(name, abi);
+      }
+    }
+    MessageDigest md = Filez.sha1();
+    for (Map.Entry<String,String> entry : classes.entrySet()) {
+      md.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+      md.update((byte)0);
+      md.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+      md.update((byte)0);
+    }
+    return Filez.toHex(md.digest());
+  }
+
+  /** Returns true if {@code before} and {@code after} have the same ABI. Missing fingerprints are
+    * assumed to differ from everything. */
+  public static boolean sameAbi (Fingerprint before, Fingerprint after) {
+    return before != null && after != null && before.abiHash.equals(after.abiHash);
+  }
+
+  public Fingerprint (String jarHash, String abiHash) {
+    this.jarHash = jarHash;
+    this.abiHash = abiHash;
+  }
+
+  @Override public String toString () {
+    return "jar:" + jarHash + " abi:" + abiHash;
+  }
+
+  /** Returns a canonical description of the ABI of the class file read from {@code in}, or null
+    * if the class is not visible outside its compilation unit (i.e. it's anonymous, local or a
+    * private nested class). */
+  protected static String classAbi (DataInputStream in) throws IOException {
+    if (in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+    in.readUnsignedShort(); in.readUnsignedShort(); // minor and major version
+    Object[] pool = readPool(in);
+
+    StringBuilder sb = new StringBuilder();
+    int access = in.readUnsignedShort() & ~ACC_SUPER;
+    int thisIdx = in.readUnsignedShort();
+    String name = className(pool, thisIdx);
+    sb.append(access).append(' ').append(name);
+    int superIdx = in.readUnsignedShort();
+    if (superIdx != 0) sb.append(" extends ").append(className(pool, superIdx));
+    for (int ii = 0, ll = in.readUnsignedShort(); ii < ll; ii++) {
+      sb.append(ii == 0 ? " implements " : ",").append(className(pool, in.readUnsignedShort()));
+    }
+    sb.append('\n');
+
+    // note the API-visible members (and their code, in case we turn out to need it), sorted so
+    // that reordering them doesn't change our hash
+    Map<String,byte[]> members = new TreeMap<>();
+    for (int pass = 0; pass < 2; pass++) { // fields, then methods
+      for (int ii = 0, ll = in.readUnsignedShort(); ii < ll; ii++) {
+        int macc = in.readUnsignedShort();
+        String mname = (String)pool[in.readUnsignedShort()];
+        String mdesc = (String)pool[in.readUnsignedShort()];
+        StringBuilder msb = new StringBuilder();
+        msb.append(pass == 0 ? "F " : "M ").append(macc).append(' ').append(mname).append(mdesc);
+        List<byte[]> code = new ArrayList<>(1);
+        readAttrs(in, pool, msb, -1, code);
+        // private members can't be referenced by other modules; synthetic members (accessors,
+        // bridges, lambda bodies) are generated from method bodies and are not part of the API
+        if ((macc & (ACC_PRIVATE|ACC_SYNTHETIC)) == 0) {
+          members.put(msb.toString(), code.isEmpty() ? null : code.get(0));
+        }
+      }
+    }
+
+    // finally the class attributes, which include generic signatures and language metadata; we
+    // also learn from these whether we're a nested class that's not visible to other modules
+    StringBuilder asb = new StringBuilder();
+    int flags = readAttrs(in, pool, asb, thisIdx, null);
+    if ((flags & HIDDEN) != 0) return null;
+
+    for (Map.Entry<String,byte[]> member : members.entrySet()) {
+      sb.append(member.getKey());
+      byte[] code = member.getValue();
+      // the code refers to the constant pool by index, so this is conservative: a change that
+      // shifts the pool can change the ABI even if the method bodies are the same
+      if ((flags & INLINES) != 0 && code != null) {
+        sb.append(" code:").append(Filez.toHex(Filez.sha1().digest(code)));
+      }
+      sb.append('\n');
+    }
+    return sb.append(asb).toString();
+  }
+
+  // appends the ABI-relevant attributes to sb, and any method code to code (if it's not null);
+  // returns flags: HIDDEN if thisIdx (if not -1) is described by an InnerClasses entry as
+  // anonymous, local or private, INLINES if these are the attributes of a Scala or Kotlin class
+  protected static int readAttrs (DataInputStream in, Object[] pool, StringBuilder sb, int thisIdx,
+                                  List<byte[]> code) throws IOException {
+    int result = 0;
+    for (int ii = 0, ll = in.readUnsignedShort(); ii < ll; ii++) {
+      String aname = (String)pool[in.readUnsignedShort()];
+      int length = in.readInt();
+      switch (aname) {
+      case "Code":
+        if (code == null) in.skipBytes(length);
+        else {
+          byte[] bytes = new byte[length];
+          in.readFully(bytes);
+          code.add(bytes);
+        }
+        break;
+      case "Scala":
+      case "ScalaSig":
+      case "ScalaInlineInfo":
+      case "TASTY":
+        // the Scala compiler may inline (or, for macros, run) the code of any Scala class
+        result |= INLINES;
+        in.skipBytes(length);
+        break;
+      case "Signature":
+        sb.append(" sig:").append(pool[in.readUnsignedShort()]);
+        break;
+      case "ConstantValue":
+        sb.append(" = ").append(pool[in.readUnsignedShort()]);
+        break;
+      case "Exceptions":
+        sb.append(" throws");
+        for (int ee = 0, el = in.readUnsignedShort(); ee < el; ee++) {
+          sb.append(' ').append(className(pool, in.readUnsignedShort()));
+        }
+        break;
+      case "AnnotationDefault":
+        sb.append(" default ");
+        readElementValue(in, pool, sb);
+        break;
+      case "RuntimeVisibleAnnotations":
+      case "RuntimeInvisibleAnnotations":
+        // these carry Scala's and Kotlin's signatures (among other things); Kotlin doesn't mark
+        // inline functions in bytecode, so we assume that any Kotlin class may have them
+        sb.append(' ').append(aname).append(':');
+        int start = sb.length();
+        for (int aa = 0, al = in.readUnsignedShort(); aa < al; aa++) readAnnotation(in, pool, sb);
+        if (sb.indexOf("@" + KOTLIN_METADATA + "(", start) >= 0) result |= INLINES;
+        break;
+      case "NestHost":
+        sb.append(" host:").append(className(pool, in.readUnsignedShort()));
+        break;
+      case "NestMembers":
+      case "PermittedSubclasses":
+        // order is not significant, so sort these
+        List<String> names = new ArrayList<>();
+        for (int cc = 0, cl = in.readUnsignedShort(); cc < cl; cc++) {
+          names.add(className(pool, in.readUnsignedShort()));
+        }
+        Collections.sort(names);
+        sb.append(' ').append(aname).append(':').append(names);
+        break;
+      case "Record":
+        sb.append(" record:");
+        for (int cc = 0, cl = in.readUnsignedShort(); cc < cl; cc++) {
+          sb.append(cc == 0 ? "" : ",").append(pool[in.readUnsignedShort()]).
+            append(pool[in.readUnsignedShort()]);
+          readAttrs(in, pool, sb, -1, null);
+        }
+        break;
+      case "InnerClasses":
+        for (int cc = 0, cl = in.readUnsignedShort(); cc < cl; cc++) {
+          int inner = in.readUnsignedShort(), outer = in.readUnsignedShort();
+          int iname = in.readUnsignedShort(), iacc = in.readUnsignedShort();
+          if (inner == thisIdx) {
+            if (outer == 0 || iname == 0 || (iacc & ACC_PRIVATE) != 0) result |= HIDDEN;
+            else sb.append(" inner:").append(iacc);
+          }
+        }
+        break;
+      default:
+        in.skipBytes(length);
+        break;
+      }
+    }
+    return result;
+  }
+
+  protected static void readAnnotation (DataInputStream in, Object[] pool, StringBuilder sb)
+    throws IOException {
+    sb.append('@').append(pool[in.readUnsignedShort()]).append('(');
+    for (int ii = 0, ll = in.readUnsignedShort(); ii < ll; ii++) {
+      sb.append(ii == 0 ? "" : ",").append(pool[in.readUnsignedShort()]).append('=');
+      readElementValue(in, pool, sb);
+    }
+    sb.append(')');
+  }
+
+  protected static void readElementValue (DataInputStream in, Object[] pool, StringBuilder sb)
+    throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+    case 'e':
+      sb.append(pool[in.readUnsignedShort()]).append('.').append(pool[in.readUnsignedShort()]);
+      break;
+    case 'c':
+      sb.append(pool[in.readUnsignedShort()]).append(".class");
+      break;
+    case '@':
+      readAnnotation(in, pool, sb);
+      break;
+    case '[':
+      sb.append('[');
+      for (int ii = 0, ll = in.readUnsignedShort(); ii < ll; ii++) {
+        if (ii > 0) sb.append(',');
+        readElementValue(in, pool, sb);
+      }
+      sb.append(']');
+      break;
+    default: // a constant: B C D F I J S Z or s
+      sb.append((char)tag).append(pool[in.readUnsignedShort()]);
+      break;
+    }
+  }
+
+  // reads the constant pool, resolving the entries we need into strings and boxed values; class
+  // entries are stored as the Integer index of their name, everything else is left null
+  protected static Object[] readPool (DataInputStream in) throws IOException {
+    int count = in.readUnsignedShort();
+    Object[] pool = new Object[count];
+    int[] strings = new int[count];
+    for (int ii = 1; ii < count; ii++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+      case 1: pool[ii] = in.readUTF(); break; // Utf8
+      case 3: pool[ii] = in.readInt(); break; // Integer
+      case 4: pool[ii] = in.readFloat(); break; // Float
+      case 5: pool[ii] = in.readLong(); ii++; break; // Long (takes two slots)
+      case 6: pool[ii] = in.readDouble(); ii++; break; // Double (takes two slots)
+      case 7: pool[ii] = in.readUnsignedShort(); break; // Class
+      case 8: strings[ii] = in.readUnsignedShort(); break; // String
+      case 16: case 19: case 20: in.skipBytes(2); break; // MethodType, Module, Package
+      case 15: in.skipBytes(3); break; // MethodHandle
+      case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+      default: throw new IOException("Unknown constant pool tag " + tag + " at " + ii);
+      }
+    }
+    // resolve string constants now that all of the utf8s are read; quote them so that they can't
+    // be confused with numeric constants
+    for (int ii = 1; ii < count; ii++) {
+      if (strings[ii] != 0) pool[ii] = "\"" + pool[strings[ii]] + "\"";
+    }
+    return pool;
+  }
+
+  protected static String className (Object[] pool, int idx) {
+    return (String)pool[(Integer)pool[idx]];
+  }
+
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_SUPER = 0x0020;
+  private static final int ACC_SYNTHETIC = 0x1000;
+  private static final int HIDDEN = 1;
+  private static final int INLINES = 2;
+  private static final String KOTLIN_METADATA = "Lkotlin/Metadata;";
+}
@@ -0,0 +1,372 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Handles incremental compilation of Java-only modules. When such a module is built in full, we
+ * record the hash of each source file, the classes generated from it, and the dependencies between
+ * those classes (extracted from the class files themselves). When the module is next rebuilt, we
+ * recompile only the changed sources, plus any sources whose classes reference or extend classes
+ * generated by the changed sources, and delete only the class files that went stale.
+ */
+public class IncrementalJava {
+
+  /** Returns the file in which incremental build state is stored for {@code mod}. */
+  public static Path stateFile (Module mod) {
+    return mod.outputDir().resolve("javac.state");
+  }
+
+  public IncrementalJava (Javac javac, Module mod, List<String> opts, List<Path> classpath,
+                          Path javaDir, List<Path> sources) {
+    _javac = javac;
+    _mod = mod;
+    _opts = opts;
+    _classpath = classpath;
+    _javaDir = javaDir;
+    _sources = sources;
+  }
+
+  /** Compiles all sources, recording the state needed to later rebuild incrementally.
+    * @return true if compilation succeeded, false if it failed. */
+  public boolean compileAll () throws IOException {
+    Path stateFile = stateFile(_mod);
+    Files.deleteIfExists(stateFile);
+    Map<Path,List<String>> generated = new HashMap<>();
+    if (!_javac.compile(_opts, _classpath, Collections.singletonList(_javaDir), _mod.classesDir(),
+                        _sources, listener(generated))) return false;
+    State state = new State(stamp());
+    record(state, _sources, generated);
+    state.save(stateFile);
+    return true;
+  }
+
+  /**
+   * Loads the state recorded by the previous build and determines which sources need to be
+   * recompiled. This must be called (and return true) before calling {@link #compile}.
+   * @return false if we cannot rebuild incrementally and a full build is needed.
+   */
+  public boolean plan () throws IOException {
+    _state = State.load(stateFile(_mod));
+    if (_state == null) return false;
+    if (!_state.stamp.equals(stamp())) {
+      Pacman.debug(_mod + " compiler options or classpath changed, rebuilding in full.");
+      return false;
+    }
+    // if our output was cleaned (or otherwise tampered with), the state no longer describes it
+    for (String cname : _state.classes.keySet()) {
+      if (!Files.exists(classFile(cname))) {
+        Pacman.debug(_mod + " missing " + cname + ".class, rebuilding in full.");
+        return false;
+      }
+    }
+
+    Map<String,Path> current = new HashMap<>();
+    for (Path src : _sources) current.put(relative(src), src);
+    Set<String> changed = new HashSet<>();
+    for (Map.Entry<String,Path> entry : current.entrySet()) {
+      SourceInfo osrc = _state.sources.get(entry.getKey());
+      if (osrc == null || osrc.changed(entry.getValue())) changed.add(entry.getKey());
+    }
+    Set<String> deleted = new HashSet<>(_state.sources.keySet());
+    deleted.removeAll(current.keySet());
+
+    // the classes generated by changed and deleted sources are invalidated
+    Set<String> dirty = new HashSet<>();
+    for (String rel : union(changed, deleted)) {
+      SourceInfo osrc = _state.sources.get(rel);
+      if (osrc != null) dirty.addAll(osrc.classes);
+    }
+    for (String cname : dirty) {
+      ClassDeps deps = _state.classes.get(cname);
+      if (deps != null && deps.constants) {
+        // constants are inlined into their referrers, leaving no trace of the dependency
+        Pacman.debug(_mod + " constant-bearing " + cname + " changed, rebuilding in full.");
+        return false;
+      }
+    }
+
+    // subtypes of invalidated classes inherit their members, so they are invalidated as well
+    for (boolean grew = true; grew; ) {
+      grew = false;
+      for (Map.Entry<String,ClassDeps> entry : _state.classes.entrySet()) {
+        if (!dirty.contains(entry.getKey()) && !Collections.disjoint(entry.getValue().supers, dirty))
+          grew = dirty.add(entry.getKey()) || grew;
+      }
+    }
+
+    // recompile the changed sources, and any source which references an invalidated class
+    _recompile = new HashSet<>(changed);
+    for (Map.Entry<String,SourceInfo> entry : _state.sources.entrySet()) {
+      for (String cname : entry.getValue().classes) {
+        ClassDeps deps = _state.classes.get(cname);
+        if (dirty.contains(cname) || (deps != null && !Collections.disjoint(deps.refs, dirty))) {
+          _recompile.add(entry.getKey());
+          break;
+        }
+      }
+    }
+    _recompile.removeAll(deleted);
+    _stale = union(_recompile, deleted);
+    _current = current;
+    return true;
+  }
+
+  /** Returns the number of sources that {@link #compile} will recompile. */
+  public int recompileCount () {
+    return _recompile.size();
+  }
+
+  /** Deletes stale class files and recompiles the sources identified by {@link #plan}.
+    * @throws IOException if compilation fails. */
+  public void compile () throws IOException {
+    // if we fail partway through, we want the next build to be a full build
+    Path stateFile = stateFile(_mod);
+    Files.deleteIfExists(stateFile);
+
+    for (String rel : _stale) {
+      SourceInfo osrc = _state.sources.remove(rel);
+      if (osrc == null) continue;
+      for (String cname : osrc.classes) {
+        Files.deleteIfExists(classFile(cname));
+        _state.classes.remove(cname);
+      }
+    }
+
+    if (!_recompile.isEmpty()) {
+      List<Path> srcs = new ArrayList<>();
+      for (String rel : _recompile) srcs.add(_current.get(rel));
+      // unchanged classes are resolved from our classes directory, not from source
+      List<Path> cp = new ArrayList<>(_classpath);
+      cp.add(0, _mod.classesDir());
+      Map<Path,List<String>> generated = new HashMap<>();
+      if (!_javac.compile(_opts, cp, Collections.emptyList(), _mod.classesDir(), srcs,
+                          listener(generated))) throw new IOException("Java build failed.");
+      record(_state, srcs, generated);
+    }
+    _state.save(stateFile);
+  }
+
+  protected Javac.Listener listener (Map<Path,List<String>> generated) {
+    return (className, source) -> generated.computeIfAbsent(
+      source.toAbsolutePath().normalize(), s -> new ArrayList<>()).add(className.replace('.', '/'));
+  }
+
+  protected void record (State state, List<Path> srcs, Map<Path,List<String>> generated)
+    throws IOException {
+    for (Path src : srcs) {
+      List<String> classes = generated.getOrDefault(
+        src.toAbsolutePath().normalize(), Collections.emptyList());
+      state.sources.put(relative(src), new SourceInfo(src, classes));
+      for (String cname : classes) state.classes.put(
+        cname, new ClassDeps(ClassInfo.read(classFile(cname))));
+    }
+    // we only care about dependencies between classes in this module
+    for (ClassDeps deps : state.classes.values()) deps.retain(state.classes.keySet());
+  }
+
+  /** Computes a hash of everything other than our sources which affects compilation. */
+  protected String stamp () throws IOException {
+    MessageDigest md = Filez.sha1();
+    update(md, System.getProperty("java.version"));
+    for (String opt : _opts) update(md, opt);
+    for (Path path : _classpath) {
+      update(md, path.toString());
+      if (Files.isDirectory(path)) update(md, String.valueOf(newest(path)));
+      else if (Files.exists(path)) update(md, Files.getLastModifiedTime(path).toMillis() + ":" +
+                                          Files.size(path));
+    }
+    return Filez.toHex(md.digest());
+  }
+
+  protected String relative (Path src) {
+    return _javaDir.relativize(src).toString();
+  }
+
+  protected Path classFile (String cname) {
+    return _mod.classesDir().resolve(cname + ".class");
+  }
+
+  protected static class SourceInfo {
+    public long mtime;
+    public final long size;
+    public final String hash;
+    public final List<String> classes;
+
+    public SourceInfo (Path src, List<String> classes) throws IOException {
+      this.mtime = Files.getLastModifiedTime(src).toMillis();
+      this.size = Files.size(src);
+      this.hash = Filez.hash(src);
+      this.classes = classes;
+    }
+
+    public SourceInfo (DataInputStream in) throws IOException {
+      mtime = in.readLong();
+      size = in.readLong();
+      hash = in.readUTF();
+      classes = readList(in);
+    }
+
+    /** Returns true if {@code src} has changed since this info was recorded. Files that were
+      * touched but not modified are not considered changed. */
+    public boolean changed (Path src) throws IOException {
+      long nmtime = Files.getLastModifiedTime(src).toMillis();
+      if (nmtime == mtime && Files.size(src) == size) return false;
+      if (!Filez.hash(src).equals(hash)) return true;
+      mtime = nmtime; // avoid rehashing next time
+      return false;
+    }
+
+    public void write (DataOutputStream out) throws IOException {
+      out.writeLong(mtime);
+      out.writeLong(size);
+      out.writeUTF(hash);
+      writeList(out, classes);
+    }
+  }
+
+  protected static class ClassDeps {
+    public final boolean constants;
+    public final List<String> supers;
+    public final List<String> refs;
+
+    public ClassDeps (ClassInfo info) {
+      constants = info.hasConstants;
+      supers = new ArrayList<>(info.interfaces);
+      if (info.superName != null) supers.add(info.superName);
+      refs = new ArrayList<>(info.refs);
+    }
+
+    public ClassDeps (DataInputStream in) throws IOException {
+      constants = in.readBoolean();
+      supers = readList(in);
+      refs = readList(in);
+    }
+
+    public void retain (Set<String> names) {
+      supers.retainAll(names);
+      refs.retainAll(names);
+    }
+
+    public void write (DataOutputStream out) throws IOException {
+      out.writeBoolean(constants);
+      writeList(out, supers);
+      writeList(out, refs);
+    }
+  }
+
+  protected static class State {
+    public final String stamp;
+    public final Map<String,SourceInfo> sources = new HashMap<>();
+    public final Map<String,ClassDeps> classes = new HashMap<>();
+
+    /** Loads state from {@code file}, returning null if it does not exist or is unreadable. */
+    public static State load (Path file) {
+      try (InputStream in = Files.newInputStream(file)) {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+        if (din.readInt() != VERSION) return null;
+        State state = new State(din.readUTF());
+        for (int ii = 0, ll = din.readInt(); ii < ll; ii++) {
+          state.sources.put(din.readUTF(), new SourceInfo(din));
+        }
+        for (int ii = 0, ll = din.readInt(); ii < ll; ii++) {
+          state.classes.put(din.readUTF(), new ClassDeps(din));
+        }
+        return state;
+      } catch (NoSuchFileException nsfe) {
+        return null;
+      } catch (IOException ioe) {
+        Log.log("Unable to read incremental build state", "file", file, "error", ioe);
+        return null;
+      }
+    }
+
+    public State (String stamp) {
+      this.stamp = stamp;
+    }
+
+    public void save (Path file) throws IOException {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeInt(VERSION);
+        dout.writeUTF(stamp);
+        dout.writeInt(sources.size());
+        for (Map.Entry<String,SourceInfo> entry : sources.entrySet()) {
+          dout.writeUTF(entry.getKey());
+          entry.getValue().write(dout);
+        }
+        dout.writeInt(classes.size());
+        for (Map.Entry<String,ClassDeps> entry : classes.entrySet()) {
+          dout.writeUTF(entry.getKey());
+          entry.getValue().write(dout);
+        }
+        dout.flush();
+      }
+    }
+  }
+
+  protected static List<String> readList (DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> list = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) list.add(in.readUTF());
+    return list;
+  }
+
+  protected static void writeList (DataOutputStream out, List<String> list) throws IOException {
+    out.writeInt(list.size());
+    for (String elem : list) out.writeUTF(elem);
+  }
+
+  private static void update (MessageDigest md, String value) {
+    md.update(value.getBytes(StandardCharsets.UTF_8));
+    md.update((byte)0);
+  }
+
+  private static long newest (Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      return paths.mapToLong(p -> p.toFile().lastModified()).max().orElse(0L);
+    }
+  }
+
+  private static Set<String> union (Collection<String> a, Collection<String> b) {
+    Set<String> union = new HashSet<>(a);
+    union.addAll(b);
+    return union;
+  }
+
+  private final Javac _javac;
+  private final Module _mod;
+  private final List<String> _opts;
+  private final List<Path> _classpath;
+  private final Path _javaDir;
+  private final List<Path> _sources;
+
+  private State _state;
+  private Map<String,Path> _current;
+  private Set<String> _recompile, _stale;
+
+  private static final int VERSION = 1;
+}
@@ -4,13 +4,20 @@
 
 package scaled.pacman;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /** Contains info on a JDK installed on the local machine. */
@@ -21,18 +28,26 @@ public class JDK {
 
   /** All JDKs that could be found on the local machine. */
   public static List<JDK> jdks () {
+    return jdks(null);
+  }
+
+  /** All JDKs that could be found on the local machine. The metadata for each JDK is cached in
+    * {@code cacheFile} (if not null), so that we need only probe JDKs that have been installed or
+    * modified since the cache was written. */
+  public static synchronized List<JDK> jdks (Path cacheFile) {
     if (_jdks == null) {
-      _jdks = new ArrayList<>();
+      List<Path> homes = new ArrayList<>();
       if (isMac) {
-        findJDKs(_jdks, "/Library/Java/JavaVirtualMachines");
-        findJDKs(_jdks, "/System/Library/Java/JavaVirtualMachines");
+        findJDKs(homes, "/Library/Java/JavaVirtualMachines");
+        findJDKs(homes, "/System/Library/Java/JavaVirtualMachines");
       }
       else if (isWin) {} // TODO!
       else if (isLin) {
-        findJDKs(_jdks, "/usr/lib/jvm");
+        findJDKs(homes, "/usr/lib/jvm");
         // TODO: other install dirs on Linux?
       }
       // else halp!
+      _jdks = probe(homes, cacheFile);
 
       // if our running JDK is just a JRE, move it  to the end of the list,
       // otherwise move it to the start of the list
@@ -55,7 +70,10 @@ public class JDK {
   public JDK (Path home) {
     this.home = home;
     Path release = home.resolve("release");
-    if (Files.exists(release)) {
+    if (home.equals(thisHome()) && !Files.exists(release)) {
+      // no need to fork a JVM to find out our own version
+      _releaseData.put("JAVA_VERSION", System.getProperty("java.version"));
+    } else if (Files.exists(release)) {
       try {
         for (String line : Files.readAllLines(home.resolve("release"))) {
           String[] parts = line.split("=", 2);
@@ -110,6 +128,12 @@ public class JDK {
     return home.resolve("src.zip");
   }
 
+  /** Creates a JDK with previously obtained metadata. */
+  public JDK (Path home, Map<String,String> releaseData) {
+    this.home = home;
+    _releaseData.putAll(releaseData);
+  }
+
   @Override public boolean equals (Object other) {
     return (other instanceof JDK) && home.equals(((JDK)other).home);
   }
@@ -123,18 +147,16 @@ public class JDK {
 
   private static List<JDK> _jdks;
 
-  private static void findJDKs (List<JDK> jdks, String dir) {
+  private static void findJDKs (List<Path> homes, String dir) {
     try {
       Path path = Paths.get(dir);
       if (Files.exists(path)) {
         for (Path subdir : Files.list(path).collect(Collectors.toList())) {
           Path real = subdir.toRealPath();
-          if (_jdks.stream().anyMatch(jdk -> jdk.home.equals(real))) {
-            continue;
-          }
-          if (isHome(subdir)) jdks.add(new JDK(real));
+          if (homes.contains(real)) continue;
+          if (isHome(subdir)) homes.add(real);
           Path home = real.resolve("Contents").resolve("Home");
-          if (isHome(home)) jdks.add(new JDK(home));
+          if (isHome(home)) homes.add(home);
         }
       }
     } catch (Exception e) {
@@ -142,6 +164,93 @@ public class JDK {
     }
   }
 
+  // creates JDKs for homes, using the metadata in cacheFile for those that haven't changed since it
+  // was written, and probing the rest in parallel
+  protected static List<JDK> probe (List<Path> homes, Path cacheFile) {
+    Map<Path,String[]> cache = (cacheFile == null) ? new HashMap<>() : readCache(cacheFile);
+    Map<Path,String> stamps = new HashMap<>();
+    JDK[] jdks = new JDK[homes.size()];
+    List<Callable<Void>> probes = new ArrayList<>();
+    for (int ii = 0; ii < jdks.length; ii++) {
+      int idx = ii;
+      Path home = homes.get(ii);
+      String stamp = stamp(home);
+      stamps.put(home, stamp);
+      String[] cached = cache.get(home);
+      if (cached != null && cached[0].equals(stamp)) {
+        Map<String,String> data = new HashMap<>();
+        for (int dd = 1; dd < cached.length; dd++) {
+          String[] kv = cached[dd].split("=", 2);
+          if (kv.length == 2) data.put(kv[0], kv[1]);
+        }
+        jdks[ii] = new JDK(home, data);
+      }
+      else probes.add(() -> { jdks[idx] = new JDK(home); return null; });
+    }
+
+    if (!probes.isEmpty()) {
+      // probing may fork a JVM, so do them all at once
+      ExecutorService exec = Executors.newFixedThreadPool(Math.min(probes.size(), MAX_PROBES));
+      try { exec.invokeAll(probes); }
+      catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+      finally { exec.shutdown(); }
+    }
+
+    List<JDK> result = new ArrayList<>();
+    for (JDK jdk : jdks) if (jdk != null) result.add(jdk);
+    if (cacheFile != null && (!probes.isEmpty() || cache.size() != result.size())) {
+      writeCache(cacheFile, result, stamps);
+    }
+    return result;
+  }
+
+  // a JDK is reprobed if its home directory or its java binary has been modified
+  private static String stamp (Path home) {
+    try {
+      return Files.getLastModifiedTime(home).toMillis() + ":" +
+        Files.getLastModifiedTime(home.resolve("bin").resolve("java")).toMillis();
+    } catch (IOException ioe) {
+      return "?";
+    }
+  }
+
+  private static Map<Path,String[]> readCache (Path cacheFile) {
+    Map<Path,String[]> cache = new HashMap<>();
+    try {
+      if (Files.exists(cacheFile)) {
+        for (String line : Files.readAllLines(cacheFile, StandardCharsets.UTF_8)) {
+          String[] bits = line.split("\t");
+          if (bits.length >= 2) cache.put(Paths.get(bits[0]), Arrays.copyOfRange(
+            bits, 1, bits.length));
+        }
+      }
+    } catch (IOException ioe) {
+      Log.log("Failed to read JDK cache", "file", cacheFile, "error", ioe);
+    }
+    return cache;
+  }
+
+  private static void writeCache (Path cacheFile, List<JDK> jdks, Map<Path,String> stamps) {
+    List<String> lines = new ArrayList<>();
+    for (JDK jdk : jdks) {
+      StringBuilder sb = new StringBuilder().append(jdk.home).append('\t').
+        append(stamps.get(jdk.home));
+      for (Map.Entry<String,String> entry : jdk._releaseData.entrySet()) {
+        sb.append('\t').append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      lines.add(sb.toString());
+    }
+    try {
+      Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ioe) {
+      Log.log("Failed to write JDK cache", "file", cacheFile, "error", ioe);
+    }
+  }
+
+  private static final int MAX_PROBES = 8;
+
   private static boolean isHome (Path home) {
     return Files.exists(home.resolve("bin").resolve("javac"));
   }
@@ -0,0 +1,341 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes jar files in process. Entries are written in sorted order and (optionally) with a fixed
+ * timestamp, so that building the same classes twice yields byte-identical jars. Files are read,
+ * checksummed and compressed in parallel, ahead of the (necessarily serial) writer.
+ */
+public class JarWriter {
+
+  /** Whether all entries are stored uncompressed. Stored jars are larger, but classes can be loaded
+    * from them without inflating. Entries with already compressed contents are always stored. */
+  public final boolean stored;
+
+  /** Whether entries are stamped with a fixed time rather than the modification time of the file
+    * from which they were created. */
+  public final boolean fixedTimes;
+
+  public JarWriter (boolean stored, boolean fixedTimes) {
+    this.stored = stored;
+    this.fixedTimes = fixedTimes;
+  }
+
+  /** Writes the contents of {@code sourceDir} to {@code targetJar}, overwriting it if it exists. */
+  public void write (Path sourceDir, Path targetJar) throws IOException {
+    write(Collections.singletonList(sourceDir), targetJar);
+  }
+
+  /** Writes the merged contents of {@code sourceDirs} to {@code targetJar}, overwriting it if it
+    * exists. If the same file exists in more than one directory, the first one wins. */
+  public void write (List<Path> sourceDirs, Path targetJar) throws IOException {
+    Map<String,Entry> byName = new HashMap<>();
+    for (Path sourceDir : sourceDirs) {
+      Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) {
+          if (!dir.equals(sourceDir)) add(new Entry(sourceDir, dir, attrs));
+          return FileVisitResult.CONTINUE;
+        }
+        @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+          add(new Entry(sourceDir, file, attrs));
+          return FileVisitResult.CONTINUE;
+        }
+        private void add (Entry entry) {
+          // we generate our own manifest (as does 'jar' absent -m) and write META-INF/ with it
+          if (entry.name.equals(JarFile.MANIFEST_NAME) || entry.name.equals(META_INF)) return;
+          byName.putIfAbsent(entry.name, entry);
+        }
+      });
+    }
+    List<Entry> entries = new ArrayList<>(byName.values());
+    entries.sort((e1, e2) -> e1.name.compareTo(e2.name));
+
+    try (OutputStream fout = Files.newOutputStream(targetJar);
+         ZipOut out = new ZipOut(new BufferedOutputStream(fout, 65536))) {
+      writeManifest(out);
+
+      // load and compress entries on the pool, staying a bounded distance ahead of the writer
+      ForkJoinPool pool = Filez.pool();
+      int window = 4*pool.getParallelism();
+      Deque<CompletableFuture<Entry>> loading = new ArrayDeque<>();
+      int next = 0;
+      while (next < entries.size() || !loading.isEmpty()) {
+        while (next < entries.size() && loading.size() < window) {
+          Entry entry = entries.get(next++);
+          boolean deflate = deflate(entry.name);
+          loading.add(CompletableFuture.supplyAsync(() -> entry.load(deflate), pool));
+        }
+        Entry entry;
+        try { entry = loading.remove().join(); }
+        catch (CompletionException ce) {
+          if (ce.getCause() instanceof UncheckedIOException) throw
+            ((UncheckedIOException)ce.getCause()).getCause();
+          throw ce;
+        }
+        out.write(entry, fixedTimes ? FIXED_TIME : entry.mtime);
+      }
+    }
+  }
+
+  protected void writeManifest (ZipOut out) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(new Attributes.Name("Created-By"), "pacman");
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    manifest.write(bout);
+    long time = fixedTimes ? FIXED_TIME : System.currentTimeMillis();
+    out.write(new Entry(META_INF, null), time);
+    out.write(new Entry(JarFile.MANIFEST_NAME, bout.toByteArray()).encode(!stored), time);
+  }
+
+  /** Returns whether the entry named {@code name} should be deflated. */
+  protected boolean deflate (String name) {
+    return !stored && !name.endsWith("/") && !isCompressed(name);
+  }
+
+  protected static boolean isCompressed (String name) {
+    int didx = name.lastIndexOf('.');
+    return didx >= 0 && COMPRESSED_SUFFS.contains(name.substring(didx+1).toLowerCase());
+  }
+
+  protected static class Entry {
+    public final String name;
+    public final Path file; // null for directories and generated entries
+    public final long mtime;
+    /** The bytes to be written to the jar, compressed if {@link #deflated}. */
+    public byte[] data = new byte[0];
+    public boolean deflated;
+    public int size;
+    public long crc;
+
+    public Entry (Path root, Path path, BasicFileAttributes attrs) {
+      // zip entry names always use / as a separator
+      String name = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+      this.name = attrs.isDirectory() ? name + "/" : name;
+      this.file = attrs.isDirectory() ? null : path;
+      this.mtime = attrs.lastModifiedTime().toMillis();
+    }
+
+    /** Creates a generated entry with {@code contents} (or a directory if null). */
+    public Entry (String name, byte[] contents) {
+      this.name = name;
+      this.file = null;
+      this.mtime = 0L;
+      if (contents != null) data = contents;
+    }
+
+    /** Reads, checksums and (if {@code deflate}) compresses the contents of our file. */
+    public Entry load (boolean deflate) {
+      if (file == null) return this;
+      try { data = Files.readAllBytes(file); }
+      catch (IOException ioe) { throw new UncheckedIOException(ioe); }
+      return encode(deflate);
+    }
+
+    /** Checksums and (if {@code deflate}) compresses our contents. */
+    public Entry encode (boolean deflate) {
+      size = data.length;
+      CRC32 crc32 = new CRC32();
+      crc32.update(data, 0, data.length);
+      crc = crc32.getValue();
+      if (deflate) {
+        Deflater def = DEFLATERS.get();
+        def.reset();
+        def.setInput(data);
+        def.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length/2));
+        byte[] buf = new byte[8192];
+        while (!def.finished()) out.write(buf, 0, def.deflate(buf));
+        data = out.toByteArray();
+        deflated = true;
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Writes the records of a zip file from entries that have already been checksummed and (if
+   * needed) compressed. {@link java.util.zip.ZipOutputStream} insists on compressing each entry
+   * itself as it is written, which would leave us deflating every entry serially.
+   *
+   * <p>Like {@code ZipOutputStream}, we switch to zip64 records when an archive has 65535 or more
+   * entries, or grows past 4GB. An entry's data is held in memory, so its sizes always fit the
+   * regular fields; only its offset may need a zip64 extra field.</p>
+   */
+  protected static class ZipOut implements AutoCloseable {
+
+    public ZipOut (OutputStream out) {
+      _out = out;
+    }
+
+    /** Writes {@code entry}'s local header and data, stamped with {@code time}. */
+    public void write (Entry entry, long time) throws IOException {
+      byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+      long dosTime = dosTime(time);
+      // local file header
+      u32(_out, 0x04034b50L);
+      header(_out, entry, name, dosTime, version(entry), 0);
+      _out.write(name);
+      _out.write(entry.data);
+      // central directory header, written once all entries are written; an entry that starts
+      // past 4GB records its offset in a zip64 extra field
+      boolean zip64 = _offset >= ZIP64_MAGIC;
+      int version = zip64 ? ZIP64_VERSION : version(entry);
+      u32(_central, 0x02014b50L);
+      u16(_central, version); // version made by
+      header(_central, entry, name, dosTime, version, zip64 ? 12 : 0);
+      u16(_central, 0); // comment length
+      u16(_central, 0); // disk number start
+      u16(_central, 0); // internal attributes
+      u32(_central, 0); // external attributes
+      u32(_central, zip64 ? ZIP64_MAGIC : _offset);
+      _central.write(name);
+      if (zip64) {
+        u16(_central, 0x0001); // zip64 extra field tag
+        u16(_central, 8);
+        u64(_central, _offset);
+      }
+      _offset += 30 + name.length + entry.data.length;
+      _count += 1;
+    }
+
+    @Override public void close () throws IOException {
+      long cenOffset = _offset, cenSize = _central.size();
+      _central.writeTo(_out);
+      if (_count >= 0xFFFF || cenSize >= ZIP64_MAGIC || cenOffset >= ZIP64_MAGIC) {
+        // zip64 end of central directory record
+        u32(_out, 0x06064b50L);
+        u64(_out, 44); // size of the rest of this record
+        u16(_out, ZIP64_VERSION); // version made by
+        u16(_out, ZIP64_VERSION); // version needed to extract
+        u32(_out, 0); // number of this disk
+        u32(_out, 0); // disk with the central directory
+        u64(_out, _count);
+        u64(_out, _count);
+        u64(_out, cenSize);
+        u64(_out, cenOffset);
+        // zip64 end of central directory locator
+        u32(_out, 0x07064b50L);
+        u32(_out, 0); // disk with the zip64 end of central directory
+        u64(_out, cenOffset + cenSize);
+        u32(_out, 1); // total number of disks
+      }
+      // end of central directory record; fields that overflow defer to the zip64 record
+      u32(_out, 0x06054b50L);
+      u16(_out, 0); // number of this disk
+      u16(_out, 0); // disk with the central directory
+      u16(_out, Math.min(_count, 0xFFFF));
+      u16(_out, Math.min(_count, 0xFFFF));
+      u32(_out, Math.min(cenSize, ZIP64_MAGIC));
+      u32(_out, Math.min(cenOffset, ZIP64_MAGIC));
+      u16(_out, 0); // comment length
+      _out.close();
+    }
+
+    // the fields shared by the local and central headers
+    private static void header (OutputStream out, Entry entry, byte[] name, long dosTime,
+                                int version, int extraLength) throws IOException {
+      u16(out, version); // version needed to extract
+      u16(out, UTF8_FLAG);
+      u16(out, entry.deflated ? DEFLATED : STORED);
+      u32(out, dosTime);
+      u32(out, entry.crc);
+      u32(out, entry.data.length);
+      u32(out, entry.size);
+      u16(out, name.length);
+      u16(out, extraLength);
+    }
+
+    private static int version (Entry entry) {
+      return entry.deflated ? 20 : 10;
+    }
+
+    private static void u16 (OutputStream out, int value) throws IOException {
+      out.write(value & 0xFF);
+      out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void u32 (OutputStream out, long value) throws IOException {
+      u16(out, (int)(value & 0xFFFF));
+      u16(out, (int)((value >>> 16) & 0xFFFF));
+    }
+
+    private static void u64 (OutputStream out, long value) throws IOException {
+      u32(out, value & 0xFFFFFFFFL);
+      u32(out, value >>> 32);
+    }
+
+    private final OutputStream _out;
+    private final ByteArrayOutputStream _central = new ByteArrayOutputStream();
+    private long _offset;
+    private int _count;
+
+    private static final int UTF8_FLAG = 0x800;
+    private static final int STORED = 0, DEFLATED = 8;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_VERSION = 45;
+  }
+
+  /** Converts {@code time} to an MS-DOS date and time, as recorded by zip entries. Like zip, we
+    * use the local time zone and clamp times before 1980 to the DOS epoch. */
+  protected static long dosTime (long time) {
+    Calendar cal = new GregorianCalendar();
+    cal.setTimeInMillis(time);
+    int year = cal.get(Calendar.YEAR);
+    if (year < 1980) return (1 << 21) | (1 << 16);
+    return ((long)(year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) |
+      (cal.get(Calendar.DAY_OF_MONTH) << 16) | (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+      (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+  }
+
+  private static final String META_INF = "META-INF/";
+
+  // our fixed time is the DOS epoch (January 1, 1980), the earliest time a zip entry can record;
+  // zip stores timestamps as local date-time, so we obtain it in the local time zone to ensure
+  // that the same bytes are written regardless of where we're running
+  private static final long FIXED_TIME =
+    new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+  private static final Set<String> COMPRESSED_SUFFS = new HashSet<>(Arrays.asList(
+    "jar", "zip", "gz", "tgz", "bz2", "xz", "png", "jpg", "jpeg", "gif", "ico", "woff", "woff2",
+    "mp3", "ogg"));
+
+  // each pool thread reuses one deflater (and its native buffers) across entries
+  private static final ThreadLocal<Deflater> DEFLATERS =
+    ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+}
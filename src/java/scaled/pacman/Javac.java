@@ -0,0 +1,254 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles Java source in this JVM via {@code javax.tools}, rather than forking {@code javac} for
+ * every module. File managers are pooled and reused across compiles, which means the listings
+ * javac builds for each classpath jar are read once per session rather than once per module.
+ */
+public class Javac {
+
+  /** Notified of each class file generated by a compile. */
+  public static interface Listener {
+    /** Notes that {@code className} (a binary name) was generated from {@code source}. */
+    void generated (String className, Path source);
+  }
+
+  /** Returns true if the in-process compiler can handle {@code opts}. When this returns false, the
+    * caller should fall back to forking {@code javac}. */
+  public boolean canCompile (List<String> opts) {
+    if (_compiler == null || Props.forkJavac) return false;
+    Session sess = acquire();
+    try {
+      for (String opt : opts) {
+        if (!opt.startsWith("-")) continue; // an option argument
+        // -J options configure the JVM of a forked javac, which we cannot honor here
+        if (opt.startsWith("-J")) return false;
+        if (_compiler.isSupportedOption(opt) < 0 && sess.fm.isSupportedOption(opt) < 0) {
+          Log.log("In-process javac does not support option, forking.", "opt", opt);
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      release(sess);
+    }
+  }
+
+  /**
+   * Compiles {@code sources} into {@code outputDir}. Diagnostics are reported via {@link Log}.
+   * @param sourcepath the source path, or null to leave it unspecified (in which case javac will
+   * look for sources on the classpath).
+   * @return true if compilation succeeded, false if it failed.
+   */
+  public boolean compile (List<String> opts, List<Path> classpath, List<Path> sourcepath,
+                          Path outputDir, List<Path> sources) throws IOException {
+    return compile(opts, classpath, sourcepath, outputDir, sources, null);
+  }
+
+  /**
+   * Compiles {@code sources} into {@code outputDir}, reporting each generated class file to
+   * {@code listener} (if it is non-null).
+   * @see #compile(List,List,List,Path,List)
+   */
+  public boolean compile (List<String> opts, List<Path> classpath, List<Path> sourcepath,
+                          Path outputDir, List<Path> sources, Listener listener)
+    throws IOException {
+    List<Path> cp = new ArrayList<>();
+    for (Path path : classpath) cp.add(moduleClasses(path));
+
+    Session sess = acquire();
+    boolean clean = false;
+    try {
+      sess.validate(cp);
+      StandardJavaFileManager fm = sess.fm;
+      fm.setLocation(StandardLocation.CLASS_PATH, toFiles(cp));
+      fm.setLocation(StandardLocation.CLASS_OUTPUT, toFiles(outputDir));
+      if (sourcepath != null) fm.setLocation(StandardLocation.SOURCE_PATH, toFiles(sourcepath));
+      else fm.setLocation(StandardLocation.SOURCE_PATH, null);
+
+      List<File> srcFiles = new ArrayList<>();
+      for (Path src : sources) srcFiles.add(src.toFile());
+      Iterable<? extends JavaFileObject> units = fm.getJavaFileObjectsFromFiles(srcFiles);
+
+      StringWriter out = new StringWriter();
+      // javac never checks for interruption, so we check whenever it consults the file manager
+      JavaFileManager tfm = new ForwardingJavaFileManager<StandardJavaFileManager>(fm) {
+        @Override public Iterable<JavaFileObject> list (
+          Location location, String pkg, Set<JavaFileObject.Kind> kinds, boolean recurse)
+        throws IOException {
+          checkInterrupted();
+          return super.list(location, pkg, kinds, recurse);
+        }
+        @Override public JavaFileObject getJavaFileForOutput (
+          Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        throws IOException {
+          checkInterrupted();
+          if (listener != null && kind == JavaFileObject.Kind.CLASS && sibling != null &&
+              "file".equals(sibling.toUri().getScheme())) {
+            listener.generated(className, Paths.get(sibling.toUri()));
+          }
+          return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+      };
+      boolean ok;
+      try {
+        ok = _compiler.getTask(out, tfm, LOGGER, opts, null, units).call();
+      } catch (RuntimeException re) {
+        // javac wraps exceptions thrown by the file manager
+        if (!(re instanceof CancellationException || re.getCause() instanceof
+              CancellationException)) throw re;
+        throw new InterruptedIOException("Interrupted compiling into " + outputDir);
+      }
+      for (String line : out.toString().split("\\R")) if (line.length() > 0) Log.log(line);
+      clean = true;
+      return ok;
+
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      // getTask throws IAE for invalid options, and javac reports some internal failures as ISE
+      Log.log("javac: " + e.getMessage());
+      return false;
+
+    } finally {
+      // if javac choked, don't trust the state of this file manager going forward
+      if (clean) release(sess);
+      else sess.close();
+    }
+  }
+
+  /** Closes all pooled file managers. */
+  public void close () {
+    synchronized (_idle) {
+      for (Session sess : _idle) sess.close();
+      _idle.clear();
+    }
+  }
+
+  protected static class Session {
+    public StandardJavaFileManager fm;
+
+    public Session (JavaCompiler compiler) {
+      _compiler = compiler;
+      fm = compiler.getStandardFileManager(LOGGER, Locale.getDefault(), null);
+    }
+
+    /** Checks that no jar that this session's file manager has previously opened has changed since
+      * it was opened. If one has, the file manager's cached listing is stale so we start afresh. */
+    public void validate (List<Path> classpath) throws IOException {
+      boolean stale = false;
+      for (Path path : classpath) {
+        if (!Files.isRegularFile(path)) continue;
+        String stamp = Files.getLastModifiedTime(path).toMillis() + ":" + Files.size(path);
+        String ostamp = _stamps.put(path, stamp);
+        stale = stale || (ostamp != null && !ostamp.equals(stamp));
+      }
+      if (stale) {
+        Pacman.debug("Classpath jar changed, flushing javac file manager.");
+        close();
+        fm = _compiler.getStandardFileManager(LOGGER, Locale.getDefault(), null);
+        _stamps.clear();
+        validate(classpath);
+      }
+    }
+
+    public void close () {
+      try { fm.close(); }
+      catch (IOException ioe) { Log.log("Failed to close javac file manager", ioe); }
+    }
+
+    private final JavaCompiler _compiler;
+    private final Map<Path,String> _stamps = new HashMap<>();
+  }
+
+  protected Session acquire () {
+    synchronized (_idle) {
+      if (!_idle.isEmpty()) return _idle.pop();
+    }
+    return new Session(_compiler);
+  }
+
+  protected void release (Session sess) {
+    synchronized (_idle) {
+      _idle.push(sess);
+    }
+  }
+
+  /** Abandons the current compile (via {@link CancellationException}) if we've been interrupted. */
+  protected static void checkInterrupted () {
+    // we're interrupted when a concurrent build fails, in which case we abandon this compile
+    if (Thread.currentThread().isInterrupted()) throw new CancellationException();
+  }
+
+  /** Module jars are rewritten as the modules that produce them are rebuilt, so when a module's
+    * {@code classes} directory is available we compile against that instead. Directory listings are
+    * not cached by javac, which keeps the cached jar listings limited to jars that don't change. */
+  protected static Path moduleClasses (Path path) {
+    if (!path.getFileName().toString().equals("module.jar")) return path;
+    Path classes = path.resolveSibling("classes");
+    return Files.isDirectory(classes) ? classes : path;
+  }
+
+  protected static List<File> toFiles (Path path) {
+    List<File> files = new ArrayList<>();
+    files.add(path.toFile());
+    return files;
+  }
+
+  protected static List<File> toFiles (List<Path> paths) {
+    List<File> files = new ArrayList<>();
+    for (Path path : paths) files.add(path.toFile());
+    return files;
+  }
+
+  protected static String kind (Diagnostic.Kind kind) {
+    switch (kind) {
+    case ERROR: return "error";
+    case WARNING: case MANDATORY_WARNING: return "warning";
+    default: return "note";
+    }
+  }
+
+  private final JavaCompiler _compiler = ToolProvider.getSystemJavaCompiler();
+  private final Deque<Session> _idle = new ArrayDeque<>();
+
+  private static final DiagnosticListener<JavaFileObject> LOGGER = diag -> {
+    StringBuilder sb = new StringBuilder();
+    if (diag.getSource() != null) {
+      sb.append(diag.getSource().getName());
+      if (diag.getLineNumber() != Diagnostic.NOPOS) sb.append(":").append(diag.getLineNumber());
+      sb.append(": ");
+    }
+    sb.append(kind(diag.getKind())).append(": ").append(diag.getMessage(null));
+    Log.log(sb.toString());
+  };
+}
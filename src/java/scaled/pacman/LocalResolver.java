@@ -0,0 +1,414 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Resolves Maven depends by reading POMs directly from the local repository, without involving
+ * the dependency manager (which checks remote repositories for metadata, and may wait on network
+ * timeouts to do so). This handles parent POMs, properties, dependency management (including
+ * imported BOMs), scopes, optional depends and exclusions, and resolves version conflicts like
+ * Maven does: the version nearest the root wins, and the first declared wins among equals. As with
+ * the dependency manager, the dependency management of each requested artifact's POM applies to
+ * that artifact's whole subtree, and overrides versions declared farther down.
+ *
+ * <p>If resolution needs a POM or artifact that isn't in the local repository, or a POM uses a
+ * feature we don't model (version ranges, snapshots, relocations, unresolvable properties,
+ * profiles with depends), we throw {@link Miss} and the caller falls back to the dependency
+ * manager.</p>
+ */
+public class LocalResolver {
+
+  /** Thrown when depends can't be resolved from the local repository alone. */
+  public static class Miss extends Exception {
+    public Miss (String message) {
+      super(message);
+    }
+  }
+
+  /** Thrown when a POM is missing from the local repository. */
+  public static class MissingPom extends Miss {
+    /** The id of the missing POM. */
+    public final RepoId id;
+
+    public MissingPom (RepoId id) {
+      super("No local POM for " + id.groupId + ":" + id.artifactId + ":" + id.version);
+      this.id = id;
+    }
+  }
+
+  /** Identifies the way we resolve depends. Bump this when it changes, so that resolutions
+    * recorded by an earlier version aren't reused. */
+  public static final int VERSION = 2;
+
+  public LocalResolver (Path m2repo) {
+    _m2repo = m2repo;
+  }
+
+  /** Resolves {@code ids} and their transitive depends.
+    * @return the resolved artifacts, in the order the dependency manager would report them.
+    * @throws Miss if anything needed is missing from the local repository. */
+  public synchronized Map<RepoId,Path> resolve (List<RepoId> ids) throws Miss {
+    Map<RepoId,Path> results = new LinkedHashMap<>();
+    for (RepoId id : walk(ids, null)) {
+      Path path = _m2repo.resolve(Downloader.relPath(id));
+      if (!Files.exists(path)) throw new Miss("No local artifact for " + id);
+      results.put(id, path);
+    }
+    return results;
+  }
+
+  /** Returns the ids of the POMs needed to resolve {@code ids} that are missing from the local
+    * repository. A missing POM hides the depends below it, so once these are fetched there may be
+    * more missing POMs to fetch.
+    * @throws Miss if resolution needs something we don't model (see {@link #resolve}). */
+  public synchronized Set<RepoId> missingPoms (List<RepoId> ids) throws Miss {
+    Set<RepoId> missing = new LinkedHashSet<>();
+    walk(ids, missing);
+    return missing;
+  }
+
+  /** Returns the artifacts to which {@code ids} resolve, whether or not they are in the local
+    * repository. All of the POMs needed to resolve them must be.
+    * @throws Miss if a POM is missing or resolution needs something we don't model. */
+  public synchronized Set<RepoId> artifacts (List<RepoId> ids) throws Miss {
+    return walk(ids, null);
+  }
+
+  // resolves ids to the winning artifacts, in the order the dependency manager would report them;
+  // if missing is non-null, we add missing POMs to it and skip what lies below them, otherwise we
+  // throw MissingPom
+  protected Set<RepoId> walk (List<RepoId> ids, Set<RepoId> missing) throws Miss {
+    // walk the graph breadth first, so that the first version we see of an artifact is the
+    // nearest, and is the one that wins; exclusions prune a path before it can win, so an artifact
+    // excluded on its nearest path is still reached via any farther path that doesn't exclude it,
+    // but the winner's descendants are subject to the exclusions of the winner's path only (as
+    // with mvn, whose dependency:tree agrees with us on the graphs in LocalResolverTest)
+    Map<String,Dep> winners = new LinkedHashMap<>();
+    Map<Dep,List<Dep>> children = new HashMap<>();
+    List<Dep> roots = new ArrayList<>();
+    Deque<Dep> queue = new ArrayDeque<>();
+    for (RepoId id : ids) {
+      Dep root = new Dep(id.groupId, id.artifactId, id.version, id.kind, id.classifier);
+      roots.add(root);
+      queue.add(root);
+    }
+    while (!queue.isEmpty()) {
+      Dep dep = queue.poll();
+      if (winners.containsKey(dep.conflictKey())) continue; // a nearer version won
+      winners.put(dep.conflictKey(), dep);
+      List<Dep> kids = new ArrayList<>();
+      children.put(dep, kids);
+      Map<String,Dep> mgmt;
+      List<Dep> deps;
+      try {
+        Pom pom = pom(dep.groupId, dep.artifactId, dep.version);
+        // Aether's (classic) dependency manager collects management from the POMs of the
+        // requested artifacts only, and applies it to everything below them; deeper POMs'
+        // management just fills in their own depends' missing versions (see Pom.dependencies)
+        mgmt = dep.mgmt != null ? dep.mgmt : pom.management();
+        deps = pom.dependencies();
+      } catch (MissingPom mp) {
+        if (missing == null) throw mp;
+        missing.add(mp.id);
+        continue;
+      }
+      for (Dep kid : deps) {
+        Dep mdep = mgmt.get(kid.conflictKey());
+        if (mdep != null) kid = kid.managed(mdep);
+        if (kid.optional || !TRANSITIVE_SCOPES.contains(kid.scope) || dep.excludes(kid)) continue;
+        if (kid.version.startsWith("[") || kid.version.startsWith("(") ||
+            kid.version.endsWith("-SNAPSHOT")) throw new Miss("Unsupported version of " + kid);
+        kid.exclusions.addAll(dep.exclusions); // exclusions apply along this path only
+        kid.mgmt = mgmt;
+        kids.add(kid);
+        queue.add(kid);
+      }
+    }
+
+    Set<RepoId> results = new LinkedHashSet<>();
+    for (Dep root : roots) collect(root, winners, children, results);
+    return results;
+  }
+
+  // adds dep and its (winning) descendants to results in preorder
+  protected void collect (Dep dep, Map<String,Dep> winners, Map<Dep,List<Dep>> children,
+                          Set<RepoId> results) throws Miss {
+    if (winners.get(dep.conflictKey()) != dep) return;
+    RepoId id = dep.toRepoId();
+    if (!results.add(id)) return;
+    for (Dep kid : children.get(dep)) collect(kid, winners, children, results);
+  }
+
+  /** A dependency declared in a POM (or requested by the caller). */
+  protected static class Dep {
+    public final String groupId, artifactId, version, type, classifier;
+    public String scope = "compile";
+    public boolean optional;
+    public final List<String> exclusions = new ArrayList<>(); // groupId:artifactId
+    /** The dependency management in force below this depend, or null for a requested one. */
+    public Map<String,Dep> mgmt;
+
+    public Dep (String groupId, String artifactId, String version, String type,
+                String classifier) {
+      this.groupId = groupId;
+      this.artifactId = artifactId;
+      this.version = version;
+      this.type = type == null ? "jar" : type;
+      this.classifier = classifier;
+    }
+
+    /** The key on which versions conflict; also the key for dependency management. */
+    public String conflictKey () {
+      return groupId + ":" + artifactId + ":" + type + ":" + (classifier == null ? "" : classifier);
+    }
+
+    /** Returns a copy of this depend with the version and exclusions managed by {@code mdep}. */
+    public Dep managed (Dep mdep) {
+      Dep dep = new Dep(groupId, artifactId, mdep.version == null ? version : mdep.version,
+                        type, classifier);
+      dep.scope = scope;
+      dep.optional = optional;
+      dep.exclusions.addAll(exclusions);
+      dep.exclusions.addAll(mdep.exclusions);
+      return dep;
+    }
+
+    public boolean excludes (Dep dep) {
+      for (String excl : exclusions) {
+        String[] bits = excl.split(":");
+        if ((bits[0].equals("*") || bits[0].equals(dep.groupId)) &&
+            (bits[1].equals("*") || bits[1].equals(dep.artifactId))) return true;
+      }
+      return false;
+    }
+
+    public RepoId toRepoId () throws Miss {
+      switch (type) {
+      case "jar": case "pom": case "maven-plugin": case "bundle":
+        return new RepoId(groupId, artifactId, version, type.equals("pom") ? "pom" : "jar",
+                          classifier);
+      case "test-jar":
+        return new RepoId(groupId, artifactId, version, "jar", "tests");
+      default: throw new Miss("Unsupported dependency type " + type + " of " + this);
+      }
+    }
+
+    @Override public String toString () {
+      return groupId + ":" + artifactId + ":" + version;
+    }
+  }
+
+  /** A POM, with its parents' configuration merged in. */
+  protected class Pom {
+    public final String coord;
+    public final Map<String,String> props = new HashMap<>();
+    // raw (uninterpolated) depends, keyed by conflict key
+    public final Map<String,Element> deps = new LinkedHashMap<>();
+    public final Map<String,Element> managed = new LinkedHashMap<>();
+
+    public Pom (String coord) {
+      this.coord = coord;
+    }
+
+    /** Returns this POM's dependency management, with properties expanded and BOMs imported. */
+    public Map<String,Dep> management () throws Miss {
+      Map<String,Dep> mgmt = new LinkedHashMap<>();
+      for (Element elem : managed.values()) {
+        Dep dep;
+        // a broken entry is only a problem if we need it, in which case we'll lack a version
+        try { dep = toDep(elem); }
+        catch (Miss miss) { continue; }
+        if ("import".equals(dep.scope) && "pom".equals(dep.type)) {
+          for (Map.Entry<String,Dep> entry : pom(dep.groupId, dep.artifactId, dep.version).
+                 management().entrySet()) mgmt.putIfAbsent(entry.getKey(), entry.getValue());
+        } else mgmt.put(dep.conflictKey(), dep);
+      }
+      return mgmt;
+    }
+
+    /** Returns this POM's depends, with properties expanded and management applied. Depends
+      * which are clearly not transitive (test depends, for example) are omitted. */
+    public List<Dep> dependencies () throws Miss {
+      Map<String,Dep> mgmt = management();
+      List<Dep> deps = new ArrayList<>();
+      for (Element elem : this.deps.values()) {
+        // skip these before expanding them, as they often use properties we can't resolve
+        if (NON_TRANSITIVE_SCOPES.contains(text(elem, "scope")) ||
+            "true".equals(text(elem, "optional"))) continue;
+        Dep dep = toDep(elem);
+        Dep mdep = mgmt.get(dep.conflictKey());
+        if (mdep != null) {
+          Dep merged = new Dep(dep.groupId, dep.artifactId,
+                               dep.version == null ? mdep.version : dep.version,
+                               dep.type, dep.classifier);
+          merged.scope = text(elem, "scope") != null ? dep.scope : mdep.scope;
+          merged.optional = dep.optional;
+          merged.exclusions.addAll(dep.exclusions.isEmpty() ? mdep.exclusions : dep.exclusions);
+          dep = merged;
+        }
+        if (dep.version == null) throw new Miss("No version for " + dep + " in " + coord);
+        deps.add(dep);
+      }
+      return deps;
+    }
+
+    protected Dep toDep (Element elem) throws Miss {
+      Dep dep = new Dep(expand(text(elem, "groupId")), expand(text(elem, "artifactId")),
+                        expand(text(elem, "version")), expand(text(elem, "type")),
+                        expand(text(elem, "classifier")));
+      String scope = expand(text(elem, "scope"));
+      if (scope != null) dep.scope = scope;
+      dep.optional = "true".equals(expand(text(elem, "optional")));
+      Element excls = child(elem, "exclusions");
+      if (excls != null) for (Element excl : children(excls, "exclusion")) {
+        dep.exclusions.add(expand(text(excl, "groupId")) + ":" + expand(text(excl, "artifactId")));
+      }
+      return dep;
+    }
+
+    protected String expand (String value) throws Miss {
+      if (value == null || value.indexOf("${") < 0) return value;
+      for (int ii = 0; ii < 10 && value.indexOf("${") >= 0; ii++) {
+        Matcher m = PROP.matcher(value);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+          String prop = props.get(m.group(1));
+          if (prop == null) prop = System.getProperty(m.group(1));
+          if (prop == null) throw new Miss("Unknown property " + m.group() + " in " + coord);
+          m.appendReplacement(sb, Matcher.quoteReplacement(prop));
+        }
+        m.appendTail(sb);
+        value = sb.toString();
+      }
+      return value;
+    }
+  }
+
+  protected Pom pom (String groupId, String artifactId, String version) throws Miss {
+    String coord = groupId + ":" + artifactId + ":" + version;
+    Pom pom = _poms.get(coord);
+    if (pom == null) {
+      pom = parse(groupId, artifactId, version);
+      _poms.put(coord, pom);
+    }
+    return pom;
+  }
+
+  protected Pom parse (String groupId, String artifactId, String version) throws Miss {
+    String coord = groupId + ":" + artifactId + ":" + version;
+    RepoId pomId = new RepoId(groupId, artifactId, version, "pom");
+    Path file = _m2repo.resolve(Downloader.relPath(pomId));
+    if (!Files.exists(file)) throw new MissingPom(pomId);
+    Element root;
+    try {
+      DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      root = builder.parse(file.toFile()).getDocumentElement();
+    } catch (Exception e) {
+      throw new Miss("Unable to parse " + file + ": " + e);
+    }
+
+    Pom pom = new Pom(coord);
+    Element parent = child(root, "parent");
+    if (parent != null) {
+      Pom ppom = pom(text(parent, "groupId"), text(parent, "artifactId"), text(parent, "version"));
+      pom.props.putAll(ppom.props);
+      pom.deps.putAll(ppom.deps);
+      pom.managed.putAll(ppom.managed);
+      pom.props.put("project.parent.groupId", text(parent, "groupId"));
+      pom.props.put("project.parent.version", text(parent, "version"));
+    }
+    Element dm = child(root, "distributionManagement");
+    if (dm != null && child(dm, "relocation") != null) throw new Miss(coord + " is relocated");
+    // profiles may be activated by the JDK, OS or properties; we don't evaluate activation, so
+    // any that might change depends send us to the dependency manager (which does)
+    Element profiles = child(root, "profiles");
+    if (profiles != null) for (Element profile : children(profiles, "profile")) {
+      if (child(profile, "dependencies") != null || child(profile, "dependencyManagement") != null) {
+        throw new Miss(coord + " has depends in profile " + text(profile, "id"));
+      }
+    }
+
+    Element props = child(root, "properties");
+    if (props != null) for (Element prop : children(props, null)) {
+      pom.props.put(prop.getTagName(), prop.getTextContent().trim());
+    }
+    for (String prefix : new String[] { "project.", "pom.", "" }) {
+      pom.props.put(prefix + "groupId", groupId);
+      pom.props.put(prefix + "artifactId", artifactId);
+      pom.props.put(prefix + "version", version);
+    }
+
+    Element mgmt = child(root, "dependencyManagement");
+    Element mdeps = mgmt == null ? null : child(mgmt, "dependencies");
+    if (mdeps != null) for (Element dep : children(mdeps, "dependency")) {
+      pom.managed.put(rawKey(dep), dep);
+    }
+    Element deps = child(root, "dependencies");
+    if (deps != null) for (Element dep : children(deps, "dependency")) {
+      pom.deps.put(rawKey(dep), dep);
+    }
+    return pom;
+  }
+
+  // keys a depend by its uninterpolated coordinates, so that a POM's depends override those of its
+  // parent (which almost always spell them identically)
+  protected static String rawKey (Element dep) {
+    String type = text(dep, "type"), classifier = text(dep, "classifier");
+    return text(dep, "groupId") + ":" + text(dep, "artifactId") + ":" +
+      (type == null ? "jar" : type) + ":" + (classifier == null ? "" : classifier);
+  }
+
+  protected static Element child (Element elem, String name) {
+    for (Node node = elem.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node instanceof Element && ((Element)node).getTagName().equals(name)) {
+        return (Element)node;
+      }
+    }
+    return null;
+  }
+
+  protected static List<Element> children (Element elem, String name) {
+    List<Element> elems = new ArrayList<>();
+    for (Node node = elem.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node instanceof Element && (name == null || ((Element)node).getTagName().equals(name))) {
+        elems.add((Element)node);
+      }
+    }
+    return elems;
+  }
+
+  protected static String text (Element elem, String name) {
+    Element child = child(elem, name);
+    return child == null ? null : child.getTextContent().trim();
+  }
+
+  private final Path _m2repo;
+  private final Map<String,Pom> _poms = new ConcurrentHashMap<>();
+
+  private static final Pattern PROP = Pattern.compile("\\$\\{([^}]+)\\}");
+  private static final List<String> TRANSITIVE_SCOPES = Arrays.asList("compile", "runtime");
+  private static final List<String> NON_TRANSITIVE_SCOPES = Arrays.asList(
+    "test", "provided", "system");
+}
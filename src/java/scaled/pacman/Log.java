@@ -31,12 +31,30 @@ public class Log {
 
   /** Records {@code msg} to the log. */
   public static void log (String msg) {
-    target.log(msg);
+    target.log(tagged(msg));
   }
 
   /** Records {@code msg} and {@code error} to the log. */
   public static void log (String msg, Throwable error) {
-    target.log(msg, error);
+    target.log(tagged(msg), error);
+  }
+
+  /** Sets the tag that is prefixed to all messages logged by the calling thread, or clears it if
+    * {@code tag} is null. This is used to tell apart output from concurrent builds. */
+  public static void setTag (String tag) {
+    if (tag == null) _tag.remove();
+    else _tag.set(tag);
+  }
+
+  /** Returns true if messages logged by the calling thread are tagged. */
+  public static boolean isTagged () {
+    return _tag.get() != null;
+  }
+
+  /** Returns the tag prefixed to messages logged by the calling thread, or null if they are not
+    * tagged. */
+  public static String tag () {
+    return _tag.get();
   }
 
   public static interface Target {
@@ -46,4 +64,13 @@ public class Log {
     /** Records {@code msg} and {@code error} to the log. */
     void log (String msg, Throwable error);
   }
+
+  private static String tagged (String msg) {
+    String tag = _tag.get();
+    if (tag == null) return msg;
+    String prefix = "[" + tag + "] ";
+    return prefix + msg.replace("\n", "\n" + prefix);
+  }
+
+  private static final ThreadLocal<String> _tag = new ThreadLocal<>();
 }
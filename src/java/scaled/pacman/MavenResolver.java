@@ -7,6 +7,8 @@ package scaled.pacman;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,37 +22,89 @@ public class MavenResolver {
   public static final List<String> REPOS = Arrays.asList(
     "central", "http://repo.gradle.org/gradle/libs-releases-local/");
 
-  public final DependencyManager depmgr = new DependencyManager(RepoId.m2repo, REPOS, false, false) {
-    @Override protected void onRepositoryEvent (String method, RepositoryEvent event) {
-      if (method.endsWith("Invalid") || method.endsWith("Missing")) {
-        Log.log("MavenResolver." + method + " " + event);
-      // } else if (method.equals("artifactResolved")) {
-      //   Log.log("MavenResolver." + method + " " + event);
-      }
-    }
-    @Override protected void onTransferEvent (String method, TransferEvent event) {
-      if (method.endsWith("Corrupted") || method.endsWith("Failed") ||
-          method.endsWith("Succeeded")) {
-        Log.log("MavenResolver." + method + " " + event);
-      }
+  /** Whether to resolve depends from the local repository alone, never contacting a remote one. */
+  public volatile boolean offline = Props.offline;
+
+  /** Resolves depends from the local repository when everything needed is already there. */
+  public final LocalResolver local = new LocalResolver(RepoId.m2repo);
+
+  /** Fetches artifacts into the local repository ahead of the dependency manager. */
+  public final Downloader downloader = new Downloader(
+    RepoId.m2repo, REPOS, Props.downloadThreads, Props.downloadPerRepo);
+
+  /** Downloads, many at a time, what resolving each of {@code lists} will need (transitive
+    * depends included) and {@code known} artifacts, where not yet in the local repository. The
+    * dependency manager would otherwise download them one by one. */
+  public void prefetch (Collection<List<RepoId>> lists, Collection<RepoId> known) {
+    if (!offline && Props.downloadThreads > 0) downloader.fetch(lists, known, local);
+  }
+
+  /** Whether we try to resolve depends via {@link #local} before the dependency manager. The two
+    * may disagree (see {@link LocalResolver}), so results recorded in one mode aren't reused in
+    * the other. */
+  public boolean resolvesLocally () {
+    return offline || Props.localResolve;
+  }
+
+  /** Returns the dependency manager, creating it on first use. Creating it sets up Aether's
+    * repository system, which we needn't pay for when resolving locally or offline. */
+  public synchronized DependencyManager depmgr () {
+    if (_depmgr == null) {
+      _depmgr = new DependencyManager(RepoId.m2repo, REPOS, false, false) {
+        @Override protected void onRepositoryEvent (String method, RepositoryEvent event) {
+          if (method.endsWith("Invalid") || method.endsWith("Missing")) {
+            Log.log("MavenResolver." + method + " " + event);
+          // } else if (method.equals("artifactResolved")) {
+          //   Log.log("MavenResolver." + method + " " + event);
+          }
+        }
+        @Override protected void onTransferEvent (String method, TransferEvent event) {
+          if (method.endsWith("Corrupted") || method.endsWith("Failed") ||
+              method.endsWith("Succeeded")) {
+            Log.log("MavenResolver." + method + " " + event);
+          }
+        }
+      };
     }
-  };
+    return _depmgr;
+  }
 
   public Map<RepoId,Path> resolve (RepoId id) {
     return resolve(Arrays.asList(id));
   }
 
   public Map<RepoId,Path> resolve (List<RepoId> ids) {
+    // if everything we need is already in ~/.m2, we needn't wake the dependency manager
+    if (resolvesLocally()) {
+      Trace.Span span = Trace.begin("maven", "local", "ids", ids);
+      try {
+        return local.resolve(ids);
+      } catch (LocalResolver.Miss miss) {
+        if (offline) {
+          Log.log("MavenResolver.resolve: unable to resolve offline",
+                  "ids", ids, "missing", miss.getMessage());
+          return new LinkedHashMap<>();
+        }
+        Pacman.debug("Resolving " + ids + " via dependency manager: " + miss.getMessage());
+      } finally {
+        span.end();
+      }
+    }
+
     List<Coord> coords = new ArrayList<>();
     for (RepoId id : ids) coords.add(toCoord(id));
+    prefetch(Collections.singletonList(ids), Collections.emptyList());
     Map<RepoId,Path> results = new LinkedHashMap<>();
+    Trace.Span span = Trace.begin("maven", "resolve", "ids", ids);
     try {
-      for (Map.Entry<Coord,Path> entry : depmgr.resolveDependencies(coords).entrySet()) {
+      for (Map.Entry<Coord,Path> entry : depmgr().resolveDependencies(coords).entrySet()) {
         results.put(toRepoId(entry.getKey()), entry.getValue());
       }
     } catch (Throwable t) {
       Log.log("MavenResolver.resolve: dependency manager failure",
               "ids", ids, "coords", coords, t);
+    } finally {
+      span.end();
     }
     return results;
   }
@@ -64,4 +118,6 @@ public class MavenResolver {
   private static RepoId toRepoId (Coord coord) {
     return new RepoId(coord.groupId, coord.artifactId, coord.version, coord.kind, coord.classifier);
   }
+
+  private DependencyManager _depmgr;
 }
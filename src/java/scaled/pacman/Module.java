@@ -44,12 +44,17 @@ public class Module {
 
   /** Creates a module info with the supplied metadata. */
   public Module (Package pkg, String name, Path root, Source source, Config cfg) {
+    this(pkg, name, root, source, inheritDepends(pkg, name, cfg.resolveDepends()));
+  }
+
+  /** Creates a module info with previously parsed metadata (see {@link PackageSnapshot}).
+    * {@code depends} must include any depends inherited from the package. */
+  public Module (Package pkg, String name, Path root, Source source, List<Depend> depends) {
     this.pkg  = pkg;
     this.name = name;
     this.root = root;
     this.source = source;
-    this.depends = cfg.resolveDepends();
-    if (isDefault()) depends.addAll(pkg.depends); // inherit our package depends
+    this.depends = depends;
 
     // compute our local depends
     for (Depend dep : depends) {
@@ -70,14 +75,35 @@ public class Module {
   }
 
   public Depends depends (Depends.Resolver resolve) {
-    if (_depends == null) _depends = new Depends(this, resolve);
-    return _depends;
+    Depends depends = _depends;
+    if (depends == null) {
+      // lock just this module; modules only wait for the modules they depend on, so many threads
+      // can resolve unrelated modules at once without deadlock
+      synchronized (this) {
+        if ((depends = _depends) == null) {
+          Trace.Span span = Trace.begin("depends", "resolve", "module", source);
+          try {
+            _depends = depends = new Depends(this, resolve);
+          } finally {
+            span.end();
+          }
+        }
+      }
+    }
+    return depends;
   }
 
   /** Returns a class loader for loading classes from this module and its depends. */
   public ModuleLoader loader (Depends.Resolver resolve) {
-    if (_loader == null) _loader = new ModuleLoader(resolve, depends(resolve));
-    return _loader;
+    ModuleLoader loader = _loader;
+    if (loader == null) {
+      synchronized (this) {
+        if ((loader = _loader) == null) {
+          _loader = loader = new ModuleLoader(resolve, depends(resolve));
+        }
+      }
+    }
+    return loader;
   }
 
   public Path mainDir () { return root.resolve("src"); }
@@ -102,6 +128,12 @@ public class Module {
     return pkg.name + "#" + name;
   }
 
-  private ModuleLoader _loader;
-  private Depends _depends;
+  private static List<Depend> inheritDepends (Package pkg, String name, List<Depend> depends) {
+    if (name == DEFAULT) depends.addAll(pkg.depends); // inherit our package depends
+    return depends;
+  }
+
+  // these are lazily initialized (using double-checked locking) by loader() and depends()
+  private volatile ModuleLoader _loader;
+  private volatile Depends _depends;
 }
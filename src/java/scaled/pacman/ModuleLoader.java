@@ -4,17 +4,29 @@
 
 package scaled.pacman;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Loads classes for a particular module. A module has two kinds of depends: binary depends, which
@@ -23,6 +35,11 @@ import java.util.Set;
  */
 public class ModuleLoader extends URLClassLoader {
 
+  static {
+    // we lock per class name rather than per loader; many threads load from shared modules at once
+    registerAsParallelCapable();
+  }
+
   public final Module mod;
   public final ClassLoader[] delegates;
 
@@ -66,10 +83,20 @@ public class ModuleLoader extends URLClassLoader {
     }
   }
 
+  /** Returns the packages (in internal form, i.e. {@code foo/bar}) from which classes and resources
+    * may be loaded via this loader's classpath or its delegates, or null if that can't be
+    * determined (because a delegate is not a {@link URLClassLoader}, or the classpath contains a
+    * directory, whose contents may change while we're in use). */
+  public Set<String> packages () {
+    Index index = index();
+    return index.complete ? index.packages : null;
+  }
+
   @Override public URL getResource (String path) {
     URL rsrc = super.getResource(path);
     if (rsrc != null) return rsrc;
-    for (ClassLoader loader : delegates) {
+    for (ClassLoader loader : index().candidates(packageOf(path))) {
+      if (loader == this) continue; // super already checked
       URL drsrc = loader.getResource(path);
       if (drsrc != null) return drsrc;
     }
@@ -78,11 +105,14 @@ public class ModuleLoader extends URLClassLoader {
 
   @Override protected Class<?> findClass (String name) throws ClassNotFoundException {
     // System.err.println("Seeking "+ name +" in "+ source);
-    try { return super.findClass(name); }
-    catch (ClassNotFoundException cnfe) {} // check our module deps
-    for (ClassLoader loader : delegates) {
-      try { return loader.loadClass(name); }
-      catch (ClassNotFoundException cnfe) {} // keep going
+    if (!_missing.contains(name)) {
+      // only ask the loaders that have the class's package; usually that's exactly one
+      for (ClassLoader loader : index().candidates(packageOf(name.replace('.', '/')))) {
+        try { return (loader == this) ? super.findClass(name) : loader.loadClass(name); }
+        catch (ClassNotFoundException cnfe) {} // keep going
+      }
+      // only remember misses if we know everything our loaders can supply
+      if (index().complete) _missing.add(name);
     }
     throw new ClassNotFoundException(source() + " missing dependency: " + name);
   }
@@ -91,6 +121,149 @@ public class ModuleLoader extends URLClassLoader {
     return "ModLoader(" + source() + ")";
   }
 
+  /** Maps packages to the loaders (this one and/or its delegates) that can supply them. */
+  protected static class Index {
+    public final Set<String> packages = new HashSet<>();
+    public final boolean complete;
+
+    public Index (ModuleLoader self) {
+      // entry 0 is us, the rest are our delegates (in order)
+      int count = 1+self.delegates.length;
+      _loaders = new ClassLoader[count];
+      _loaders[0] = self;
+      System.arraycopy(self.delegates, 0, _loaders, 1, self.delegates.length);
+      List<Integer> unknown = new ArrayList<>();
+      for (int ii = 0; ii < count; ii++) {
+        // our own packages come from our classpath; those of delegates include their delegates
+        Set<String> pkgs = (ii == 0) ? urlPackages(self) : packagesOf(_loaders[ii]);
+        if (pkgs == null) { unknown.add(ii); continue; }
+        packages.addAll(pkgs);
+        for (String pkg : pkgs) _owners.computeIfAbsent(pkg, p -> new BitSet()).set(ii);
+      }
+      // loaders whose contents we can't enumerate are asked about everything; we also ask
+      // ourselves about packages we don't know, as our classpath is searched first anyway
+      complete = unknown.isEmpty();
+      if (!unknown.contains(0)) _fallback = new ClassLoader[] { self };
+      for (int ii : unknown) {
+        _fallback = Arrays.copyOf(_fallback, _fallback.length+1);
+        _fallback[_fallback.length-1] = _loaders[ii];
+        for (BitSet owners : _owners.values()) owners.set(ii);
+      }
+    }
+
+    /** Returns the loaders that may have classes or resources in {@code pkg}, in search order. */
+    public ClassLoader[] candidates (String pkg) {
+      ClassLoader[] cands = _candidates.get(pkg);
+      if (cands != null) return cands;
+      BitSet owners = _owners.get(pkg);
+      if (owners == null) return _fallback;
+      cands = new ClassLoader[owners.cardinality()];
+      for (int ii = owners.nextSetBit(0), cc = 0; ii >= 0; ii = owners.nextSetBit(ii+1)) {
+        cands[cc++] = _loaders[ii];
+      }
+      _candidates.put(pkg, cands);
+      return cands;
+    }
+
+    private final ClassLoader[] _loaders;
+    private final Map<String,BitSet> _owners = new HashMap<>();
+    private final Map<String,ClassLoader[]> _candidates = new ConcurrentHashMap<>();
+    private ClassLoader[] _fallback = new ClassLoader[0];
+  }
+
+  protected Index index () {
+    Index index = _index;
+    if (index == null) {
+      synchronized (_indexLock) {
+        if (_index == null) _index = new Index(this);
+        index = _index;
+      }
+    }
+    return index;
+  }
+
+  /** Returns the package of {@code path} (a class or resource path in internal form). */
+  protected static String packageOf (String path) {
+    int sidx = path.lastIndexOf('/');
+    return (sidx < 0) ? "" : path.substring(0, sidx);
+  }
+
+  // returns the packages available via loader, or null if we can't tell
+  private static Set<String> packagesOf (ClassLoader loader) {
+    if (loader instanceof ModuleLoader) return ((ModuleLoader)loader).packages();
+    if (loader instanceof URLClassLoader) return urlPackages((URLClassLoader)loader);
+    return null;
+  }
+
+  // returns the packages in loader's classpath (ignoring its parent), or null if we can't tell
+  private static Set<String> urlPackages (URLClassLoader loader) {
+    Set<String> pkgs = new HashSet<>();
+    for (URL url : loader.getURLs()) {
+      Set<String> upkgs = packagesIn(url);
+      if (upkgs == null) return null;
+      pkgs.addAll(upkgs);
+    }
+    return pkgs;
+  }
+
+  // returns the packages in the jar file or directory at url, or null if we can't tell
+  private static Set<String> packagesIn (URL url) {
+    Path path;
+    try { path = Paths.get(url.toURI()); }
+    catch (Exception e) { return null; }
+    try {
+      // a classes directory (ignore_module_jar mode) may gain packages as it's rebuilt
+      if (Files.isDirectory(path)) return null;
+      if (!Files.exists(path)) return Collections.emptySet();
+      // jars are shared by many loaders and don't change while they're in use, so we remember
+      // their contents (validated by size and mtime, in case they're rebuilt)
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      String stamp = attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+      JarPackages cached = _jarPackages.get(path);
+      if (cached == null || !cached.stamp.equals(stamp)) {
+        _jarPackages.put(path, cached = new JarPackages(stamp, jarPackages(path)));
+      }
+      return cached.packages;
+    } catch (IOException ioe) {
+      Log.log("Unable to index classpath entry", "path", path, "error", ioe);
+      return null;
+    }
+  }
+
+  private static Set<String> jarPackages (Path path) throws IOException {
+    Set<String> pkgs = new HashSet<>();
+    try (ZipFile zip = new ZipFile(path.toFile())) {
+      for (Enumeration<? extends ZipEntry> iter = zip.entries(); iter.hasMoreElements(); ) {
+        ZipEntry entry = iter.nextElement();
+        if (entry.isDirectory()) continue;
+        String pkg = packageOf(entry.getName());
+        pkgs.add(pkg);
+        // a multi-release jar may supply classes from its versioned directories
+        if (pkg.startsWith(VERSIONS)) {
+          int sidx = pkg.indexOf('/', VERSIONS.length());
+          pkgs.add(sidx < 0 ? "" : pkg.substring(sidx+1));
+        }
+      }
+    }
+    return pkgs;
+  }
+
+  private static class JarPackages {
+    public final String stamp;
+    public final Set<String> packages;
+    public JarPackages (String stamp, Set<String> packages) {
+      this.stamp = stamp;
+      this.packages = packages;
+    }
+  }
+
+  private volatile Index _index;
+  private final Object _indexLock = new Object();
+  private final Set<String> _missing = ConcurrentHashMap.newKeySet();
+
+  private static final String VERSIONS = "META-INF/versions/";
+  private static final Map<Path,JarPackages> _jarPackages = new ConcurrentHashMap<>();
+
   private static URL[] toURLs (Path classes, Collection<Path> paths) {
     URL[] urls = new URL[1+paths.size()];
     int ii = 0;
@@ -46,6 +46,10 @@ public class Package {
   public final List<String> scopts;
   public final List<Depend> depends;
 
+  /** The names of the modules declared in {@code package.scaled}, including any that failed to
+    * parse (and are thus missing from {@link #modules}). */
+  public final List<String> moduleNames;
+
   public final List<String> errors;
 
   /** Returns all modules contained in this package. These are returned topologically sorted, such
@@ -121,7 +125,7 @@ public class Package {
     scopts.addAll(cfg.resolve("scopts", Config.WordsP));
 
     depends = cfg.resolveDepends();
-    List<String> mods = cfg.resolve("module", Config.StringListP);
+    moduleNames = cfg.resolve("module", Config.StringListP);
 
     // we're done with the package config, so accumulate any errors
     errors = cfg.finish();
@@ -134,7 +138,7 @@ public class Package {
 
     // this will noop if no modules were defined, but we structure the code this way because we need
     // errors to be initialized before we parse our module configs
-    for (String mname : mods) {
+    for (String mname : moduleNames) {
       // the default module is rooted at the top of the package tree
       Path mroot = root.resolve(mname);
       try {
@@ -147,6 +151,30 @@ public class Package {
     }
   }
 
+  /** Creates a package info with previously parsed metadata (see {@link PackageSnapshot}). Its
+    * modules are added with {@link #addModule}. */
+  public Package (Path root, Source source, String name, String version, String license,
+                  String weburl, String descrip, List<String> jcopts, List<String> scopts,
+                  List<Depend> depends, List<String> moduleNames, List<String> errors) {
+    this.root = root;
+    this.source = source;
+    this.name = name;
+    this.version = version;
+    this.license = license;
+    this.weburl = weburl;
+    this.descrip = descrip;
+    this.jcopts = jcopts;
+    this.scopts = scopts;
+    this.depends = depends;
+    this.moduleNames = moduleNames;
+    this.errors = errors;
+  }
+
+  /** Adds {@code mod} to this package. Only used when restoring a package from a snapshot. */
+  void addModule (Module mod) {
+    _modules.put(mod.name, mod);
+  }
+
   /** Returns sources for all packages on which any module in this package depends. */
   public Set<Source> packageDepends () {
     Set<Source> deps = new HashSet<>();
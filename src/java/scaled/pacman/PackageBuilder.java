@@ -5,18 +5,19 @@
 package scaled.pacman;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Handles the compilation of a package's code.
@@ -30,14 +31,13 @@ public class PackageBuilder {
 
   /** Cleans out the build results directory for all modules in this package. */
   public void clean () throws IOException {
-    for (Module mod : _pkg.modules()) {
-      Filez.deleteAll(mod.classesDir());
-    }
+    for (Module mod : _pkg.modules()) clean(mod);
   }
 
-  /** Cleans and builds all modules in this package. */
+  /** Cleans and builds all modules in this package. Independent modules are built concurrently;
+    * each module is started as soon as the modules on which it depends have been built. */
   public void build () throws IOException {
-    for (Module mod : _pkg.modules()) build(mod);
+    new BuildScheduler(_repo).build(Collections.singletonList(_pkg));
   }
 
   /** Cleans and builds any modules in this package which have source files that have been modified
@@ -48,18 +48,80 @@ public class PackageBuilder {
     return rebuilt;
   }
 
-  protected void build (Module mod) throws IOException {
-    String what = mod.pkg.name;
-    if (!mod.isDefault()) what += "#" + mod.name;
-    Log.log("Building " + what + "...");
+  /** Cleans out the build results directory for {@code mod}. */
+  public void clean (Module mod) throws IOException {
+    Files.deleteIfExists(Snapshot.file(mod));
+    Files.deleteIfExists(IncrementalJava.stateFile(mod));
+    _repo.reaper.trash(mod.classesDir());
+  }
+
+  /** Cleans and builds {@code mod}. The modules on which it depends must already be built. */
+  public void build (Module mod) throws IOException {
+    build(mod, Snapshot.scan(mod.mainDir()), Snapshot.load(mod.mainDir(), Snapshot.file(mod)));
+  }
+
+  /** Rebuilds {@code mod} if any of its source files have been added, removed or modified since it
+    * was last built.
+    * @param changed the paths known to have changed since the last build (as reported by a file
+    * watcher, say), or null if unknown, in which case the module's source tree is rescanned.
+    * @return true if the module was rebuilt. */
+  public boolean rebuild (Module mod, Collection<Path> changed) throws IOException {
+    Path snapFile = Snapshot.file(mod), moduleJar = mod.moduleJar();
+    Snapshot prev = Files.exists(moduleJar) ? Snapshot.load(mod.mainDir(), snapFile) : null;
+    Snapshot snap;
+    if (prev == null) {
+      // we have no record of the last build, so fall back to comparing mtimes against the jar
+      long lastBuild = Files.exists(moduleJar) ? Files.getLastModifiedTime(moduleJar).toMillis() : 0L;
+      if (!Filez.existsNewer(lastBuild, mod.mainDir())) {
+        // record what we have, so that we can use it for subsequent checks
+        if (lastBuild > 0L) Snapshot.scan(mod.mainDir()).save(snapFile, null);
+        return false;
+      }
+      snap = Snapshot.scan(mod.mainDir());
+    } else {
+      if (changed != null && changed.isEmpty()) return false;
+      snap = (changed == null) ? Snapshot.scan(mod.mainDir()) : prev.rescan(changed);
+      if (snap.sameAs(prev)) return false;
+    }
+    if (!Props.incremental || !rebuildIncremental(mod, snap, prev)) build(mod, snap, prev);
+    return true;
+  }
+
+  /** Builds {@code mod}, whose sources are described by {@code snap}. {@code prev} is the snapshot
+    * recorded by the previous build, if any. */
+  protected void build (Module mod, Snapshot snap, Snapshot prev) throws IOException {
+    Path snapFile = Snapshot.file(mod);
+    // if we've built these exact inputs before, we can reuse those results
+    String cacheKey = null;
+    Trace.Span lookup = Trace.begin("cache", "lookup", "module", what(mod));
+    try {
+      cacheKey = Props.buildCache ? cacheKey(mod, snap, prev) : null;
+      if (cacheKey != null && _repo.buildCache.restore(cacheKey, mod, resourcesInJar())) {
+        Files.deleteIfExists(IncrementalJava.stateFile(mod));
+        Fingerprint.record(mod);
+        snap.save(snapFile, prev);
+        Log.log("Restored " + what(mod) + " from build cache.");
+        return;
+      }
+    } finally {
+      lookup.end();
+    }
+
+    Log.log("Building " + what(mod) + "...");
 
     // clear out and (re)create (if needed), the build output directory
-    Filez.deleteAll(mod.classesDir());
+    Files.deleteIfExists(snapFile);
+    Files.deleteIfExists(IncrementalJava.stateFile(mod));
+    // leave previously synced resources in place; we'll only copy those that have changed
+    Set<Path> keep = new HashSet<>();
+    if (prev != null) for (Path file : prev.files(mod.resourcesDir(), "")) {
+      keep.add(resourceTarget(mod, file));
+    }
+    _repo.reaper.trash(mod.classesDir(), keep);
     Files.createDirectories(mod.classesDir());
 
-    // if a resources directory exists, copy that over
-    Path rsrcDir = mod.resourcesDir();
-    if (Files.exists(rsrcDir)) Filez.copyAll(rsrcDir, mod.classesDir());
+    // if a resources directory exists, sync that over
+    syncResources(mod, snap, prev);
 
     // now build whatever source we find in the project
     Map<String,Path> srcDirs = mod.sourceDirs();
@@ -70,123 +132,294 @@ public class PackageBuilder {
     Path kotlinDir = srcDirs.get("kt");
     // compile scala first in case there are java files that depend on scala's; scalac does some
     // fiddling to support mixed compilation but it doesn't generate bytecode for .javas
-    if (scalaDir != null) buildScala(mod, scalaDir, javaDir);
+    if (scalaDir != null) {
+      Trace.Span span = Trace.begin("compile", "scalac", "module", what(mod));
+      try {
+        buildScala(mod, snap, scalaDir, javaDir);
+      } finally {
+        span.end();
+      }
+    }
     // TODO: should we compile .kt before .java or after?
-    if (kotlinDir != null) buildKotlin(mod, kotlinDir);
-    if (javaDir != null) buildJava(mod, javaDir, scalaDir != null);
+    if (kotlinDir != null) {
+      Trace.Span span = Trace.begin("compile", "kotlinc", "module", what(mod));
+      try {
+        buildKotlin(mod, snap, kotlinDir);
+      } finally {
+        span.end();
+      }
+    }
+    if (javaDir != null) {
+      Trace.Span span = Trace.begin("compile", "javac", "module", what(mod));
+      try {
+        buildJava(mod, snap, javaDir, scalaDir != null, kotlinDir != null);
+      } finally {
+        span.end();
+      }
+    }
     // TODO: moar languages!
 
     // finally jar everything up
-    createJar(mod.classesDir(), mod.moduleJar());
+    createJar(mod);
+    if (cacheKey != null) {
+      Trace.Span span = Trace.begin("cache", "store", "module", what(mod));
+      try {
+        _repo.buildCache.store(cacheKey, mod.moduleJar());
+      } finally {
+        span.end();
+      }
+    }
+    snap.save(snapFile, prev);
   }
 
   protected boolean rebuild (Module mod) throws IOException {
-    Path moduleJar = mod.moduleJar();
-    long lastBuild = Files.exists(moduleJar) ? Files.getLastModifiedTime(moduleJar).toMillis() : 0L;
-    if (!Filez.existsNewer(lastBuild, mod.mainDir())) return false;
-    build(mod);
+    return rebuild(mod, null);
+  }
+
+  /** Rebuilds {@code mod} incrementally, if it is a Java-only module that was previously built
+    * in a way that recorded the necessary state.
+    * @return false if the module could not be rebuilt incrementally. */
+  protected boolean rebuildIncremental (Module mod, Snapshot snap, Snapshot prev)
+    throws IOException {
+    Map<String,Path> srcDirs = mod.sourceDirs();
+    for (String lang : srcDirs.keySet()) {
+      if (!lang.equals("java") && !lang.equals("resources")) return false;
+    }
+    Path javaDir = srcDirs.get("java");
+    if (javaDir == null || !_repo.javac.canCompile(mod.pkg.jcopts)) return false;
+
+    List<Path> cp = buildClasspath(mod, mod.depends(_repo.resolver));
+    List<Path> srcs = snap.files(javaDir, ".java");
+    IncrementalJava inc = new IncrementalJava(_repo.javac, mod, javacOpts(mod), cp, javaDir, srcs);
+    if (!inc.plan()) return false;
+    Log.log("Building " + what(mod) + " (recompiling " + inc.recompileCount() + " of " +
+            srcs.size() + " sources)...");
+
+    syncResources(mod, snap, prev);
+    Trace.Span span = Trace.begin("compile", "javac", "module", what(mod),
+                                  "sources", inc.recompileCount());
+    try {
+      inc.compile();
+    } finally {
+      span.end();
+    }
+    createJar(mod);
+    snap.save(Snapshot.file(mod), prev);
     return true;
   }
 
-  protected void buildScala (Module mod, Path scalaDir, Path javaDir) throws IOException {
-    List<String> cmd = new ArrayList<>();
-    cmd.add(findJavaHome().resolve("bin").resolve("java").toString());
+  /** Brings the resources in {@code mod}'s classes directory up to date with its resources
+    * directory. Resources that were added or changed since {@code prev} was taken are linked (or
+    * copied) into place and those that were removed are deleted. If resources are packaged
+    * directly into the module jar, they're removed from the classes directory instead. */
+  protected void syncResources (Module mod, Snapshot snap, Snapshot prev) throws IOException {
+    Path rsrcDir = mod.resourcesDir();
+    boolean inJar = resourcesInJar();
+    Trace.Span span = Trace.begin("resources", "sync", "module", what(mod));
+    try {
+      if (prev != null) for (Path file : prev.files(rsrcDir, "")) {
+        if (inJar || snap.entry(file) == null) Files.deleteIfExists(resourceTarget(mod, file));
+      }
+      if (inJar) return;
+
+      boolean link = Props.linkResources;
+      for (Path file : snap.files(rsrcDir, "")) {
+        Path target = resourceTarget(mod, file);
+        Snapshot.Entry prevEnt = (prev == null) ? null : prev.entry(file);
+        if (prevEnt != null && prevEnt.sameStat(snap.entry(file)) && Files.exists(target)) continue;
+        Files.createDirectories(target.getParent());
+        // if we fail to link once (say, because we're crossing devices), don't keep trying
+        if (link) link = Filez.linkOrCopy(file, target);
+        else Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      span.end();
+    }
+  }
 
-    // find out what version of scala-library is in our depends
-    Depends deps = mod.depends(_repo.resolver);
-    String scalaVers = deps.findVersion("org.scala-lang:scala-library");
-    if (scalaVers == null) scalaVers = "2.13.3";
+  protected Path resourceTarget (Module mod, Path file) {
+    return mod.classesDir().resolve(mod.resourcesDir().relativize(file));
+  }
 
-    // use scala-compiler of the same version
-    String scalacId = "org.scala-lang:scala-compiler:" + scalaVers;
-    cmd.add("-cp");
-    cmd.add(classpathToString(_repo.mvn.resolve(RepoId.parse(scalacId)).values()));
-    cmd.add("scala.tools.nsc.Main");
+  /** Returns whether resources are written straight into module jars, rather than being copied
+    * into the classes directory (and from there into the jar). We can only do this when the classes
+    * directory is not itself used as a classpath entry. */
+  protected boolean resourcesInJar () {
+    return Props.resourcesInJar && !Props.ignoreModuleJar;
+  }
 
-    cmd.add("-d"); cmd.add(mod.root.relativize(mod.classesDir()).toString());
-    cmd.addAll(mod.pkg.scopts);
+  protected void buildScala (Module mod, Snapshot snap, Path scalaDir, Path javaDir)
+    throws IOException {
+    Depends deps = mod.depends(_repo.resolver);
+    String scalacId = scalacId(deps);
+
+    Path root = compilerRoot(mod);
+    List<String> args = new ArrayList<>();
+    args.add("-d"); args.add(relativize(root, mod.classesDir()));
+    // the worker doesn't run in the module's directory, so neither can relative user paths
+    args.addAll(root == null ? Compilers.absolutize(mod.root, mod.pkg.scopts,
+                                                    Compilers.SCALAC_PATH_OPTS) : mod.pkg.scopts);
     List<Path> cp = buildClasspath(mod, deps);
-    if (!cp.isEmpty()) { cmd.add("-classpath"); cmd.add(classpathToString(cp)); }
-    if (javaDir != null) addSources(mod.root, javaDir, ".java", cmd);
-    addSources(mod.root, scalaDir, ".scala", cmd);
+    if (!cp.isEmpty()) { args.add("-classpath"); args.add(classpathToString(cp)); }
+    if (javaDir != null) addSources(snap, root, javaDir, ".java", args);
+    addSources(snap, root, scalaDir, ".scala", args);
 
-    Exec.exec(mod.root, cmd).expect(0, "Scala build failed.");
+    runCompiler(mod, scalacId, "scala.tools.nsc.Main", args, "Scala build failed.");
   }
 
-  protected void buildJava (Module mod, Path javaDir, boolean multiLang) throws IOException {
+  protected void buildJava (Module mod, Snapshot snap, Path javaDir, boolean multiLang,
+                            boolean kotlin) throws IOException {
+    List<Path> cp = buildClasspath(mod, mod.depends(_repo.resolver));
+    // if we're compiling multiple languages, we need to add the target directory to our classpath
+    // because we may have Java source files that depend on classes compiled by the other language
+    if (multiLang) cp.add(0, mod.classesDir());
+
+    // compile in this JVM if we can, otherwise fall back to forking javac
+    if (_repo.javac.canCompile(mod.pkg.jcopts)) {
+      List<Path> srcs = snap.files(javaDir, ".java");
+      boolean ok;
+      // if this module is Java-only, record what we need to later rebuild it incrementally
+      if (!multiLang && !kotlin) ok = new IncrementalJava(
+        _repo.javac, mod, javacOpts(mod), cp, javaDir, srcs).compileAll();
+      else ok = _repo.javac.compile(javacOpts(mod), cp, Collections.singletonList(javaDir),
+                                    mod.classesDir(), srcs);
+      if (!ok) throw new IOException("Java build failed.");
+      return;
+    }
+
     List<String> cmd = new ArrayList<>();
     cmd.add(findJavaHome().resolve("bin").resolve("javac").toString());
 
     cmd.addAll(mod.pkg.jcopts);
-    Path target = mod.root.relativize(mod.classesDir());
-    cmd.add("-d"); cmd.add(target.toString());
-    List<Path> cp = buildClasspath(mod, mod.depends(_repo.resolver));
-    // if we're compiling multiple languages, we need to add the target directory to our classpath
-    // because we may have Java source files that depend on classes compiled by the other language
-    if (multiLang) cp.add(0, target);
+    cmd.add("-d"); cmd.add(mod.root.relativize(mod.classesDir()).toString());
     if (!cp.isEmpty()) { cmd.add("-cp"); cmd.add(classpathToString(cp)); }
     cmd.add("-sourcepath"); cmd.add(javaDir.toString());
-    addSources(mod.root, javaDir, ".java", cmd);
+    addSources(snap, mod.root, javaDir, ".java", cmd);
 
     Exec.exec(mod.root, cmd).expect(0, "Java build failed.");
   }
 
-  protected void buildKotlin (Module mod, Path ktDir) throws IOException {
-    List<String> cmd = new ArrayList<>();
-    cmd.add(findJavaHome().resolve("bin").resolve("java").toString());
+  /** Returns {@code mod}'s javac options for the in-process compiler, which runs in our working
+    * directory rather than the module's. */
+  protected List<String> javacOpts (Module mod) {
+    return Compilers.absolutize(mod.root, mod.pkg.jcopts, Compilers.JAVAC_PATH_OPTS);
+  }
 
-    // find out what version of kotlin-library is in our depends
+  protected void buildKotlin (Module mod, Snapshot snap, Path ktDir) throws IOException {
     Depends deps = mod.depends(_repo.resolver);
-    String kotlinVers = deps.findVersion("org.jetbrains.kotlin:kotlin-stdlib");
-    if (kotlinVers == null) kotlinVers = "1.2.70";
-
-    // use kotlin-compiler of the same version
-    String kotlincId = "org.jetbrains.kotlin:kotlin-compiler:" + kotlinVers;
-    cmd.add("-cp");
-    cmd.add(classpathToString(_repo.mvn.resolve(RepoId.parse(kotlincId)).values()));
-    cmd.add("org.jetbrains.kotlin.cli.jvm.K2JVMCompiler");
+    String kotlincId = kotlincId(deps);
 
-    // cmd.addAll(mod.pkg.ktcopts);
-    Path target = mod.root.relativize(mod.classesDir());
-    cmd.add("-no-stdlib"); cmd.add("-d"); cmd.add(target.toString());
-    List<Path> cp = buildClasspath(mod, mod.depends(_repo.resolver));
+    Path root = compilerRoot(mod);
+    List<String> args = new ArrayList<>();
+    // args.addAll(mod.pkg.ktcopts);
+    args.add("-no-stdlib"); args.add("-d"); args.add(relativize(root, mod.classesDir()));
+    List<Path> cp = buildClasspath(mod, deps);
     /* TODO: needed?
     // if we're compiling multiple languages, we need to add the target directory to our classpath
     // because we may have Java source files that depend on classes compiled by the other language
     if (multiLang) cp.add(0, target);
     */
-    if (!cp.isEmpty()) { cmd.add("-cp"); cmd.add(classpathToString(cp)); }
-    addSources(mod.root, ktDir, ".kt", cmd);
+    if (!cp.isEmpty()) { args.add("-cp"); args.add(classpathToString(cp)); }
+    addSources(snap, root, ktDir, ".kt", args);
 
-    Exec.exec(mod.root, cmd).expect(0, "Kotlin build failed.");
+    runCompiler(mod, kotlincId, "org.jetbrains.kotlin.cli.jvm.K2JVMCompiler", args,
+                "Kotlin build failed.");
   }
 
-  protected void createJar (Path sourceDir, Path targetJar) throws IOException {
+  protected String scalacId (Depends deps) {
+    // find out what version of scala-library is in our depends
+    String scalaVers = deps.findVersion("org.scala-lang:scala-library");
+    if (scalaVers == null) scalaVers = "2.13.3";
+    // use scala-compiler of the same version
+    return "org.scala-lang:scala-compiler:" + scalaVers;
+  }
+
+  protected String kotlincId (Depends deps) {
+    // find out what version of kotlin-library is in our depends
+    String kotlinVers = deps.findVersion("org.jetbrains.kotlin:kotlin-stdlib");
+    if (kotlinVers == null) kotlinVers = "1.2.70";
+    // use kotlin-compiler of the same version
+    return "org.jetbrains.kotlin:kotlin-compiler:" + kotlinVers;
+  }
+
+  /** Runs {@code mainClass} from {@code compilerId} on {@code args}, in a resident compiler worker
+    * if one is available, otherwise in a forked JVM. */
+  protected void runCompiler (Module mod, String compilerId, String mainClass, List<String> args,
+                              String errmsg) throws IOException {
+    int code = _repo.compilers.compile(compilerId, mainClass, args);
+    if (code > 0) throw new IOException(errmsg);
+    if (code == 0) return;
+
+    List<String> cmd = new ArrayList<>();
+    cmd.add(findJavaHome().resolve("bin").resolve("java").toString());
+    cmd.add("-cp");
+    cmd.add(classpathToString(_repo.compilers.classpath(compilerId)));
+    cmd.add(mainClass);
+    cmd.addAll(args);
+    Exec.exec(mod.root, cmd).expect(0, errmsg);
+  }
+
+  /** Returns the directory relative to which compiler arguments are expressed, or null if they must
+    * be absolute (because they will be passed to a compiler worker with a different cwd). */
+  protected Path compilerRoot (Module mod) {
+    return _repo.compilers.resident() ? null : mod.root;
+  }
+
+  protected String relativize (Path root, Path path) {
+    return (root == null) ? path.toAbsolutePath().toString() : root.relativize(path).toString();
+  }
+
+  protected void createJar (Module mod) throws IOException {
+    List<Path> sourceDirs = new ArrayList<>();
+    sourceDirs.add(mod.classesDir());
+    if (resourcesInJar() && Files.exists(mod.resourcesDir())) sourceDirs.add(mod.resourcesDir());
+    createJar(sourceDirs, mod.moduleJar());
+    Fingerprint.record(mod);
+  }
+
+  protected void createJar (List<Path> sourceDirs, Path targetJar) throws IOException {
+    // write the new jar to a temp file first, so that a failure leaves the old jar in place
+    Path newJar = targetJar.resolveSibling("new-"+targetJar.getFileName());
+    Trace.Span span = Trace.begin("jar", "write", "jar", targetJar);
+    try {
+      new JarWriter(Props.jarStored, !Props.jarMtimes).write(sourceDirs, newJar);
+    } finally {
+      span.end();
+    }
     // if the old jar file exists, move it out of the way; this reduces the likelihood that we'll
     // cause a JVM to crash by truncating and replacing a jar file out from under it
     if (Files.exists(targetJar)) {
       Path oldJar = targetJar.resolveSibling("old-"+targetJar.getFileName());
       Files.move(targetJar, oldJar, StandardCopyOption.REPLACE_EXISTING);
     }
-    List<String> cmd = new ArrayList<>();
-    cmd.add("jar");
-    cmd.add("-cf");
-    cmd.add(targetJar.toString());
-    cmd.add(".");
-    Exec.exec(sourceDir, cmd).expect(0, "Jar creation failed.");
-  }
-
-  protected void addSources (Path root, Path dir, String suff, List<String> into) throws IOException {
-    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
-      @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
-      throws IOException {
-        // TODO: allow symlinks to source files? that seems wacky...
-        if (attrs.isRegularFile() && file.getFileName().toString().endsWith(suff)) {
-          into.add(root.relativize(file).toString());
-        }
-        return FileVisitResult.CONTINUE;
-      }
-    });
+    Files.move(newJar, targetJar);
+  }
+
+  /** Computes the build cache key for {@code mod}: a hash of everything that goes into its build. */
+  protected String cacheKey (Module mod, Snapshot snap, Snapshot prev) throws IOException {
+    Depends deps = mod.depends(_repo.resolver);
+    Map<String,Path> srcDirs = mod.sourceDirs();
+    BuildCache.Key key = _repo.buildCache.key();
+    key.add(System.getProperty("java.version"));
+    key.add(mod.pkg.jcopts).add(mod.pkg.scopts);
+    // these change the bytes of the jar we'd restore (and with it the classes directory)
+    key.add("jar:" + resourcesInJar() + ":" + Props.jarStored + ":" + Props.jarMtimes);
+    if (srcDirs.containsKey("scala")) key.add(scalacId(deps));
+    if (srcDirs.containsKey("kt")) key.add(kotlincId(deps));
+    snap.inheritHashes(prev);
+    key.addFiles(snap.hashes());
+    List<Path> cp = buildClasspath(mod, deps);
+    key.add(Integer.toString(cp.size()));
+    for (Path entry : cp) key.addClasspath(entry);
+    return key.finish();
+  }
+
+  protected String what (Module mod) {
+    return mod.isDefault() ? mod.pkg.name : (mod.pkg.name + "#" + mod.name);
+  }
+
+  protected void addSources (Snapshot snap, Path root, Path dir, String suff, List<String> into) {
+    for (Path file : snap.files(dir, suff)) into.add(relativize(root, file));
   }
 
   protected List<Path> buildClasspath (Module mod, Depends deps) {
@@ -195,10 +428,7 @@ public class PackageBuilder {
       for (Depend.MissingId id : deps.missingDeps) Log.log(id.toString());
       throw new IllegalStateException(mod + " has missing depends");
     }
-    List<Path> cp = deps.classpath();
-    cp.remove(mod.classesDir());
-    cp.remove(mod.moduleJar());
-    return cp;
+    return deps.dependClasspath();
   }
 
   protected String classpathToString (Iterable<Path> paths) {
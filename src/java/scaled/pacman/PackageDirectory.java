@@ -44,6 +44,13 @@ public class PackageDirectory {
   public void init (Path root) {
     Path pfile = root.resolve("packages");
     try {
+      // if we're already up to date (a resident pacman reinits before every command), stop here
+      long stamp = Files.getLastModifiedTime(pfile).toMillis();
+      if (pfile.equals(_file) && stamp == _stamp) return;
+      _file = pfile;
+      _stamp = stamp;
+      entries.clear();
+      byName.clear();
       for (String line : Files.readAllLines(pfile)) {
         String[] bits = line.split(" ", 3);
         if (bits.length != 3) {
@@ -63,4 +70,7 @@ public class PackageDirectory {
       Log.log("Error reading package directory", "file", pfile, e);
     }
   }
+
+  private Path _file;
+  private long _stamp;
 }
@@ -48,13 +48,10 @@ public class PackageOp {
     // if we've already upgraded this package during this operation, don't do it again
     if (!_upgraded.add(pkg.source)) return;
 
-    // update the VCS clone of this package's source tree
-    PackageFetcher pf = new PackageFetcher(_repo, pkg.source, pkg.root);
-    logPhase("Updating " + pkg.source + "...");
-    pf.update();
+    // update the VCS clone of this package's source tree and reparse its metadata
+    Package npkg = update(pkg);
 
-    // reparse this package's depends, install any new depends, upgrade any existing depends
-    Package npkg = pf.readPackage();
+    // install any new depends, upgrade any existing depends
     Set<Source> npdeps = npkg.packageDepends();
     npdeps.removeAll(_upgraded);
     if (!npdeps.isEmpty()) {
@@ -62,9 +59,12 @@ public class PackageOp {
       installDepends(npkg);
     }
 
-    // rebuild the package itself
+    // rebuild the package itself; if its ABI didn't change, its dependents needn't be rebuilt,
+    // unless we were forced to rebuild because the ABI of something upstream of us changed: our
+    // dependents compile against that too (classpaths are transitive), so they must also rebuild
+    Map<Module,Fingerprint> before = fingerprints(npkg);
     if (rebuild(npkg)) {
-      _rebuildDeps.add(pkg);
+      if (_forceBuild.contains(pkg.source) || abiChanged(npkg, before)) _rebuildDeps.add(pkg);
     }
 
     // if this is the main upgrade (not a dependent upgrade) then start rebuilding all of the
@@ -100,6 +100,14 @@ public class PackageOp {
     }
   }
 
+  /** Updates the VCS clone of {@code pkg} and returns its freshly parsed metadata. */
+  protected Package update (Package pkg) throws IOException {
+    PackageFetcher pf = new PackageFetcher(_repo, pkg.source, pkg.root);
+    logPhase("Updating " + pkg.source + "...");
+    pf.update();
+    return pf.readPackage();
+  }
+
   protected boolean rebuild (Package pkg) throws IOException {
     PackageBuilder pb = new PackageBuilder(_repo, pkg);
     if (!_forceBuild.contains(pkg.source)) return pb.rebuild();
@@ -107,6 +115,25 @@ public class PackageOp {
     return true;
   }
 
+  protected Map<Module,Fingerprint> fingerprints (Package pkg) {
+    Map<Module,Fingerprint> fps = new HashMap<>();
+    for (Module mod : pkg.modules()) fps.put(mod, Fingerprint.load(mod));
+    return fps;
+  }
+
+  /** Returns true if the ABI of any module in {@code pkg} differs from {@code before}. */
+  protected boolean abiChanged (Package pkg, Map<Module,Fingerprint> before) {
+    boolean sameJars = true;
+    for (Map.Entry<Module,Fingerprint> entry : fingerprints(pkg).entrySet()) {
+      Fingerprint ofp = before.get(entry.getKey()), nfp = entry.getValue();
+      if (!Fingerprint.sameAbi(ofp, nfp)) return true;
+      sameJars &= ofp.jarHash.equals(nfp.jarHash);
+    }
+    logPhase(pkg.name + (sameJars ? " rebuilt to identical jars" : " ABI unchanged") +
+             "; not rebuilding dependents.");
+    return false;
+  }
+
   protected static void logPhase (String msg) {
     Log.log("-- " + msg); // TODO: colors?
   }
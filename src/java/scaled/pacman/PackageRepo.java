@@ -7,17 +7,12 @@ package scaled.pacman;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PackageRepo {
 
@@ -40,13 +36,28 @@ public class PackageRepo {
   public Observer observer;
 
   /** The top-level Scaled metadata directory. */
-  public final Path metaDir = locateMetaDir();
+  public final Path metaDir;
 
   /** Used to resolve Maven artifacts. */
   public final MavenResolver mvn = new MavenResolver();
 
+  /** Used to reuse the results of previous Maven resolutions. */
+  public final ResolveCache resolveCache = new ResolveCache(this);
+
   /** Used to resolve System artifacts. */
-  public final SystemResolver sys = new SystemResolver();
+  public final SystemResolver sys = new SystemResolver(this);
+
+  /** Used to compile Java code in process. */
+  public final Javac javac = new Javac();
+
+  /** Used to run compilers for other JVM languages. */
+  public final Compilers compilers = new Compilers(this);
+
+  /** Used to reuse the results of previous module builds. */
+  public final BuildCache buildCache = new BuildCache(this);
+
+  /** Used to delete build output in the background. */
+  public final Reaper reaper = new Reaper(this);
 
   /** Used to resolve dependencies. */
   public final Depends.Resolver resolver = new Depends.Resolver() {
@@ -58,7 +69,12 @@ public class PackageRepo {
       return Optional.ofNullable(pkg == null ? null : pkg.module(source.module()));
     }
     public Map<RepoId,Path> resolve (List<RepoId> ids) {
-      return mvn.resolve(ids);
+      Map<RepoId,Path> paths = resolveCache.get(ids);
+      if (paths == null) {
+        paths = mvn.resolve(ids);
+        resolveCache.put(ids, paths);
+      }
+      return paths;
     }
     public Path resolve (SystemId id) {
       return sys.resolve(id);
@@ -68,15 +84,24 @@ public class PackageRepo {
       return (arts != null) && arts.contains(id.artifactId);
     }
     public ClassLoader systemLoader (Path path) {
-      ClassLoader cl = _systemLoaders.get(path);
-      if (cl == null) _systemLoaders.put(
-        path, cl = new URLClassLoader(new URL[] { ModuleLoader.toURL(path) }));
-      return cl;
+      // modules in different threads may race to create a system loader; exactly one must win
+      return _systemLoaders.computeIfAbsent(
+        path, p -> new URLClassLoader(new URL[] { ModuleLoader.toURL(p) }));
     }
 
-    private Map<Path,ClassLoader> _systemLoaders = new HashMap<>();
+    private final Map<Path,ClassLoader> _systemLoaders = new ConcurrentHashMap<>();
   };
 
+  /** Creates a repo whose metadata lives in the standard per-user location. */
+  public PackageRepo () {
+    this(locateMetaDir());
+  }
+
+  /** Creates a repo whose metadata (packages, caches, scratch space) lives in {@code metaDir}. */
+  public PackageRepo (Path metaDir) {
+    this.metaDir = metaDir;
+  }
+
   /** Creates (if necessary) and returns a directory in the top-level Scaled metadata directory. */
   public Path metaDir (String name) throws IOException {
     Path dir = metaDir.resolve(name);
@@ -145,27 +170,32 @@ public class PackageRepo {
   }
 
   public void init () throws IOException {
-    // resolve all packages in our packages directory (TODO: use cache if this is too slow)
-    Files.walkFileTree(packagesDir(), FOLLOW_LINKS, MAX_PKG_DEPTH, new SimpleFileVisitor<Path>() {
-      @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) {
-        Path pkgFile = dir.resolve(Package.FILE);
-        if (!Files.exists(pkgFile)) return FileVisitResult.CONTINUE; // descend into subdirs
-        addPackage(pkgFile);
-        return FileVisitResult.SKIP_SUBTREE; // stop descending
-      }
-    });
+    // clean up after any previous runs that exited before they finished deleting things
+    reaper.reclaim();
+    // resolve all packages in our packages directory, reparsing only those that have changed
+    // since our last snapshot
+    _snapshot = PackageSnapshot.load(snapshotFile());
+    for (Package pkg : _snapshot.packages(packagesDir())) addPackage(pkg);
+    _snapshot.save(snapshotFile());
+  }
+
+  /** Checks whether any package has been added, removed or modified since the packages were last
+    * loaded and, if so, reloads all packages. Reloading discards the depends and classloaders of
+    * the old packages, so we only do so when something has changed.
+    * @return true if the packages were reloaded. */
+  public boolean refresh () throws IOException {
+    if (_snapshot.isCurrent()) return false;
+    Log.log("Packages changed, reloading...");
+    for (Package pkg : _pkgs.values()) if (observer != null) observer.packageRemoved(pkg);
+    _pkgs.clear();
+    for (Package pkg : _snapshot.packages(packagesDir())) addPackage(pkg);
+    _snapshot.save(snapshotFile());
+    return true;
   }
 
   public boolean addPackage (Path pkgFile) {
     try {
-      Package pkg = new Package(pkgFile);
-      // log any errors noted when resolving this package info
-      if (!pkg.errors.isEmpty()) {
-        Log.log("ERRORS in " + pkg.root + "/package.scaled:");
-        for (String error : pkg.errors) Log.log("- " + error);
-      }
-      _pkgs.put(pkg.source, pkg);
-      if (observer != null) observer.packageAdded(pkg);
+      addPackage(new Package(pkgFile));
       return true;
     } catch (Exception e) {
       Log.log("Unable to process package: "+ pkgFile, e);
@@ -173,6 +203,20 @@ public class PackageRepo {
     }
   }
 
+  private void addPackage (Package pkg) {
+    // log any errors noted when resolving this package info
+    if (!pkg.errors.isEmpty()) {
+      Log.log("ERRORS in " + pkg.root + "/package.scaled:");
+      for (String error : pkg.errors) Log.log("- " + error);
+    }
+    _pkgs.put(pkg.source, pkg);
+    if (observer != null) observer.packageAdded(pkg);
+  }
+
+  private Path snapshotFile () throws IOException {
+    return metaDir("Caches").resolve("packages.snapshot");
+  }
+
   private void addPackageDepends (LinkedHashMap<Source,Package> pkgs, Package pkg) {
     // stop if we've already added this package's depends
     if (pkgs.containsKey(pkg.source)) return;
@@ -189,7 +233,7 @@ public class PackageRepo {
     pkgs.put(pkg.source, pkg);
   }
 
-  private Path locateMetaDir () {
+  private static Path locateMetaDir () {
     // if our metadir has been overridden, use the specified value
     if (Props.scaledHome != null) return Paths.get(Props.scaledHome);
 
@@ -205,10 +249,7 @@ public class PackageRepo {
   }
 
   private final Map<Source,Package> _pkgs = new HashMap<>();
-
-  private static final Set<FileVisitOption> FOLLOW_LINKS = Collections.singleton(
-    FileVisitOption.FOLLOW_LINKS);
-  private static final int MAX_PKG_DEPTH = 6;
+  private PackageSnapshot _snapshot = new PackageSnapshot();
 
   // UGLY HACK ALERT: these dependencies are shared by all modules rather than duplicated for each
   // module; dependencies that show up in the public APIs of unrelated modules must come from the
@@ -0,0 +1,374 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A binary snapshot of the parsed metadata of all installed packages, kept in {@code
+ * Caches/packages.snapshot} in the Scaled metadata directory. Each package is stamped with the
+ * last modified times of its {@code package.scaled} and {@code module.scaled} files and is only
+ * reparsed when one of those changes. The snapshot also records the last modified times of the
+ * directories that were searched for packages; if none of those has changed, no package can have
+ * been added or removed and the packages directory need not be walked. So loading the packages
+ * costs a few stats per package, regardless of how large their source trees are.
+ *
+ * <p>A missing, corrupt or out of date snapshot is simply ignored, and all packages are read
+ * from scratch.</p>
+ */
+public class PackageSnapshot {
+
+  /** Loads the snapshot in {@code file}. If the file is missing or unreadable, an empty snapshot
+    * is returned, which will be populated the first time {@link #packages} is called. */
+  public static PackageSnapshot load (Path file) {
+    PackageSnapshot snap = new PackageSnapshot();
+    try (InputStream fin = Files.newInputStream(file);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(fin))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return snap;
+      Map<Path,Long> dirs = new LinkedHashMap<>();
+      for (int ii = 0, ll = in.readInt(); ii < ll; ii++) dirs.put(readPath(in), in.readLong());
+      Map<Path,Entry> entries = new LinkedHashMap<>();
+      for (int ii = 0, ll = in.readInt(); ii < ll; ii++) {
+        Entry entry = Entry.read(in);
+        entries.put(entry.root, entry);
+      }
+      snap._dirs = dirs;
+      snap._entries = entries;
+    } catch (NoSuchFileException nsfe) {
+      // no snapshot yet, no problem
+    } catch (Exception e) {
+      Log.log("Ignoring unreadable package snapshot", "file", file, "error", e);
+    }
+    return snap;
+  }
+
+  /** Returns true if no package has been added, removed or modified since this snapshot was
+    * loaded or last brought up to date by {@link #packages}. */
+  public boolean isCurrent () throws IOException {
+    if (!rootsCurrent()) return false;
+    for (Entry entry : _entries.values()) if (!entry.isCurrent()) return false;
+    return true;
+  }
+
+  /** Returns newly created package infos for all packages installed in {@code packagesDir},
+    * reparsing any that have changed since the snapshot was taken. Packages that fail to parse are
+    * logged and omitted. If anything changed, the snapshot will be written by the next call to
+    * {@link #save}. */
+  public List<Package> packages (Path packagesDir) throws IOException {
+    // if any directory that might contain packages has changed, look for packages anew
+    if (!rootsCurrent()) {
+      Map<Path,Long> dirs = new LinkedHashMap<>();
+      List<Path> roots = new ArrayList<>();
+      Files.walkFileTree(packagesDir, FOLLOW_LINKS, MAX_PKG_DEPTH, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) {
+          if (Files.exists(dir.resolve(Package.FILE))) {
+            roots.add(dir);
+            return FileVisitResult.SKIP_SUBTREE; // stop descending
+          }
+          dirs.put(dir, attrs.lastModifiedTime().toMillis());
+          return FileVisitResult.CONTINUE; // descend into subdirs
+        }
+      });
+      _dirs = dirs;
+      Map<Path,Entry> entries = new LinkedHashMap<>();
+      for (Path root : roots) entries.put(root, _entries.get(root));
+      _entries = entries;
+      _dirty = true;
+    }
+
+    List<Package> pkgs = new ArrayList<>();
+    for (Map.Entry<Path,Entry> me : _entries.entrySet()) {
+      Entry entry = me.getValue();
+      if (entry != null && entry.isCurrent()) {
+        try {
+          pkgs.add(entry.toPackage());
+          continue;
+        } catch (Exception e) {
+          Log.log("Failed to restore package from snapshot", "root", me.getKey(), "error", e);
+        }
+      }
+      // stamp the package file before parsing it, so that if it changes while we're reading it,
+      // we'll reparse it next time
+      Path root = me.getKey(), pkgFile = root.resolve(Package.FILE);
+      Entry nentry = new Entry(root);
+      try {
+        long pkgStamp = mtime(pkgFile);
+        Package pkg = new Package(pkgFile);
+        nentry.stamp(pkg, pkgStamp);
+        nentry.data = Entry.encode(pkg);
+        me.setValue(nentry);
+        pkgs.add(pkg);
+      } catch (Exception e) {
+        Log.log("Unable to process package: "+ pkgFile, e);
+        me.setValue(null);
+      }
+      _dirty = true;
+    }
+    return pkgs;
+  }
+
+  /** Writes this snapshot to {@code file} if it has changed since it was loaded. */
+  public void save (Path file) {
+    if (!_dirty) return;
+    try {
+      Path temp = Files.createTempFile(file.getParent(), "packages", ".tmp");
+      try (OutputStream fout = Files.newOutputStream(temp);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(_dirs.size());
+        for (Map.Entry<Path,Long> dir : _dirs.entrySet()) {
+          writeString(out, dir.getKey().toString());
+          out.writeLong(dir.getValue());
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : _entries.values()) if (entry != null) entries.add(entry);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) entry.write(out);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      _dirty = false;
+    } catch (IOException ioe) {
+      Log.log("Failed to write package snapshot", "file", file, "error", ioe);
+    }
+  }
+
+  /** The snapshot of a single package. */
+  protected static class Entry {
+    public final Path root;
+    /** The package and module files from which the package was parsed, and their mtimes. */
+    public final Map<Path,Long> files = new LinkedHashMap<>();
+    /** Whether the package has a top-level source directory (and thus a default module). */
+    public boolean hasSrc;
+    /** The encoded package metadata. */
+    public byte[] data;
+
+    public Entry (Path root) {
+      this.root = root;
+    }
+
+    public void stamp (Package pkg, long pkgStamp) throws IOException {
+      files.put(root.resolve(Package.FILE), pkgStamp);
+      // stamp every declared module, including those whose module file is missing or unreadable
+      // (stamped -1 if missing), so that we notice when one is fixed
+      for (String mname : pkg.moduleNames) {
+        Path modFile = root.resolve(mname).resolve(Module.FILE);
+        files.put(modFile, mtime(modFile));
+      }
+      hasSrc = Files.exists(root.resolve("src"));
+    }
+
+    public boolean isCurrent () throws IOException {
+      return unchanged(files) && hasSrc == Files.exists(root.resolve("src"));
+    }
+
+    public Package toPackage () throws Exception {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      Package pkg = new Package(root, readSource(in), readString(in), readString(in),
+                                readString(in), readString(in), readString(in), readStrings(in),
+                                readStrings(in), readDepends(in), readStrings(in),
+                                readStrings(in));
+      for (int ii = 0, ll = in.readInt(); ii < ll; ii++) {
+        String name = readString(in);
+        // the default module is recognized by identity, so be sure to use the canonical instance
+        if (name.equals(Module.DEFAULT)) name = Module.DEFAULT;
+        pkg.addModule(new Module(pkg, name, readPath(in), readSource(in), readDepends(in)));
+      }
+      return pkg;
+    }
+
+    public static byte[] encode (Package pkg) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeString(out, pkg.source.toString());
+      for (String value : new String[] {
+          pkg.name, pkg.version, pkg.license, pkg.weburl, pkg.descrip }) writeString(out, value);
+      writeStrings(out, pkg.jcopts);
+      writeStrings(out, pkg.scopts);
+      writeDepends(out, pkg.depends);
+      writeStrings(out, pkg.moduleNames);
+      writeStrings(out, pkg.errors);
+      List<Module> mods = new ArrayList<>();
+      for (Module mod : pkg.modules()) mods.add(mod);
+      out.writeInt(mods.size());
+      for (Module mod : mods) {
+        writeString(out, mod.name);
+        writeString(out, mod.root.toString());
+        writeString(out, mod.source.toString());
+        writeDepends(out, mod.depends);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    public static Entry read (DataInputStream in) throws IOException {
+      Entry entry = new Entry(readPath(in));
+      for (int ii = 0, ll = in.readInt(); ii < ll; ii++) {
+        entry.files.put(readPath(in), in.readLong());
+      }
+      entry.hasSrc = in.readBoolean();
+      entry.data = new byte[in.readInt()];
+      in.readFully(entry.data);
+      return entry;
+    }
+
+    public void write (DataOutputStream out) throws IOException {
+      writeString(out, root.toString());
+      out.writeInt(files.size());
+      for (Map.Entry<Path,Long> file : files.entrySet()) {
+        writeString(out, file.getKey().toString());
+        out.writeLong(file.getValue());
+      }
+      out.writeBoolean(hasSrc);
+      out.writeInt(data.length);
+      out.write(data);
+    }
+  }
+
+  // returns true if the set of package roots can't have changed since we last walked the packages
+  // directory: none of the directories we walked have changed, and no package file has been
+  // deleted (which would make its directory a place to look for packages)
+  protected boolean rootsCurrent () {
+    if (_dirs.isEmpty()) return false;
+    try {
+      if (!unchanged(_dirs)) return false;
+      for (Path root : _entries.keySet()) {
+        if (!Files.exists(root.resolve(Package.FILE))) return false;
+      }
+      return true;
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  protected static boolean unchanged (Map<Path,Long> stamps) throws IOException {
+    for (Map.Entry<Path,Long> stamp : stamps.entrySet()) {
+      if (mtime(stamp.getKey()) != stamp.getValue()) return false;
+    }
+    return true;
+  }
+
+  // the last modified time of path (following links), or -1 if it does not exist
+  protected static long mtime (Path path) throws IOException {
+    try { return Files.getLastModifiedTime(path).toMillis(); }
+    catch (NoSuchFileException nsfe) { return -1L; }
+  }
+
+  protected static void writeDepends (DataOutputStream out, List<Depend> depends)
+    throws IOException {
+    out.writeInt(depends.size());
+    for (Depend dep : depends) {
+      out.writeByte(dep.scope.ordinal());
+      if (dep.id instanceof Source) {
+        out.writeByte(SOURCE);
+        writeString(out, dep.id.toString());
+      } else if (dep.id instanceof RepoId) {
+        RepoId id = (RepoId)dep.id;
+        out.writeByte(REPO);
+        for (String value : new String[] { id.groupId, id.artifactId, id.version, id.kind }) {
+          writeString(out, value);
+        }
+        out.writeBoolean(id.classifier != null);
+        if (id.classifier != null) writeString(out, id.classifier);
+      } else if (dep.id instanceof SystemId) {
+        SystemId id = (SystemId)dep.id;
+        out.writeByte(SYSTEM);
+        for (String value : new String[] { id.platform, id.artifact, id.version }) {
+          writeString(out, value);
+        }
+      } else throw new IOException("Unexpected depend: " + dep);
+    }
+  }
+
+  protected static List<Depend> readDepends (DataInputStream in) throws Exception {
+    int count = in.readInt();
+    List<Depend> depends = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) {
+      Depend.Scope scope = Depend.Scope.values()[in.readByte()];
+      Depend.Id id;
+      switch (in.readByte()) {
+      case SOURCE: id = readSource(in); break;
+      case REPO: id = new RepoId(readString(in), readString(in), readString(in), readString(in),
+                                 in.readBoolean() ? readString(in) : null); break;
+      case SYSTEM: id = new SystemId(readString(in), readString(in), readString(in)); break;
+      default: throw new IOException("Invalid depend type");
+      }
+      depends.add(new Depend(id, scope));
+    }
+    return depends;
+  }
+
+  protected static Source readSource (DataInputStream in) throws Exception {
+    String[] bits = readString(in).split(":", 2);
+    return new Source(Source.VCS.parse(bits[0]), new URI(bits[1]));
+  }
+
+  protected static Path readPath (DataInputStream in) throws IOException {
+    return Paths.get(readString(in));
+  }
+
+  protected static List<String> readStrings (DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> values = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) values.add(readString(in));
+    return values;
+  }
+
+  protected static void writeStrings (DataOutputStream out, List<String> values)
+    throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) writeString(out, value);
+  }
+
+  // writeUTF is limited to 64k, which a long enough error message could exceed
+  protected static String readString (DataInputStream in) throws IOException {
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  protected static void writeString (DataOutputStream out, String value) throws IOException {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private Map<Path,Long> _dirs = Collections.emptyMap();
+  private Map<Path,Entry> _entries = Collections.emptyMap();
+  private boolean _dirty;
+
+  private static final int MAGIC = 0x50414b53; // PAKS
+  private static final int VERSION = 2;
+  private static final byte SOURCE = 0, REPO = 1, SYSTEM = 2;
+
+  private static final Set<FileVisitOption> FOLLOW_LINKS = Collections.singleton(
+    FileVisitOption.FOLLOW_LINKS);
+  private static final int MAX_PKG_DEPTH = 6;
+}
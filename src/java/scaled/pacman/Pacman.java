@@ -10,19 +10,19 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
 
 /** The main command line entry point for the Scaled Package Manager. */
 public class Pacman {
 
   public static String[] USAGE = {
-    "Usage: spam <command>",
+    "Usage: spam [--offline] <command>",
     "",
     "where <command> is one of:",
     "",
     "  build pkg-name [--deps]              cleans and builds pkg-name (and depends if --deps)",
     "  clean pkg-name [--deps]              cleans pkg-name (and its depends if --deps)",
+    "  daemon                               keeps pacman resident to run subsequent commands",
     "  depends pkg-name#module              prints flattened depend list pkg-name#module",
     "  deptree pkg-name                     prints depend tree for (all modules in) pkg-name",
     "  info [pkg-name | --all]              prints detailed info on pkg-name (or all packages)",
@@ -33,10 +33,13 @@ public class Pacman {
     "  refresh                              updates the package directory index",
     "  run pkg-name#module class [arg ...]  runs class from pkg-name#module with args",
     "  search text                          lists all packages in directory which match text",
-    "  upgrade [pkg-name]                   upgrades package and its depends"
+    "  upgrade [pkg-name]                   upgrades package and its depends",
+    "  watch pkg-name [--deps]              rebuilds pkg-name (and depends) as sources change",
+    "",
+    "  --offline                            resolves Maven depends only from ~/.m2"
   };
 
-  public static final Printer out = new Printer(System.out);
+  public static Printer out = new Printer(System.out);
   public static final PackageRepo repo = new PackageRepo();
   public static final PackageDirectory index = new PackageDirectory();
 
@@ -50,7 +53,30 @@ public class Pacman {
     // read our index (downloading the initial package if necessary)
     initIndex();
 
+    dispatch(args);
+  }
+
+  /** Runs the command described by {@code args} on behalf of a {@link Daemon} client.
+    * @return the command's exit code. */
+  static int execute (String[] args) {
+    out = new Printer(System.out); // the daemon routes System.out to the client
+    repo.buildCache.resetCounts();
+    initIndex(); // in case it was refreshed since the last command
+    try {
+      dispatch(args);
+      return 0;
+    } catch (Exit exit) {
+      return exit.code;
+    }
+  }
+
+  private static void dispatch (String[] args) {
     // we'll introduce proper arg parsing later; for now KISS
+    int opts = options(args);
+    // --offline is our only option; a daemon started with it serves all commands offline
+    repo.mvn.offline = Props.offline || _offline || opts > 0;
+    args = tail(args, opts);
+    if (args.length == 0) fail(USAGE);
     try {
       switch (args[0]) {
         case     "run": run(arg(args, 1), arg(args, 2), tail(args, 3)); break;
@@ -61,10 +87,12 @@ public class Pacman {
         case  "search": search(optarg(args, 1, "")); break;
         case "depends": depends(arg(args, 1)); break;
         case "deptree": deptree(arg(args, 1)); break;
+        case  "daemon": daemon(); break;
         case "install": install(tail(args, 1)); break;
         case "rebuild": buildAll(optarg(args, 1, "")); break;
         case "refresh": refresh(); break;
         case "upgrade": upgrade(arg(args, 1)); break;
+        case   "watch": watch(arg(args, 1), optarg(args, 2, "").equals("--deps")); break;
         default: fail(USAGE); break;
       }
     } catch (MissingArgException mae) {
@@ -201,121 +229,65 @@ public class Pacman {
 
   private static void buildAll (String pkgName) {
     List<Package> toBuild = repo.topoPackages();
-    int[] procsToThreads = { 1, 1, 1, 2, 2, 3, 4, 5, 6 };
-    int procs = Math.min(Runtime.getRuntime().availableProcessors(), procsToThreads.length-1);
-    int threads = procsToThreads[procs];
-    Log.log("Building up to " + threads + " packages in parallel.");
-
-    class Builder {
-      private CountDownLatch done = new CountDownLatch(threads);
-      private Set<Source> built = new HashSet<>();
-      private List<String> failMsgs = new ArrayList<>();
-      private List<Exception> failErrs = new ArrayList<>();
-
-      private synchronized Package getNext () {
-        if (done()) return null;
-
-        Package next = toBuild.remove(0);
-        while (!next.dependsSatisfied(built)) {
-          debug("Waiting for depends: " + next.name);
-          try {
-            wait();
-          } catch (InterruptedException ie) {
-            fail("Interrupted waiting to build " + next.root);
-          }
-          // if another build failed while we were waiting, abandon ship
-          if (!failMsgs.isEmpty()) {
-            return null;
-          }
-        }
-        return next;
-      }
-
-      private synchronized boolean done () {
-        return toBuild.isEmpty() || !failMsgs.isEmpty();
-      }
-
-      private synchronized void noteBuilt (Package pkg) {
-        built.add(pkg.source);
-        notifyAll();
-      }
-
-      private synchronized void noteFailed (Package pkg, Exception err) {
-        failMsgs.add("Failure invoking 'build' in: " + pkg.root);
-        failErrs.add(err);
-        notifyAll();
-      }
-
-      private void runThread () {
-        Package next;
-        while ((next = getNext()) != null) {
-          try {
-            new PackageBuilder(repo, next).build();
-            noteBuilt(next);
-          } catch (Exception e) {
-            noteFailed(next, e);
-          }
-        }
-        done.countDown();
-      }
-
-      public synchronized void noteSkipped (Package pkg) {
-        Log.log("Skipping " + pkg.name + "...");
-        built.add(pkg.source);
-      }
-
-      public void run () {
-        for (int ii = 0; ii < threads; ii++) {
-          new Thread() { public void run () { runThread(); }}.start();
-        }
-
-        try {
-          done.await();
-        } catch (InterruptedException ie) {
-          fail("Interrupted waiting for build to complete.");
-        }
-
-        if (!failMsgs.isEmpty()) {
-          for (int ii = 0; ii < failMsgs.size(); ii++) {
-            System.err.println(failMsgs.get(ii));
-            failErrs.get(ii).printStackTrace(System.err);
-          }
-          System.exit(255);
-        }
-      }
-    }
-
-    Builder builder = new Builder();
     if (!pkgName.equals("")) {
       while (!toBuild.isEmpty() && !toBuild.get(0).name.equals(pkgName)) {
-        builder.noteSkipped(toBuild.remove(0)); // for depends tracking
+        Log.log("Skipping " + toBuild.remove(0).name + "...");
       }
     }
-    builder.run();
+    try { new BuildScheduler(repo).build(toBuild); }
+    catch (Exception e) { fail("Rebuild failed.", e); }
+    reportBuildCache();
   }
 
   private static void build (String pkgName, boolean deps) {
     onPackage(pkgName, pkg -> {
-      for (Package bpkg : packageOrDeps(pkg, deps)) {
-        try { new PackageBuilder(repo, bpkg).build(); }
-        catch (Exception e) {
-          fail("Failure invoking 'build' in: " + bpkg.root, e);
-        }
+      try { new BuildScheduler(repo).build(packageOrDeps(pkg, deps)); }
+      catch (Exception e) {
+        fail("Failure invoking 'build' in: " + pkg.root, e);
       }
+      reportBuildCache();
     });
   }
 
+  private static void reportBuildCache () {
+    int hits = repo.buildCache.hits(), misses = repo.buildCache.misses();
+    if (hits + misses > 0) Log.log("Build cache: " + hits + " hit(s), " + misses + " miss(es).");
+  }
+
   private static void clean (String pkgName, boolean deps) {
     onPackage(pkgName, pkg -> {
-      for (Package bpkg : packageOrDeps(pkg, deps)) {
-        try { new PackageBuilder(repo, bpkg).clean(); }
-        catch (Exception e) {
-          fail("Failure invoking 'clean' in: " + bpkg.root, e);
-        }
+      try { new BuildScheduler(repo).clean(packageOrDeps(pkg, deps)); }
+      catch (Exception e) {
+        fail("Failure invoking 'clean' in: " + pkg.root, e);
       }
     });
   }
 
+  private static void watch (String pkgName, boolean deps) {
+    onPackage(pkgName, pkg -> {
+      try (Watcher watcher = new Watcher(repo, packageOrDeps(pkg, deps))) {
+        watcher.run();
+      } catch (Exception e) {
+        fail("Failure watching: " + pkg.root, e);
+      }
+    });
+  }
+
+  private static void daemon () {
+    Printer sysout = out;
+    _resident = true;
+    _offline = repo.mvn.offline;
+    try { new Daemon(repo, Pacman::execute).serve(Props.daemonIdle); }
+    catch (Exception e) {
+      _resident = false;
+      fail("Daemon failed", e);
+    } finally {
+      _resident = false;
+      _offline = false;
+      out = sysout;
+    }
+  }
+
   private static List<Package> packageOrDeps (Package pkg, boolean deps) {
     return deps ? repo.packageDepends(pkg) : Collections.singletonList(pkg);
   }
@@ -323,6 +295,11 @@ public class Pacman {
   private static void run (String pkgMod, String classname, String[] args) {
     onModule(pkgMod, mod -> {
       try {
+        // if requested, record the arguments with which to launch this target's next run
+        if (AppCDS.enabled()) {
+          try { new AppCDS(repo).update(mod, pkgMod, classname); }
+          catch (Exception e) { Log.log("Unable to update class data archive", "error", e); }
+        }
         ModuleLoader loader = mod.loader(repo.resolver);
         if (Props.debug) {
           debug("Running " + pkgMod + " " + classname + " " + Arrays.asList(args));
@@ -367,6 +344,13 @@ public class Pacman {
     return (args.length > idx) ? args[idx] : defval;
   }
 
+  /** Returns the number of leading options (which precede the command) in {@code args}. */
+  static int options (String[] args) {
+    int count = 0;
+    while (count < args.length && args[count].equals("--offline")) count++;
+    return count;
+  }
+
   private static String[] tail (String[] args, int from) {
     String[] rest = new String[args.length-from];
     System.arraycopy(args, from, rest, 0, rest.length);
@@ -377,14 +361,28 @@ public class Pacman {
 
   private static void fail (String... msgs) {
     for (String msg : msgs) System.err.println(msg);
-    System.exit(255);
+    exit(255);
   }
 
   private static void fail (String msg, Throwable cause) {
     System.err.println(msg);
     cause.printStackTrace(System.err);
-    System.exit(255);
+    exit(255);
+  }
+
+  // a resident pacman must outlive its commands, so rather than exiting, it unwinds the command
+  private static void exit (int code) {
+    if (_resident) throw new Exit(code);
+    System.exit(code);
   }
 
   private static class MissingArgException extends RuntimeException {}
+
+  // an Error, so that it passes through the catch (Exception) blocks that call fail()
+  private static class Exit extends Error {
+    public final int code;
+    public Exit (int code) { this.code = code; }
+  }
+
+  private static boolean _resident, _offline;
 }
@@ -19,6 +19,48 @@ public class Props {
 
   public static final boolean ignoreModuleJar = Boolean.getBoolean("pacman.ignore_module_jar");
 
+  public static final boolean forkJavac = Boolean.getBoolean("pacman.fork_javac");
+
+  public static final boolean incremental = !Boolean.getBoolean("pacman.full_rebuild");
+
+  public static final boolean jarStored = Boolean.getBoolean("pacman.jar_stored");
+
+  public static final boolean jarMtimes = Boolean.getBoolean("pacman.jar_mtimes");
+
+  public static final boolean linkResources = !Boolean.getBoolean("pacman.copy_resources");
+
+  public static final boolean resourcesInJar = Boolean.getBoolean("pacman.resources_in_jar");
+
+  public static final boolean buildCache = !Boolean.getBoolean("pacman.no_build_cache");
+
+  public static final long buildCacheSize = Long.getLong("pacman.build_cache_mb", 1024L)*1024*1024;
+
+  public static final boolean resolveCache = !Boolean.getBoolean("pacman.no_resolve_cache");
+
+  public static final boolean offline = Boolean.getBoolean("pacman.offline");
+
+  public static final boolean localResolve = !Boolean.getBoolean("pacman.no_local_resolve");
+
+  public static final int downloadThreads = Integer.getInteger("pacman.download_threads", 8);
+
+  public static final int downloadPerRepo = Integer.getInteger("pacman.download_per_repo", 4);
+
+  public static final boolean compilerDaemon = !Boolean.getBoolean("pacman.fork_compilers");
+
+  public static final int compilerIdle = Integer.getInteger("pacman.compiler_idle", 600);
+
+  public static final int buildThreads = Integer.getInteger("pacman.build_threads", 0);
+
+  public static final String traceFile = System.getProperty("pacman.trace");
+
+  public static final int fileThreads = Integer.getInteger("pacman.file_threads", 8);
+
+  public static final boolean cds = Boolean.getBoolean("pacman.cds");
+
+  public static final int daemonIdle = Integer.getInteger("pacman.daemon_idle", 3600);
+
+  public static final int watchQuiet = Integer.getInteger("pacman.watch_quiet", 200);
+
   public static final boolean debug = Boolean.getBoolean("debug");
 
   public static final String osName = System.getProperty("os.name").toLowerCase();
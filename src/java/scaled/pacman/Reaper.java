@@ -0,0 +1,164 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Deletes directories in the background. A directory to be deleted is atomically renamed into a
+ * trash directory (in {@code Scratch/Trash} in the Scaled metadata directory), which takes the same
+ * time regardless of how many files it contains. A daemon thread then deletes it at its leisure. If
+ * pacman exits before the reaper is done, the remains are reclaimed the next time it starts.
+ *
+ * <p>Several pacman processes may share the trash directory (a daemon and the client running a
+ * {@code watch}, say), so each reaper trashes into its own subdirectory, which it marks as in use by
+ * holding a lock on a sibling {@code .lock} file. Only subdirectories whose lock can be acquired,
+ * because their owner has exited, are reclaimed.</p>
+ */
+public class Reaper {
+
+  public Reaper (PackageRepo repo) {
+    _repo = repo;
+  }
+
+  /** Queues any trash left behind by exited processes for deletion. */
+  public void reclaim () {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashDir())) {
+      for (Path entry : stream) {
+        if (entry.getFileName().toString().endsWith(LOCK_SUFFIX)) {
+          try { reclaim(entry); }
+          catch (IOException ioe) { Pacman.debug("Failed to reclaim " + entry + ": " + ioe); }
+        }
+        // an owner locks its lock file before creating its directory, so a directory without one
+        // is trash from before we tracked owners
+        else if (Files.isDirectory(entry) && !Files.exists(lockFile(entry))) reap(entry);
+      }
+    } catch (IOException ioe) {
+      Log.log("Failed to reclaim trash", "error", ioe);
+    }
+  }
+
+  /** Removes {@code dir} and its contents. When this returns {@code dir} no longer exists, but its
+    * contents may not yet have been deleted. */
+  public void trash (Path dir) throws IOException {
+    trash(dir, Collections.emptySet());
+  }
+
+  /** Removes the contents of {@code dir} except for the files in {@code keep}. When this returns,
+    * {@code dir} contains only the files in {@code keep} (and the directories that contain them). */
+  public void trash (Path dir, Set<Path> keep) throws IOException {
+    if (!Files.exists(dir)) return; // our job is already done
+    Path trash = Files.createTempDirectory(ownTrashDir(), "reap");
+    Path moved = trash.resolve("contents");
+    try {
+      Files.move(dir, moved, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException amnse) {
+      // dir is on a different file system than the trash, so we have to delete it the slow way
+      Files.delete(trash);
+      if (keep.isEmpty()) Filez.deleteAll(dir);
+      else Filez.deleteAllExcept(dir, keep);
+      return;
+    }
+    // move the files we're keeping back into place; they're on the same file system so this is
+    // also a rename
+    for (Path file : keep) {
+      Path source = moved.resolve(dir.relativize(file));
+      if (!Files.exists(source)) continue;
+      Files.createDirectories(file.getParent());
+      Files.move(source, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+    reap(trash);
+  }
+
+  protected synchronized void reap (Path trash) {
+    _queue.add(trash);
+    if (_thread == null) {
+      _thread = new Thread("Reaper") {
+        @Override public void run () {
+          while (true) {
+            Path next;
+            try { next = _queue.take(); }
+            catch (InterruptedException ie) { return; }
+            // another pacman may be reclaiming the same trash, so we ignore failures; anything
+            // that is left will be reclaimed next time
+            try { Filez.deleteAll(next); }
+            catch (IOException ioe) { Pacman.debug("Failed to reap " + next + ": " + ioe); }
+          }
+        }
+      };
+      _thread.setDaemon(true);
+      _thread.start();
+    }
+  }
+
+  // reclaims the trash directory guarded by lock, if its owner has exited
+  protected void reclaim (Path lock) throws IOException {
+    try (FileChannel chan = FileChannel.open(lock, StandardOpenOption.WRITE)) {
+      FileLock held = chan.tryLock();
+      if (held == null) return; // the owner is still running
+      // claim its trash as our own, then remove the lock (which we release when chan is closed)
+      String name = lock.getFileName().toString();
+      Path dir = lock.resolveSibling(name.substring(0, name.length()-LOCK_SUFFIX.length()));
+      if (Files.exists(dir)) {
+        Path moved = ownTrashDir().resolve(dir.getFileName());
+        Files.move(dir, moved, StandardCopyOption.ATOMIC_MOVE);
+        reap(moved);
+      }
+      Files.deleteIfExists(lock);
+    } catch (OverlappingFileLockException | NoSuchFileException e) {
+      // the owner is another reaper in this process, or another process reclaimed this first
+    }
+  }
+
+  /** Returns the subdirectory of the trash directory which this reaper owns, creating it (and
+    * locking its lock file) if needed. */
+  protected synchronized Path ownTrashDir () throws IOException {
+    if (_ownDir == null) {
+      // lock the lock file before it's visible under its real name, so that no one thinks it's
+      // abandoned, and create the directory only once it's locked
+      Path trashDir = trashDir();
+      Path temp = Files.createTempFile(trashDir, "owner", ".tmp");
+      String name = temp.getFileName().toString();
+      Path dir = trashDir.resolve(name.substring(0, name.length()-".tmp".length()));
+      _lock = FileChannel.open(temp, StandardOpenOption.WRITE);
+      _lock.lock(); // held until we exit
+      Files.move(temp, lockFile(dir), StandardCopyOption.ATOMIC_MOVE);
+      _ownDir = Files.createDirectory(dir);
+    }
+    return _ownDir;
+  }
+
+  protected static Path lockFile (Path dir) {
+    return dir.resolveSibling(dir.getFileName() + LOCK_SUFFIX);
+  }
+
+  protected Path trashDir () throws IOException {
+    Path dir = _repo.metaDir("Scratch").resolve("Trash");
+    Files.createDirectories(dir);
+    return dir;
+  }
+
+  private final PackageRepo _repo;
+  private final BlockingQueue<Path> _queue = new LinkedBlockingQueue<>();
+  private Thread _thread;
+  private Path _ownDir;
+  private FileChannel _lock;
+
+  private static final String LOCK_SUFFIX = ".lock";
+}
@@ -0,0 +1,211 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the results of Maven dependency resolution across runs. Resolving a module's Maven
+ * depends reads POMs and metadata for the entire transitive closure, even when nothing has
+ * changed. So we record the resolved artifacts, lockfile style, keyed on a hash of the depends
+ * being resolved, the repository configuration and the resolver in use (local or dependency
+ * manager), and reuse them as long as every recorded artifact is still in the local repository.
+ *
+ * <p>The cache lives in {@code Caches/resolved} in the Scaled metadata directory. Resolutions
+ * which include snapshot versions or unresolved artifacts are not cached, as re-resolving them may
+ * produce a different result.</p>
+ *
+ * <p>Before building many modules, {@link #plan} resolves all of their depends in one pass, so
+ * that modules which share depends share a resolution.</p>
+ */
+public class ResolveCache {
+
+  public ResolveCache (PackageRepo repo) {
+    _repo = repo;
+  }
+
+  /** Returns the recorded resolution of {@code ids}, or null if there is none, or one of its
+    * artifacts has gone missing. */
+  public Map<RepoId,Path> get (List<RepoId> ids) {
+    if (!Props.resolveCache) return null;
+    String key = key(ids);
+    Map<RepoId,Path> paths = _memory.get(key);
+    boolean remembered = (paths != null);
+    if (!remembered) paths = read(key, ids);
+    if (paths == null) return null;
+    // if an artifact has been removed from ~/.m2 (even while we're running, say by a daemon
+    // client), we need to resolve (and download) it anew
+    for (Path path : paths.values()) if (!Files.exists(path)) {
+      _memory.remove(key);
+      return null;
+    }
+    if (!remembered) {
+      _memory.put(key, paths);
+      _hits.incrementAndGet();
+    }
+    return paths;
+  }
+
+  /** Records {@code paths} as the resolution of {@code ids}. */
+  public void put (List<RepoId> ids, Map<RepoId,Path> paths) {
+    if (!Props.resolveCache || !cacheable(ids, paths)) return;
+    String key = key(ids);
+    _memory.put(key, paths);
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<RepoId,Path> entry : paths.entrySet()) {
+      lines.add(entry.getKey() + "\t" + entry.getValue());
+    }
+    try {
+      Path file = file(key);
+      Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      Log.log("Failed to record resolution", "ids", ids, "error", ioe);
+    }
+  }
+
+  /** Resolves the Maven depends of all of {@code mods} via {@code resolver} (which must record its
+    * results in this cache) before they are needed. Many modules have identical Maven depends, so
+    * each distinct list of depends is resolved once, and lists which are already in the cache are
+    * not resolved at all. Each module's resolution is the same as if it were resolved on its own:
+    * we don't merge the depends of different modules, as that would change how version conflicts
+    * are resolved.
+    * @return the number of resolver round trips saved relative to resolving each module. */
+  public int plan (Collection<Module> mods, Depends.Resolver resolver) {
+    Map<String,List<RepoId>> distinct = new LinkedHashMap<>();
+    Map<String,Integer> users = new HashMap<>();
+    for (Module mod : mods) {
+      List<RepoId> ids = Depends.mavenIds(mod);
+      if (ids.isEmpty()) continue;
+      String key = key(ids);
+      distinct.putIfAbsent(key, ids);
+      users.merge(key, 1, Integer::sum);
+    }
+    int modules = 0, cached = 0, resolved = 0, unshared = 0;
+    Trace.Span span = Trace.begin("maven", "plan", "lists", distinct.size());
+    try {
+      // download everything we'll need at once: the artifacts recorded for lists whose artifacts
+      // have gone missing, and the (transitive) depends of lists we've never resolved
+      List<List<RepoId>> unresolved = new ArrayList<>();
+      Set<RepoId> known = new LinkedHashSet<>();
+      for (Map.Entry<String,List<RepoId>> entry : distinct.entrySet()) {
+        if (get(entry.getValue()) != null) continue;
+        Map<RepoId,Path> recorded = Props.resolveCache ?
+          read(entry.getKey(), entry.getValue()) : null;
+        if (recorded == null) unresolved.add(entry.getValue());
+        else known.addAll(recorded.keySet());
+      }
+      if (!unresolved.isEmpty() || !known.isEmpty()) _repo.mvn.prefetch(unresolved, known);
+
+      for (Map.Entry<String,List<RepoId>> entry : distinct.entrySet()) {
+        int count = users.get(entry.getKey());
+        modules += count;
+        if (get(entry.getValue()) != null) {
+          cached += 1;
+          continue;
+        }
+        resolver.resolve(entry.getValue());
+        resolved += 1;
+        // if the result wasn't cacheable, each module will resolve it again itself
+        if (!Props.resolveCache || !_memory.containsKey(entry.getKey())) unshared += count - 1;
+      }
+    } finally {
+      span.end();
+    }
+    int saved = modules - resolved - unshared;
+    if (modules > 0) Log.log("Maven depends: " + modules + " module(s), " + distinct.size() +
+                             " distinct, " + cached + " cached, " + resolved + " resolved; saved " +
+                             saved + " resolver round trip(s).");
+    return saved;
+  }
+
+  /** Returns the number of resolutions satisfied from disk by this cache. */
+  public int hits () {
+    return _hits.get();
+  }
+
+  // reads the recorded resolution with the specified key, or returns null if there is none
+  protected Map<RepoId,Path> read (String key, List<RepoId> ids) {
+    try {
+      Map<RepoId,Path> paths = new LinkedHashMap<>();
+      for (String line : Files.readAllLines(file(key), StandardCharsets.UTF_8)) {
+        String[] bits = line.split("\t", 2);
+        paths.put(parseId(bits[0]), Paths.get(bits[1]));
+      }
+      return paths;
+    } catch (NoSuchFileException nsfe) {
+      return null;
+    } catch (Exception e) {
+      Log.log("Ignoring invalid resolution cache entry", "key", key, "ids", ids, "error", e);
+      return null;
+    }
+  }
+
+  protected boolean cacheable (List<RepoId> ids, Map<RepoId,Path> paths) {
+    // an empty result probably means resolution failed outright
+    if (paths.isEmpty()) return false;
+    for (RepoId id : ids) if (id.version.endsWith("-SNAPSHOT")) return false;
+    for (Map.Entry<RepoId,Path> entry : paths.entrySet()) {
+      if (entry.getValue() == null || entry.getKey().version.endsWith("-SNAPSHOT")) return false;
+    }
+    return true;
+  }
+
+  protected String key (List<RepoId> ids) {
+    // the order of the ids matters, as it determines the order of the resolved artifacts
+    MessageDigest md = Filez.sha1();
+    md.update(FORMAT.getBytes(StandardCharsets.UTF_8));
+    md.update(RepoId.m2repo.toString().getBytes(StandardCharsets.UTF_8));
+    // the local resolver and the dependency manager may resolve the same ids differently
+    md.update((byte)(_repo.mvn.resolvesLocally() ? LocalResolver.VERSION : 0));
+    for (String repo : MavenResolver.REPOS) {
+      md.update((byte)0);
+      md.update(repo.getBytes(StandardCharsets.UTF_8));
+    }
+    for (RepoId id : ids) {
+      md.update((byte)0);
+      md.update(id.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return Filez.toHex(md.digest());
+  }
+
+  protected Path file (String key) throws IOException {
+    Path dir = _repo.metaDir("Caches").resolve("resolved");
+    Files.createDirectories(dir);
+    return dir.resolve(key);
+  }
+
+  // RepoId.parse ignores classifiers, which we must preserve
+  protected static RepoId parseId (String text) {
+    String[] bits = text.split(":");
+    if (bits.length < 4) throw new IllegalArgumentException("Invalid repo id: " + text);
+    return new RepoId(bits[0], bits[1], bits[2], bits[3], bits.length > 4 ? bits[4] : null);
+  }
+
+  private final PackageRepo _repo;
+  private final Map<String,Map<RepoId,Path>> _memory = new ConcurrentHashMap<>();
+  private final AtomicInteger _hits = new AtomicInteger();
+
+  // changing this invalidates all existing entries
+  private static final String FORMAT = "1";
+}
@@ -0,0 +1,215 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A record of the files in a directory tree (generally a module's {@code src} directory): the
+ * path, size, modification time and (lazily computed) hash of each. We take a snapshot with a
+ * single stat pass at the start of a build, use it to enumerate source files, and save it when the
+ * build completes. Comparing a fresh snapshot to the saved one tells us whether anything has been
+ * added, removed or changed since the last build.
+ */
+public class Snapshot {
+
+  /** Information on a single file. */
+  public static class Entry {
+    public final long size, mtime;
+
+    public Entry (long size, long mtime, String hash) {
+      this.size = size;
+      this.mtime = mtime;
+      _hash = hash;
+    }
+
+    /** Returns true if this entry has the same size and mtime as {@code other}. */
+    public boolean sameStat (Entry other) {
+      return size == other.size && mtime == other.mtime;
+    }
+
+    protected String hash (Path file) throws IOException {
+      if (_hash == null) _hash = Filez.hash(file);
+      return _hash;
+    }
+
+    private String _hash;
+  }
+
+  /** The root of the snapshotted tree. */
+  public final Path root;
+
+  /** Returns the file in which the snapshot of {@code mod}'s sources is saved. */
+  public static Path file (Module mod) {
+    return mod.outputDir().resolve("sources.snapshot");
+  }
+
+  /** Takes a snapshot of the files under {@code root}. This stats but does not read the files. */
+  public static Snapshot scan (Path root) throws IOException {
+    Snapshot snap = new Snapshot(root);
+    snap.scanInto(root);
+    return snap;
+  }
+
+  /** Loads the snapshot of {@code root} saved in {@code file}, returning null if it does not exist
+    * or is unreadable. */
+  public static Snapshot load (Path root, Path file) {
+    try (InputStream in = Files.newInputStream(file)) {
+      DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+      if (din.readInt() != VERSION) return null;
+      Snapshot snap = new Snapshot(root);
+      for (int ii = 0, ll = din.readInt(); ii < ll; ii++) {
+        String path = din.readUTF();
+        snap._entries.put(path, new Entry(din.readLong(), din.readLong(), din.readUTF()));
+      }
+      return snap;
+    } catch (NoSuchFileException nsfe) {
+      return null;
+    } catch (IOException ioe) {
+      Log.log("Unable to read source snapshot", "file", file, "error", ioe);
+      return null;
+    }
+  }
+
+  /** Returns a copy of this snapshot with just {@code paths} (absolute files or directories under
+    * our root) restatted. This is used when something (like a file watcher) tells us exactly what
+    * changed, so that we needn't walk the entire tree. */
+  public Snapshot rescan (Collection<Path> paths) throws IOException {
+    Snapshot snap = new Snapshot(root);
+    snap._entries.putAll(_entries);
+    for (Path path : paths) {
+      String prefix = key(path);
+      // clear out whatever we had at or below this path, then restat it
+      snap._entries.remove(prefix);
+      snap._entries.subMap(prefix + sep(), prefix + sep() + Character.MAX_VALUE).clear();
+      if (Files.exists(path)) snap.scanInto(path);
+    }
+    return snap;
+  }
+
+  /** Returns the entry for {@code file} (an absolute path under our root), or null. */
+  public Entry entry (Path file) {
+    return _entries.get(key(file));
+  }
+
+  /** Returns the number of files in this snapshot. */
+  public int size () {
+    return _entries.size();
+  }
+
+  /** Returns true if this snapshot matches {@code old}: the same files exist, and each has the
+    * same size and either the same mtime or the same contents. */
+  public boolean sameAs (Snapshot old) throws IOException {
+    if (!_entries.keySet().equals(old._entries.keySet())) return false;
+    for (Map.Entry<String,Entry> entry : _entries.entrySet()) {
+      Entry cur = entry.getValue(), prev = old._entries.get(entry.getKey());
+      if (cur.sameStat(prev)) continue;
+      // a changed mtime with an unchanged size may be a touch or a checkout; check the contents
+      if (cur.size != prev.size || prev._hash == null) return false;
+      if (!cur.hash(root.resolve(entry.getKey())).equals(prev._hash)) return false;
+    }
+    return true;
+  }
+
+  /** Returns all files under {@code dir} (which must be in this snapshot's tree) whose names end
+    * with {@code suffix}, in sorted order. */
+  public List<Path> files (Path dir, String suffix) {
+    List<Path> files = new ArrayList<>();
+    String prefix = key(dir);
+    prefix = prefix.isEmpty() ? "" : prefix + sep();
+    for (String path : _entries.subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+      if (path.endsWith(suffix)) files.add(root.resolve(path));
+    }
+    return files;
+  }
+
+  /** Returns the (relative path, hash) pairs for all files in this snapshot, hashing any file that
+    * has not already been hashed. The paths use {@code /} as a separator. */
+  public Map<String,String> hashes () throws IOException {
+    Map<String,String> hashes = new TreeMap<>();
+    for (Map.Entry<String,Entry> entry : _entries.entrySet()) {
+      String path = entry.getKey();
+      hashes.put(path.replace(sep(), "/"), entry.getValue().hash(root.resolve(path)));
+    }
+    return hashes;
+  }
+
+  /** Copies hashes from {@code old} (which may be null) for files whose size and mtime have not
+    * changed, so that we needn't recompute them. */
+  public void inheritHashes (Snapshot old) {
+    if (old != null) for (Map.Entry<String,Entry> entry : _entries.entrySet()) {
+      Entry cur = entry.getValue(), prev = old._entries.get(entry.getKey());
+      if (cur._hash == null && prev != null && prev._hash != null && cur.sameStat(prev)) {
+        cur._hash = prev._hash;
+      }
+    }
+  }
+
+  /** Saves this snapshot to {@code file}, including the hash of every file. Hashes are reused from
+    * {@code old} (which may be null) for files whose size and mtime have not changed. */
+  public void save (Path file, Snapshot old) throws IOException {
+    inheritHashes(old);
+    hashes(); // compute any missing hashes
+    Files.createDirectories(file.getParent());
+    try (OutputStream out = Files.newOutputStream(file)) {
+      DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+      dout.writeInt(VERSION);
+      dout.writeInt(_entries.size());
+      for (Map.Entry<String,Entry> entry : _entries.entrySet()) {
+        Entry ent = entry.getValue();
+        dout.writeUTF(entry.getKey());
+        dout.writeLong(ent.size);
+        dout.writeLong(ent.mtime);
+        dout.writeUTF(ent._hash);
+      }
+      dout.flush();
+    }
+  }
+
+  protected Snapshot (Path root) {
+    this.root = root;
+  }
+
+  protected void scanInto (Path start) throws IOException {
+    if (!Files.exists(start)) return;
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+        // TODO: allow symlinks to source files? that seems wacky...
+        if (attrs.isRegularFile()) _entries.put(key(file), new Entry(
+          attrs.size(), attrs.lastModifiedTime().toMillis(), null));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  protected String key (Path path) {
+    return root.relativize(path).toString();
+  }
+
+  protected String sep () {
+    return root.getFileSystem().getSeparator();
+  }
+
+  private final TreeMap<String,Entry> _entries = new TreeMap<>();
+
+  private static final int VERSION = 1;
+}
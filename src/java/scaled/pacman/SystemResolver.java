@@ -4,13 +4,18 @@
 
 package scaled.pacman;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SystemResolver {
 
+  public SystemResolver (PackageRepo repo) {
+    _repo = repo;
+  }
+
   public Path resolve (SystemId id) {
     if (!id.platform.equals("jdk")) {
       throw new IllegalArgumentException("Unknown platform " + id);
@@ -18,12 +23,26 @@ public class SystemResolver {
     if (!id.artifact.equals("tools")) {
       throw new IllegalArgumentException("Unknown JDK artifact " + id);
     }
-    for (JDK jdk : JDK.jdks()) {
-      if (jdk.version().startsWith(id.version)) {
+    return _resolved.computeIfAbsent(id.version, this::resolveTools);
+  }
+
+  protected Path resolveTools (String version) {
+    for (JDK jdk : jdks()) {
+      if (jdk.version().startsWith(version)) {
         return jdk.home.resolve("lib").resolve("tools.jar");
       }
     }
     // fall back to using the running JDK (if it is a JDK) and hope for the best
     return JDK.thisJDK.home.resolve("lib").resolve("tools.jar");
   }
+
+  protected List<JDK> jdks () {
+    Path cacheFile = null;
+    try { cacheFile = _repo.metaDir("Caches").resolve("jdks"); }
+    catch (IOException ioe) { Log.log("Unable to create JDK cache", "error", ioe); }
+    return JDK.jdks(cacheFile);
+  }
+
+  private final PackageRepo _repo;
+  private final Map<String,Path> _resolved = new ConcurrentHashMap<>();
 }
@@ -0,0 +1,142 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records timed spans for the phases of pacman operations (dependency resolution, compilation, jar
+ * creation, etc.) and writes them out as a Chrome trace-event JSON file, which can be loaded into
+ * {@code chrome://tracing} or Perfetto. Each thread gets its own lane, so concurrent builds can be
+ * seen side by side.
+ *
+ * <p>Tracing is enabled by setting {@code pacman.trace} to the path of the file to be written. The
+ * file is written when the JVM exits. When tracing is disabled, spans are free.</p>
+ */
+public class Trace {
+
+  /** A span of time, which is recorded when it is ended. Spans are ended in a {@code finally}
+    * block, so that a phase which fails still shows up in the trace:
+    * <pre>{@code
+    * Trace.Span span = Trace.begin("jar", "write");
+    * try { ... } finally { span.end(); }
+    * }</pre> */
+  public interface Span {
+    void end ();
+  }
+
+  /** Whether tracing is enabled. */
+  public static final boolean enabled = Props.traceFile != null;
+
+  /** Starts a span named {@code name} in category {@code cat}. {@code args} are key/value pairs
+    * that will be recorded with the span. */
+  public static Span begin (String cat, String name, Object... args) {
+    if (!enabled) return NOOP;
+    long start = now();
+    Thread thread = Thread.currentThread();
+    return () -> _events.add(new Event(cat, name, args, thread, start, now()));
+  }
+
+  /** Writes all spans recorded thus far to {@code file}. */
+  public static void write (Path file) throws IOException {
+    try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      write(_events, out);
+    }
+  }
+
+  /** Writes {@code events} to {@code out} as a trace-event JSON document. */
+  protected static void write (Iterable<Event> events, Writer out) throws IOException {
+    Map<Long,String> threads = new HashMap<>();
+    out.write("{\"traceEvents\":[\n");
+    boolean first = true;
+    for (Event event : events) {
+      if (!first) out.write(",\n");
+      first = false;
+      threads.put(event.tid, event.thread);
+      out.write("{\"ph\":\"X\",\"pid\":1,\"tid\":" + event.tid + ",\"ts\":" + event.start +
+                ",\"dur\":" + (event.end - event.start) + ",\"cat\":" + quote(event.cat) +
+                ",\"name\":" + quote(event.name));
+      if (event.args.length > 1) {
+        out.write(",\"args\":{");
+        for (int ii = 0; ii+1 < event.args.length; ii += 2) {
+          if (ii > 0) out.write(",");
+          out.write(quote(String.valueOf(event.args[ii])) + ":" +
+                    quote(String.valueOf(event.args[ii+1])));
+        }
+        out.write("}");
+      }
+      out.write("}");
+    }
+    // name the lanes after their threads
+    for (Map.Entry<Long,String> entry : threads.entrySet()) {
+      if (!first) out.write(",\n");
+      first = false;
+      out.write("{\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey() +
+                ",\"name\":\"thread_name\",\"args\":{\"name\":" + quote(entry.getValue()) + "}}");
+    }
+    out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+  }
+
+  protected static class Event {
+    public final String cat, name, thread;
+    public final Object[] args;
+    public final long tid, start, end;
+
+    public Event (String cat, String name, Object[] args, Thread thread, long start, long end) {
+      this.cat = cat;
+      this.name = name;
+      this.args = args;
+      this.thread = thread.getName();
+      this.tid = thread.getId();
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  // microseconds since we started tracing, which is what the trace format wants
+  private static long now () {
+    return (System.nanoTime() - _epoch) / 1000;
+  }
+
+  private static String quote (String value) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int ii = 0, ll = value.length(); ii < ll; ii++) {
+      char c = value.charAt(ii);
+      switch (c) {
+      case '"': sb.append("\\\""); break;
+      case '\\': sb.append("\\\\"); break;
+      case '\n': sb.append("\\n"); break;
+      case '\t': sb.append("\\t"); break;
+      default:
+        if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+        else sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static final Span NOOP = () -> {};
+  private static final long _epoch = System.nanoTime();
+  private static final ConcurrentLinkedQueue<Event> _events = new ConcurrentLinkedQueue<>();
+
+  static {
+    if (enabled) Runtime.getRuntime().addShutdownHook(new Thread("Trace writer") {
+      @Override public void run () {
+        try { write(Paths.get(Props.traceFile)); }
+        catch (IOException ioe) {
+          System.err.println("Failed to write trace to " + Props.traceFile + ": " + ioe);
+        }
+      }
+    });
+  }
+}
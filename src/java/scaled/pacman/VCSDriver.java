@@ -14,17 +14,48 @@ import java.nio.file.Path;
  */
 public abstract class VCSDriver {
 
+  /** The version control system we drive. */
+  public final Source.VCS vcs;
+
   /** Returns true if {@code dir} already contains a checkout of {@code url}. */
-  public abstract boolean exists (URI url, Path dir) throws IOException;
+  public boolean exists (URI url, Path dir) throws IOException {
+    Trace.Span span = Trace.begin("vcs", "exists", "vcs", vcs, "path", dir);
+    try {
+      return doExists(url, dir);
+    } finally {
+      span.end();
+    }
+  }
 
   /** Checks out {@code url} into {@code path}. */
-  public abstract void checkout (URI url, Path into) throws IOException;
+  public void checkout (URI url, Path into) throws IOException {
+    Trace.Span span = Trace.begin("vcs", "checkout", "vcs", vcs, "url", url);
+    try {
+      doCheckout(url, into);
+    } finally {
+      span.end();
+    }
+  }
 
   /** Fetches (but does not apply) any available updates for the checkout in {@code path}. */
-  public abstract void fetch (Path path) throws IOException;
+  public void fetch (Path path) throws IOException {
+    Trace.Span span = Trace.begin("vcs", "fetch", "vcs", vcs, "path", path);
+    try {
+      doFetch(path);
+    } finally {
+      span.end();
+    }
+  }
 
   /** Applies any fetched updates to the checkout in {@code path}. */
-  public abstract void update (Path path) throws IOException;
+  public void update (Path path) throws IOException {
+    Trace.Span span = Trace.begin("vcs", "update", "vcs", vcs, "path", path);
+    try {
+      doUpdate(path);
+    } finally {
+      span.end();
+    }
+  }
 
   public static VCSDriver get (Source.VCS vcs) {
     switch (vcs) {
@@ -35,21 +66,35 @@ public abstract class VCSDriver {
     }
   }
 
+  protected VCSDriver (Source.VCS vcs) {
+    this.vcs = vcs;
+  }
+
+  // these do the work of their public counterparts, which record them in the trace
+  protected abstract boolean doExists (URI url, Path dir) throws IOException;
+  protected abstract void doCheckout (URI url, Path into) throws IOException;
+  protected abstract void doFetch (Path path) throws IOException;
+  protected abstract void doUpdate (Path path) throws IOException;
+
   protected static class GitDriver extends VCSDriver {
-    public boolean exists (URI url, Path dir) throws IOException {
+    public GitDriver () {
+      super(Source.VCS.GIT);
+    }
+
+    protected boolean doExists (URI url, Path dir) throws IOException {
       return url.toString().equals(readOrigin(dir));
     }
 
-    public void checkout (URI url, Path into) throws IOException {
+    protected void doCheckout (URI url, Path into) throws IOException {
       Exec.exec(into.getParent(), "git", "clone", "-q", url.toString(),
                 into.getFileName().toString()).expect(0, "git clone failed");
     }
 
-    public void fetch (Path path) throws IOException {
+    protected void doFetch (Path path) throws IOException {
       Exec.exec(path, "git", "fetch").expect(0, "git fetch failed");
     }
 
-    public void update (Path path) throws IOException {
+    protected void doUpdate (Path path) throws IOException {
       // TODO: we probably want some fancy args here, like -ff or something
       Exec.exec(path, "git", "pull").expect(0, "git pull failed");
     }
@@ -68,37 +113,45 @@ public abstract class VCSDriver {
   }
 
   protected static class HgDriver extends VCSDriver {
-    public boolean exists (URI url, Path dir) throws IOException {
+    public HgDriver () {
+      super(Source.VCS.HG);
+    }
+
+    protected boolean doExists (URI url, Path dir) throws IOException {
       return false; // TODO
     }
 
-    public void checkout (URI url, Path into) throws IOException {
+    protected void doCheckout (URI url, Path into) throws IOException {
       throw new IOException("TODO");
     }
 
-    public void fetch (Path path) throws IOException {
+    protected void doFetch (Path path) throws IOException {
       throw new IOException("TODO");
     }
 
-    public void update (Path path) throws IOException {
+    protected void doUpdate (Path path) throws IOException {
       throw new IOException("TODO");
     }
   }
 
   protected static class SubversionDriver extends VCSDriver {
-    public boolean exists (URI url, Path dir) throws IOException {
+    public SubversionDriver () {
+      super(Source.VCS.SVN);
+    }
+
+    protected boolean doExists (URI url, Path dir) throws IOException {
       return false; // TODO
     }
 
-    public void checkout (URI url, Path into) throws IOException {
+    protected void doCheckout (URI url, Path into) throws IOException {
       throw new IOException("TODO");
     }
 
-    public void fetch (Path path) throws IOException {
+    protected void doFetch (Path path) throws IOException {
       throw new IOException("TODO");
     }
 
-    public void update (Path path) throws IOException {
+    protected void doUpdate (Path path) throws IOException {
       throw new IOException("TODO");
     }
   }
@@ -0,0 +1,223 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the source trees of a collection of packages and rebuilds modules as their sources
+ * change. Bursts of changes (a save-all in an editor, a VCS checkout) are coalesced into a single
+ * rebuild, which is applied to just the changed modules and the modules downstream of them. The
+ * watcher runs until the JVM is terminated, which keeps the resolved depends, the build cache's
+ * classpath hashes and the compiler daemons warm between rebuilds.
+ *
+ * <p>Package and module roots are also watched, so that editing {@code package.scaled} or {@code
+ * module.scaled} reloads the packages, and a {@code src} directory that appears after we started
+ * is watched (and built) like the others.</p>
+ */
+public class Watcher implements AutoCloseable {
+
+  public Watcher (PackageRepo repo, Collection<Package> pkgs) throws IOException {
+    _repo = repo;
+    _pkgs = new ArrayList<>(pkgs);
+    _service = FileSystems.getDefault().newWatchService();
+    registerAll();
+  }
+
+  /** Brings all modules up to date, then waits for changes and rebuilds as they arrive. Returns
+    * only if the thread is interrupted or this watcher is closed. */
+  public void run () throws IOException {
+    // we registered our watches before this check, so nothing that changes during it will be missed
+    Map<Module,Collection<Path>> all = new HashMap<>();
+    for (Package pkg : _pkgs) for (Module mod : pkg.modules()) all.put(mod, null);
+    rebuild(all);
+    Log.log("Watching " + all.size() + " module(s) for changes...");
+
+    try {
+      while (true) {
+        Map<Module,Collection<Path>> changed = new LinkedHashMap<>();
+        // block until something happens, then keep collecting until things go quiet for a bit
+        noteChanges(_service.take(), changed);
+        WatchKey key;
+        while ((key = _service.poll(Props.watchQuiet, TimeUnit.MILLISECONDS)) != null) {
+          noteChanges(key, changed);
+        }
+        if (_reload) {
+          _reload = false;
+          // our modules have been replaced, so rescan all of the new ones
+          if (reload()) {
+            changed.clear();
+            for (Package pkg : _pkgs) for (Module mod : pkg.modules()) changed.put(mod, null);
+          }
+        }
+        if (!changed.isEmpty()) rebuild(changed);
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // time to go
+    }
+  }
+
+  @Override public void close () throws IOException {
+    _service.close();
+  }
+
+  protected void rebuild (Map<Module,Collection<Path>> changed) {
+    long start = System.currentTimeMillis();
+    try {
+      Set<Module> rebuilt = new BuildScheduler(_repo).rebuild(_pkgs, changed);
+      if (!rebuilt.isEmpty()) Log.log("Rebuilt " + rebuilt.size() + " module(s) in " +
+                                      (System.currentTimeMillis() - start) + "ms: " + rebuilt);
+    } catch (Exception e) {
+      // the failure has already been reported; keep watching so that the user can fix it
+      Log.log("Rebuild failed: " + e.getMessage());
+    }
+  }
+
+  /** Reloads our packages from the repository, if their metadata has changed, and rewatches them.
+    * @return true if the packages were reloaded. */
+  protected boolean reload () {
+    try {
+      if (!_repo.refresh()) return false;
+    } catch (IOException ioe) {
+      Log.log("Failed to reload packages", "error", ioe);
+      return false;
+    }
+    List<Package> pkgs = new ArrayList<>();
+    for (Package pkg : _pkgs) {
+      Optional<Package> npkg = _repo.packageBySource(pkg.source);
+      if (npkg.isPresent()) pkgs.add(npkg.get());
+      else Log.log("Package no longer exists, no longer watching: " + pkg.root);
+    }
+    _pkgs = pkgs;
+    for (WatchKey key : _keys.keySet()) key.cancel();
+    for (WatchKey key : _roots.keySet()) key.cancel();
+    _keys.clear();
+    _roots.clear();
+    try { registerAll(); }
+    catch (IOException ioe) { Log.log("Failed to rewatch packages", "error", ioe); }
+    return true;
+  }
+
+  protected void noteChanges (WatchKey key, Map<Module,Collection<Path>> changed) {
+    Package pkg = _roots.get(key);
+    if (pkg != null) {
+      noteRootChanges(key, pkg, changed);
+      return;
+    }
+    Watched watched = _keys.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (watched == null) continue;
+      Module mod = watched.mod;
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // we lost track of what changed, so rescan the whole module
+        changed.put(mod, null);
+        continue;
+      }
+      Path path = watched.dir.resolve((Path)event.context());
+      // watches aren't recursive, so we have to watch any directories that show up
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        try { register(mod, path); }
+        catch (IOException ioe) { Log.log("Failed to watch " + path, "error", ioe); }
+      }
+      if (changed.containsKey(mod) && changed.get(mod) == null) continue; // already rescanning
+      Collection<Path> paths = changed.get(mod);
+      if (paths == null) changed.put(mod, paths = new ArrayList<>());
+      paths.add(path);
+    }
+    if (!key.reset()) _keys.remove(key); // the directory went away
+  }
+
+  // notes metadata changes and new source directories in the package or module root dir
+  protected void noteRootChanges (WatchKey key, Package pkg, Map<Module,Collection<Path>> changed) {
+    Path dir = (Path)key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        _reload = true;
+        continue;
+      }
+      String name = event.context().toString();
+      if (name.equals(Package.FILE) || name.equals(Module.FILE)) _reload = true;
+      else if (name.equals("src") && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+        Module mod = null;
+        for (Module pmod : pkg.modules()) if (pmod.root.equals(dir)) mod = pmod;
+        // a package only has a default module if it has a src directory, so it must be reloaded
+        if (mod == null) _reload = true;
+        else {
+          try { register(mod, mod.mainDir()); }
+          catch (IOException ioe) { Log.log("Failed to watch " + mod.mainDir(), "error", ioe); }
+          changed.put(mod, null);
+        }
+      }
+    }
+    if (!key.reset()) _roots.remove(key);
+  }
+
+  protected void registerAll () throws IOException {
+    for (Package pkg : _pkgs) {
+      Set<Path> roots = new HashSet<>();
+      roots.add(pkg.root);
+      for (Module mod : pkg.modules()) {
+        roots.add(mod.root);
+        register(mod, mod.mainDir());
+      }
+      for (Path root : roots) {
+        if (Files.isDirectory(root)) _roots.put(root.register(
+          _service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY), pkg);
+      }
+    }
+  }
+
+  protected void register (Module mod, Path root) throws IOException {
+    if (!Files.isDirectory(root)) return;
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs)
+      throws IOException {
+        WatchKey key = dir.register(_service, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY);
+        _keys.put(key, new Watched(mod, dir));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  protected static class Watched {
+    public final Module mod;
+    public final Path dir;
+    public Watched (Module mod, Path dir) {
+      this.mod = mod;
+      this.dir = dir;
+    }
+  }
+
+  private final PackageRepo _repo;
+  private final WatchService _service;
+  private final Map<WatchKey,Watched> _keys = new HashMap<>();
+  private final Map<WatchKey,Package> _roots = new HashMap<>();
+  private List<Package> _pkgs;
+  private boolean _reload;
+}
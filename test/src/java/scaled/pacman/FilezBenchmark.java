@@ -0,0 +1,96 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the parallel {@link Filez} tree operations with their single-threaded visitor
+ * counterparts. Usage:
+ *
+ * <pre>spam run pacman#test scaled.pacman.FilezBenchmark [dir] [dirs-per-level] [depth] [files]</pre>
+ *
+ * A tree is generated under {@code dir} (which defaults to a temp directory, but should be put on
+ * the file system of interest), then copied, scanned and deleted with each implementation. The
+ * parallelism of the parallel implementations is taken from {@code pacman.file_threads}.
+ */
+public class FilezBenchmark {
+
+  public static void main (String[] args) throws IOException {
+    Path root = (args.length > 0) ? Paths.get(args[0]) : Files.createTempDirectory("filez");
+    int width = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+    int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+    int files = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+    ForkJoinPool pool = new ForkJoinPool(Props.fileThreads);
+
+    Path source = root.resolve("source");
+    int count = populate(source, width, depth, files);
+    System.out.println("Tree: " + count + " files in " + root);
+    System.out.println("Parallelism: " + Props.fileThreads);
+
+    // run a few rounds and report the last, so that the JIT and the OS caches are warm
+    for (int round = 0; round < ROUNDS; round++) {
+      boolean report = (round == ROUNDS-1);
+      Path scopy = root.resolve("serial"), pcopy = root.resolve("parallel");
+
+      long serial = time(() -> Filez.copyAllSerial(source, scopy));
+      long parallel = time(() -> Filez.copyAll(source, pcopy, pool));
+      if (report) print("copyAll", serial, parallel);
+
+      long stamp = System.currentTimeMillis() + 60*1000L; // nothing is newer: a full scan
+      serial = time(() -> check(!Filez.existsNewerSerial(stamp, scopy)));
+      parallel = time(() -> check(!Filez.existsNewer(stamp, pcopy, pool)));
+      if (report) print("existsNewer", serial, parallel);
+
+      serial = time(() -> Filez.deleteAllSerial(scopy));
+      parallel = time(() -> Filez.deleteAll(pcopy, pool));
+      check(!Files.exists(scopy) && !Files.exists(pcopy));
+      if (report) print("deleteAll", serial, parallel);
+    }
+
+    Filez.deleteAll(source, pool);
+    if (args.length == 0) Files.delete(root);
+  }
+
+  protected interface Op {
+    void run () throws IOException;
+  }
+
+  protected static long time (Op op) throws IOException {
+    long start = System.nanoTime();
+    op.run();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  protected static void print (String what, long serial, long parallel) {
+    System.out.println(String.format("%-12s serial: %6dms  parallel: %6dms  (%.1fx)", what, serial,
+                                     parallel, serial / (double)Math.max(parallel, 1)));
+  }
+
+  protected static void check (boolean cond) {
+    if (!cond) throw new AssertionError("Serial and parallel results differ.");
+  }
+
+  protected static int populate (Path dir, int width, int depth, int files) throws IOException {
+    Files.createDirectories(dir);
+    int count = 0;
+    for (int ii = 0; ii < files; ii++) {
+      Files.write(dir.resolve("file" + ii + ".class"),
+                  ("contents of " + dir + " " + ii).getBytes(StandardCharsets.UTF_8));
+      count += 1;
+    }
+    if (depth > 0) for (int ii = 0; ii < width; ii++) {
+      count += populate(dir.resolve("dir" + ii), width, depth-1, files);
+    }
+    return count;
+  }
+
+  private static final int ROUNDS = 3;
+}
@@ -0,0 +1,56 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path, Paths}
+import java.nio.file.attribute.FileTime
+import org.junit.Assert._
+import org.junit._
+
+class AppCDSTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def args (file :Path) :String = Files.readAllLines(file).asScala.mkString("\n")
+
+  @Test def testTargetName () :Unit = {
+    assertEquals("scaled-editor_main-scaled.Main",
+                 AppCDS.targetName("scaled-editor#main", "scaled.Main"))
+    assertEquals("foo-a_b.C", AppCDS.targetName("foo", "a/b.C"))
+  }
+
+  @Test def testUpdate () :Unit = withRepo { repo => withModule("appcds") { mod =>
+    Files.createDirectories(mod.outputDir)
+    write(mod.moduleJar, "not really a jar")
+    val cds = new AppCDS(repo)
+
+    // with no archive, the next run is asked to dump one
+    val file = cds.update(mod, "foo", "foo.Main")
+    assertEquals(cds.dir.resolve("foo-foo.Main.args"), file)
+    val dump = args(file)
+    assertTrue(dump, dump startsWith "-XX:ArchiveClassesAtExit=")
+    val archive = Paths.get(dump.substring(dump.indexOf('=')+1))
+    assertEquals(cds.dir, archive.getParent)
+
+    // once it has been dumped, later runs are asked to use it
+    write(archive, "archive")
+    assertEquals("-XX:SharedArchiveFile=" + archive, args(cds.update(mod, "foo", "foo.Main")))
+
+    // when a jar changes, a new archive is needed, and the old one goes once that exists
+    Files.setLastModifiedTime(mod.moduleJar, FileTime.fromMillis(
+      Files.getLastModifiedTime(mod.moduleJar).toMillis - 10000))
+    val redump = args(cds.update(mod, "foo", "foo.Main"))
+    val rearchive = Paths.get(redump.substring(redump.indexOf('=')+1))
+    assertEquals("-XX:ArchiveClassesAtExit=" + rearchive, redump)
+    assertNotEquals(archive, rearchive)
+    assertTrue(Files.exists(archive))
+    write(rearchive, "archive")
+    // another target whose name has ours as a prefix keeps its archive
+    val other = write(cds.dir.resolve("foo-foo.Main-x-0123.jsa"), "archive")
+    assertEquals("-XX:SharedArchiveFile=" + rearchive, args(cds.update(mod, "foo", "foo.Main")))
+    assertFalse(Files.exists(archive))
+    assertTrue(Files.exists(other))
+  }}
+}
@@ -0,0 +1,89 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import org.junit.Assert._
+import org.junit._
+
+class BuildCacheTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  @Test def testKey () :Unit = withRepo { repo =>
+    val cache = repo.buildCache
+    def key (values :String*) = cache.key().add(values.toList.asJava).finish()
+    assertEquals(key("a", "b"), key("a", "b"))
+    assertNotEquals(key("a", "b"), key("b", "a"))
+    // values are length prefixed, so concatenation doesn't collide
+    assertNotEquals(key("ab", "c"), key("a", "bc"))
+    assertNotEquals(key("a"), key("a", ""))
+  }
+
+  @Test def testClasspath () :Unit = withRepo { repo => withTempDir("buildcache") { root =>
+    val cache = repo.buildCache
+    val one = write(root.resolve("one").resolve("dep.jar"), "jar contents")
+    val two = write(root.resolve("two").resolve("dep.jar"), "jar contents")
+    def key (path :Path) = cache.key().addClasspath(path).finish()
+    // the same jar in different places yields the same key
+    assertEquals(key(one), key(two))
+    write(two, "other contents")
+    assertNotEquals(key(one), key(two))
+
+    // directories are keyed on the names and contents of their files
+    val dir1 = root.resolve("classes1")
+    val dir2 = root.resolve("classes2")
+    write(dir1.resolve("foo").resolve("A.class"), "A")
+    write(dir2.resolve("foo").resolve("A.class"), "A")
+    assertEquals(key(dir1), key(dir2))
+    write(dir2.resolve("foo").resolve("B.class"), "B")
+    assertNotEquals(key(dir1), key(dir2))
+    assertNotEquals(key(dir1), key(root.resolve("missing.jar")))
+  }}
+
+  @Test def testLayoutKey () :Unit = withRepo { repo => withModule("buildcache") { mod =>
+    // the key reflects the jar layout we'd actually produce, not just the global property
+    def key (inJar :Boolean) = new PackageBuilder(repo, mod.pkg) {
+      override def resourcesInJar () = inJar
+    }.cacheKey(mod, Snapshot.scan(mod.mainDir), null)
+    assertEquals(key(true), key(true))
+    assertNotEquals(key(true), key(false))
+  }}
+
+  @Test def testStoreRestore () :Unit = withRepo { repo => withModule("buildcache") { mod =>
+    val cache = repo.buildCache
+    val key = cache.key().add("foo").finish()
+    assertFalse(cache.restore(key, mod, false))
+    assertEquals(1, cache.misses)
+
+    // build some results and store them
+    val classes = mod.classesDir
+    write(classes.resolve("foo").resolve("A.class"), "A")
+    write(classes.resolve("foo").resolve("B.class"), "B")
+    write(mod.resourcesDir.resolve("themes").resolve("dark.css"), "dark")
+    Files.createDirectories(mod.outputDir)
+    new JarWriter(false, true).write(List(classes, mod.resourcesDir).asJava, mod.moduleJar)
+    val jarBytes = Files.readAllBytes(mod.moduleJar)
+    cache.store(key, mod.moduleJar)
+
+    // wipe the results and restore them, less anything stale
+    Filez.deleteAll(mod.outputDir)
+    write(classes.resolve("foo").resolve("Stale.class"), "stale")
+    assertTrue(cache.restore(key, mod, false))
+    assertEquals(1, cache.hits)
+    assertArrayEquals(jarBytes, Files.readAllBytes(mod.moduleJar))
+    assertEquals("A", new String(Files.readAllBytes(classes.resolve("foo").resolve("A.class"))))
+    assertEquals("B", new String(Files.readAllBytes(classes.resolve("foo").resolve("B.class"))))
+    assertFalse(Files.exists(classes.resolve("foo").resolve("Stale.class")))
+    assertFalse(Files.exists(classes.resolve("META-INF").resolve("MANIFEST.MF")))
+    assertTrue(Files.exists(classes.resolve("themes").resolve("dark.css")))
+
+    // if resources go straight into the jar, they're not restored into the classes directory
+    assertTrue(cache.restore(key, mod, true))
+    assertArrayEquals(jarBytes, Files.readAllBytes(mod.moduleJar))
+    assertEquals("A", new String(Files.readAllBytes(classes.resolve("foo").resolve("A.class"))))
+    assertFalse(Files.exists(classes.resolve("themes")))
+  }}
+}
@@ -0,0 +1,46 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import org.junit.Assert._
+import org.junit._
+
+class BuildSchedulerTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  // a package with modules a, b and c, where c depends on b and b on a
+  def withChain (fn :Package => Unit) :Unit = withTempDir("scheduler") { root =>
+    write(root.resolve(Package.FILE),
+          (pkgLines("foo") ++ Seq(" module: a", " module: b", " module: c")).mkString("\n"))
+    write(root.resolve("a").resolve(Module.FILE), "")
+    write(root.resolve("b").resolve(Module.FILE), " depend: git:https://github.com/scaled/foo.git#a")
+    write(root.resolve("c").resolve(Module.FILE), " depend: git:https://github.com/scaled/foo.git#b")
+    fn(new Package(root.resolve(Package.FILE)))
+  }
+
+  def source (mod :Module, name :String) :Path = javaDir(mod.root).resolve(s"$name.java")
+
+  @Test def testTransitiveAbiChange () :Unit = withRepo { repo => withChain { pkg =>
+    val (a, b, c) = (pkg.module("a"), pkg.module("b"), pkg.module("c"))
+    write(source(a, "A"), "public class A { public static final int X = 1; }")
+    write(source(b, "B"), "public class B { public A a () { return null; } }")
+    // C uses A via the classpath it gets through B, and inlines A.X
+    write(source(c, "C"), "public class C { public int x () { return A.X; } }")
+    val pkgs = Collections.singletonList(pkg)
+    val sched = new BuildScheduler(repo)
+    sched.build(pkgs)
+    val cclass = c.classesDir.resolve("C.class")
+    val before = Files.readAllBytes(cclass)
+
+    // A's ABI changes but B's does not; C must still be rebuilt
+    write(source(a, "A"), "public class A { public static final int X = 2; }")
+    val rebuilt = sched.rebuild(pkgs, Collections.singletonMap(a, null))
+    assertEquals(Set(a, b, c), rebuilt.asScala)
+    assertFalse(java.util.Arrays.equals(before, Files.readAllBytes(cclass)))
+  }}
+}
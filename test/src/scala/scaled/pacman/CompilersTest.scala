@@ -0,0 +1,32 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.File
+import java.nio.file.Paths
+import org.junit.Assert._
+import org.junit._
+
+class CompilersTest {
+  import scala.collection.JavaConverters._
+
+  val root = Paths.get("/pkg/foo")
+  def abs (path :String) = root.resolve(path).toString
+
+  @Test def testAbsolutizeScalac () :Unit = {
+    val opts = List("-feature", "-Xplugin:lib/kp.jar,/opt/other.jar", "-classpath",
+                    s"lib/a.jar${File.pathSeparator}/opt/b.jar", "@scalac.args")
+    assertEquals(List("-feature", s"-Xplugin:${abs("lib/kp.jar")},/opt/other.jar", "-classpath",
+                      s"${abs("lib/a.jar")}${File.pathSeparator}/opt/b.jar", s"@${abs("scalac.args")}"),
+                 Compilers.absolutize(root, opts.asJava, Compilers.SCALAC_PATH_OPTS).asScala.toList)
+  }
+
+  @Test def testAbsolutizeJavac () :Unit = {
+    // javac's -Xplugin: names a plugin rather than a path, so it's left alone
+    val opts = List("-Xlint", "-processorpath", "lib/proc.jar", "-Xplugin:ErrorProne x/y", "-s")
+    assertEquals(List("-Xlint", "-processorpath", abs("lib/proc.jar"), "-Xplugin:ErrorProne x/y", "-s"),
+                 Compilers.absolutize(root, opts.asJava, Compilers.JAVAC_PATH_OPTS).asScala.toList)
+  }
+}
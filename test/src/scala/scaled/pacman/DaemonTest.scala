@@ -0,0 +1,83 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.{BufferedInputStream, DataInputStream, DataOutputStream}
+import java.net.{InetAddress, Socket}
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentLinkedQueue
+import org.junit.Assert._
+import org.junit._
+
+class DaemonTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  /** Sends `args` to the daemon listening on `port`, returning its response frames as strings:
+    * `out:text`, `err:text`, `exit:code` or `declined`. */
+  def request (port :Int, token :String, args :String*) :Seq[String] = {
+    val sock = new Socket(InetAddress.getLoopbackAddress, port)
+    try {
+      val out = new DataOutputStream(sock.getOutputStream)
+      CompilerWorker.writeString(out, token)
+      out.writeInt(args.size)
+      args foreach { arg => CompilerWorker.writeString(out, arg) }
+      out.flush()
+
+      val in = new DataInputStream(new BufferedInputStream(sock.getInputStream))
+      val frames = Seq.newBuilder[String]
+      var tpe = in.read()
+      while (tpe >= 0) {
+        frames += (tpe match {
+          case Daemon.EXIT     => s"exit:${in.readInt()}"
+          case Daemon.DECLINED => "declined"
+          case _ =>
+            val data = new Array[Byte](in.readInt())
+            in.readFully(data)
+            (if (tpe == Daemon.STDOUT) "out:" else "err:") + new String(data, "UTF-8")
+        })
+        tpe = in.read()
+      }
+      frames.result()
+    } finally sock.close()
+  }
+
+  @Test def testProtocol () :Unit = withRepo { repo =>
+    val ran = new ConcurrentLinkedQueue[String]()
+    val daemon = new Daemon(repo, (args :Array[String]) => {
+      ran.add(args.mkString(" "))
+      System.out.print("hello")
+      System.err.print("oops")
+      7
+    })
+    val thread = new Thread(() => daemon.serve(1))
+    thread.start()
+    try {
+      val portFile = Daemon.portFile(repo)
+      for (ii <- 0 until 100 if !Files.exists(portFile)) Thread.sleep(100)
+      val Array(port, token) = new String(Files.readAllBytes(portFile), "UTF-8").split(" ")
+
+      // a client that doesn't know the token gets nothing, and runs nothing
+      assertEquals(Seq(), request(port.toInt, "bogus", "list"))
+      assertTrue(ran.isEmpty)
+
+      // a served command relays its output and exit code
+      val frames = request(port.toInt, token, "--offline", "list")
+      assertEquals(Seq("--offline list"), ran.asScala.toSeq)
+      assertEquals(Seq("out:hello"), frames.filter(_ startsWith "out:"))
+      assertTrue(frames.contains("err:oops"))
+      assertEquals("exit:7", frames.last)
+
+      // commands that run arbitrary code, or no command at all, are left to the client
+      assertEquals(Seq("declined"), request(port.toInt, token, "run", "foo#bar", "Main"))
+      assertEquals(Seq("declined"), request(port.toInt, token, "--offline"))
+      assertEquals(1, ran.size)
+    } finally thread.join(5000)
+
+    // once idle, the daemon exits and cleans up after itself
+    assertFalse(thread.isAlive)
+    assertFalse(Files.exists(Daemon.portFile(repo)))
+  }
+}
@@ -0,0 +1,137 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Path, Paths}
+import java.util.{LinkedHashMap, LinkedHashSet, Optional}
+import org.junit.Assert._
+import org.junit._
+
+class DependsTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def source (name :String) = Source.parse(s"git:https://github.com/scaled/$name.git")
+  def repoId (aid :String, vers :String) = new RepoId("com.test", aid, vers, "jar")
+  def jar (id :RepoId) = Paths.get(s"/m2/${id.artifactId}-${id.version}.jar")
+
+  // a diamond: top depends on left and right, both of which depend on base; each module's Maven
+  // depends bring in a different version of "shared", and right repeats one of base's depends
+  val diamond :Seq[(String,Seq[Depend.Id])] = Seq(
+    "base"  -> Seq(repoId("lib-a", "1.0"), repoId("scala-library", "2.13"),
+                   repoId("shared", "1.0")),
+    "left"  -> Seq(source("base"), repoId("lib-b", "1.0"), repoId("shared", "2.0")),
+    "right" -> Seq(source("base"), repoId("lib-a", "1.0"), repoId("lib-c", "1.0"),
+                   new SystemId("jdk", "tools", "8")),
+    "top"   -> Seq(source("left"), source("right"), repoId("lib-d", "1.0"),
+                   repoId("shared", "3.0"), source("missing")))
+
+  // two leaves that were resolved independently, joined by a module that repeats their depends
+  val joined :Seq[(String,Seq[Depend.Id])] = Seq(
+    "one"  -> Seq(repoId("lib-a", "1.0"), repoId("lib-x", "1.0")),
+    "two"  -> Seq(repoId("lib-y", "1.0"), repoId("scala-library", "2.13"),
+                  repoId("lib-a", "1.0")),
+    "join" -> Seq(source("one"), source("two"), repoId("lib-a", "1.0"),
+                  repoId("scala-library", "2.13"), repoId("lib-z", "1.0")))
+
+  def withModules (fn :Map[String,Depends] => Unit) :Unit = withGraph(diamond)(fn)
+
+  def withGraph (graph :Seq[(String,Seq[Depend.Id])])(
+    fn :Map[String,Depends] => Unit) :Unit = withTempDir("depends") { root =>
+    val pkg = new Package(root, pkgLines("foo").asJava)
+    val mods = for ((name, deps) <- graph) yield name -> new Module(
+      pkg, name, root.resolve(name), source(name),
+      deps.map(id => new Depend(id, Depend.Scope.MAIN)).asJava)
+    val bySource = mods.map { case (_, mod) => mod.source -> mod }.toMap
+    val resolve = new Depends.Resolver {
+      def ignoreModuleJar = false
+      def moduleBySource (source :Source) = Optional.ofNullable(bySource.getOrElse(source, null))
+      def resolve (ids :java.util.List[RepoId]) = {
+        val paths = new LinkedHashMap[RepoId,Path]()
+        for (id <- ids.asScala) paths.put(id, jar(id))
+        paths
+      }
+      def resolve (id :SystemId) = Paths.get(s"/sys/${id.artifact}.jar")
+      def isSystem (id :RepoId) = id.artifactId == "scala-library"
+      def systemLoader (path :Path) :ClassLoader = throw new AssertionError(path)
+    }
+    fn(mods.map { case (name, mod) => name -> mod.depends(resolve) }.toMap)
+  }
+
+  // the recursive walks that Depends used before it memoized its closure
+  def oldClasspath (deps :Depends, into :LinkedHashSet[Path],
+                    self :Boolean) :LinkedHashSet[Path] = {
+    val modpath = deps.mod.classpath(deps.ignoreModuleJar)
+    if (!into.contains(modpath)) {
+      if (self) into.add(modpath)
+      into.addAll(deps.binaryDeps.keySet)
+      into.addAll(deps.systemDeps.keySet)
+      for (dep <- deps.moduleDeps.asScala) oldClasspath(dep, into, true)
+    }
+    into
+  }
+  def oldFlatten (deps :Depends, into :LinkedHashSet[Depend.Id],
+                  self :Boolean) :LinkedHashSet[Depend.Id] = {
+    if (!into.contains(deps.mod.source)) {
+      if (self) into.add(deps.mod.source)
+      into.addAll(deps.binaryDeps.values)
+      into.addAll(deps.systemDeps.values)
+      into.addAll(deps.missingDeps)
+      for (dep <- deps.moduleDeps.asScala) oldFlatten(dep, into, true)
+    }
+    into
+  }
+  def oldFindVersion (deps :Depends, stableId :String) :String = {
+    val own = (deps.binaryDeps.values.asScala ++ deps.systemDeps.values.asScala).
+      find(_.stableId == stableId).map(_.version)
+    own.orElse(deps.moduleDeps.asScala.iterator.map(oldFindVersion(_, stableId)).
+      find(_ != null)).orNull
+  }
+
+  @Test def testDiamond () :Unit = withModules { deps =>
+    val top = deps("top")
+    def modpath (name :String) = deps(name).mod.classpath(false)
+    assertEquals(List(modpath("top"), jar(repoId("lib-d", "1.0")), jar(repoId("shared", "3.0")),
+                      modpath("left"), jar(repoId("lib-b", "1.0")), jar(repoId("shared", "2.0")),
+                      modpath("base"), jar(repoId("lib-a", "1.0")), jar(repoId("shared", "1.0")),
+                      jar(repoId("scala-library", "2.13")), modpath("right"),
+                      jar(repoId("lib-c", "1.0")), Paths.get("/sys/tools.jar")),
+                 top.classpath.asScala)
+    // right inherits lib-a from base, rather than repeating it
+    assertEquals(Set(jar(repoId("lib-a", "1.0"))), deps("right").filteredDeps.keySet.asScala)
+    assertEquals("3.0", top.findVersion("com.test:shared"))
+    assertEquals("1.0", deps("right").findVersion("com.test:shared"))
+    assertNull(top.findVersion("com.test:nonesuch"))
+  }
+
+  @Test def testJoinedLeaves () :Unit = withGraph(joined) { deps =>
+    // one and two have no module depends, so each interns into its own table; join shares
+    // one's table and must translate two's closure into it
+    val join = deps("join")
+    assertEquals(Set(jar(repoId("lib-a", "1.0")), jar(repoId("scala-library", "2.13"))),
+                 join.filteredDeps.keySet.asScala)
+    assertEquals(Set(jar(repoId("lib-z", "1.0"))), join.binaryDeps.keySet.asScala)
+    val (binary, system) = (new LinkedHashSet[Path](), new LinkedHashSet[String]())
+    join.accumDeps(binary, system)
+    assertEquals(Set("lib-a", "lib-x", "lib-y", "lib-z").map(aid => jar(repoId(aid, "1.0"))),
+                 binary.asScala)
+    assertEquals(Set("com.test:scala-library"), system.asScala)
+  }
+
+  @Test def testMatchesWalk () :Unit = withModules { deps =>
+    val stableIds = Seq("com.test:shared", "com.test:lib-a", "com.test:scala-library",
+                        "jdk:tools", "com.test:nonesuch")
+    for ((name, dep) <- deps) {
+      assertEquals(name, oldClasspath(dep, new LinkedHashSet, true).asScala.toList,
+                   dep.classpath.asScala.toList)
+      assertEquals(name, oldClasspath(dep, new LinkedHashSet, false).asScala.toList,
+                   dep.dependClasspath.asScala.toList)
+      assertEquals(name, oldFlatten(dep, new LinkedHashSet, false).asScala.toList,
+                   dep.flatten.asScala.toList)
+      for (sid <- stableIds) assertEquals(s"$name $sid", oldFindVersion(dep, sid),
+                                          dep.findVersion(sid))
+    }
+  }
+}
@@ -0,0 +1,121 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import com.sun.net.httpserver.HttpServer
+import java.net.{InetAddress, InetSocketAddress}
+import java.nio.file.{Files, Path}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.Assert._
+import org.junit._
+
+class DownloaderTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  val fooId = new RepoId("com.foo", "foo", "1.0", "jar")
+  val barId = new RepoId("com.foo", "bar", "1.0", "jar")
+  val bazId = new RepoId("com.foo", "baz", "1.0", "jar")
+
+  // a stand-in Maven repository which serves `files`, failing the first request for any path in
+  // `flaky` with a server error
+  def withRepo (files :Map[String,Array[Byte]], flaky :Set[String] = Set())
+               (fn :(String, Path, ConcurrentHashMap[String,AtomicInteger]) => Unit) :Unit = {
+    val requests = new ConcurrentHashMap[String,AtomicInteger]()
+    val server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress, 0), 0)
+    server.createContext("/", exchange => {
+      val path = exchange.getRequestURI.getPath.substring(1)
+      val count = requests.computeIfAbsent(path, _ => new AtomicInteger).incrementAndGet()
+      files.get(path) match {
+        case Some(data) if (count > 1 || !flaky(path)) =>
+          exchange.sendResponseHeaders(200, data.length)
+          exchange.getResponseBody.write(data)
+        case Some(_) => exchange.sendResponseHeaders(503, -1)
+        case None    => exchange.sendResponseHeaders(404, -1)
+      }
+      exchange.close()
+    })
+    server.start()
+    try withTempDir("m2repo") { fn(s"http://127.0.0.1:${server.getAddress.getPort}/", _, requests) }
+    finally server.stop(0)
+  }
+
+  def artifact (id :RepoId, kind :String, data :String, sha1 :String = null) = {
+    val path = Downloader.relPath(new RepoId(id.groupId, id.artifactId, id.version, kind))
+    val bytes = data.getBytes("UTF-8")
+    val sum = if (sha1 != null) sha1 else Filez.toHex(Filez.sha1().digest(bytes))
+    Map(path -> bytes, s"$path.sha1" -> sum.getBytes("UTF-8"))
+  }
+
+  @Test def testFetch () :Unit = {
+    val files = artifact(fooId, "jar", "foo jar") ++ artifact(fooId, "pom", "foo pom") ++
+      artifact(barId, "jar", "bar jar") ++ artifact(barId, "pom", "bar pom")
+    withRepo(files, Set(Downloader.relPath(barId))) { (url, m2repo, requests) =>
+      val dl = new Downloader(m2repo, List(url).asJava, 4, 2)
+      assertTrue(dl.fetch(List(fooId, barId).asJava).isEmpty)
+      assertEquals("foo jar", new String(Files.readAllBytes(dl.localPath(fooId)), "UTF-8"))
+      // the flaky jar was retried
+      assertEquals("bar jar", new String(Files.readAllBytes(dl.localPath(barId)), "UTF-8"))
+      assertEquals(2, requests.get(Downloader.relPath(barId)).get)
+
+      // a second fetch finds everything in the local repository
+      val before = requests.values.asScala.map(_.get).sum
+      assertTrue(dl.fetch(List(fooId, barId).asJava).isEmpty)
+      assertEquals(before, requests.values.asScala.map(_.get).sum)
+    }
+  }
+
+  @Test def testFetchDepends () :Unit = {
+    def id (aid :String, vers :String = "1.0") = new RepoId("com.foo", aid, vers, "jar")
+    def module (aid :String, vers :String, deps :RepoId*) = {
+      val pom = s"<project><modelVersion>4.0.0</modelVersion><groupId>com.foo</groupId>" +
+        s"<artifactId>$aid</artifactId><version>$vers</version><dependencies>" +
+        deps.map(d => s"<dependency><groupId>${d.groupId}</groupId><artifactId>" +
+                 s"${d.artifactId}</artifactId><version>${d.version}</version></dependency>").
+        mkString + "</dependencies></project>"
+      artifact(id(aid, vers), "jar", s"$aid jar") ++ artifact(id(aid, vers), "pom", pom)
+    }
+    // app -> lib -> core 1.0 and app -> tool -> extra -> core 2.0; the nearer core 1.0 wins
+    val files = module("app", "1.0", id("lib"), id("tool")) ++ module("lib", "1.0", id("core")) ++
+      module("tool", "1.0", id("extra")) ++ module("extra", "1.0", id("core", "2.0")) ++
+      module("core", "1.0") ++ module("core", "2.0")
+    withRepo(files) { (url, m2repo, requests) =>
+      val dl = new Downloader(m2repo, List(url).asJava, 4, 2)
+      val local = new LocalResolver(m2repo)
+      assertTrue(dl.fetch(List(List(id("app")).asJava).asJava, List[RepoId]().asJava,
+                          local).isEmpty)
+      // everything needed was fetched ahead of resolution...
+      assertEquals(List(id("app"), id("lib"), id("core"), id("tool"), id("extra")),
+                   local.resolve(List(id("app")).asJava).keySet.asScala.toList)
+      // ...but not the losing core, nor its POM, and nothing was fetched twice
+      val core2 = id("core", "2.0")
+      for (kind <- Seq("jar", "pom")) assertFalse(requests.containsKey(Downloader.relPath(
+        new RepoId(core2.groupId, core2.artifactId, core2.version, kind))))
+      assertTrue(requests.values.asScala.forall(_.get == 1))
+    }
+  }
+
+  @Test def testChecksumMismatch () :Unit = {
+    val files = artifact(bazId, "jar", "baz jar", "0000") ++ artifact(bazId, "pom", "baz pom")
+    withRepo(files) { (url, m2repo, requests) =>
+      val dl = new Downloader(m2repo, List(url).asJava, 4, 2)
+      assertEquals(Set(bazId), dl.fetch(List(bazId).asJava).asScala)
+      assertFalse(Files.exists(dl.localPath(bazId)))
+    }
+  }
+
+  @Test def testFallback () :Unit = {
+    val files = artifact(fooId, "jar", "foo jar") ++ artifact(fooId, "pom", "foo pom")
+    withRepo(Map()) { (emptyUrl, _, _) =>
+      withRepo(files) { (url, m2repo, requests) =>
+        val dl = new Downloader(m2repo, List(emptyUrl, url).asJava, 4, 2)
+        assertTrue(dl.fetch(List(fooId).asJava).isEmpty)
+        assertTrue(Files.exists(dl.localPath(fooId)))
+        assertEquals(Set(barId), dl.fetch(List(barId).asJava).asScala)
+      }
+    }
+  }
+}
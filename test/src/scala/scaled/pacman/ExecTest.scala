@@ -4,6 +4,7 @@
 
 package scaled.pacman
 
+import java.io.InterruptedIOException
 import java.nio.file.Paths
 import org.junit.Assert._
 import org.junit._
@@ -17,4 +18,39 @@ class ExecTest {
     assertEquals(1, out.size)
     assertEquals("peanut", out.get(0))
   }
+
+  @Test def testTaggedOutput () :Unit = {
+    val logged = new java.util.ArrayList[String]()
+    val target = Log.target
+    Log.target = new Log.Target {
+      def log (msg :String) :Unit = logged.synchronized { logged.add(msg) }
+      def log (msg :String, error :Throwable) :Unit = log(msg)
+    }
+    Log.setTag("test")
+    try assertEquals(0, Exec.exec(cwd, "echo", "peanut").waitFor())
+    finally {
+      Log.setTag(null)
+      Log.target = target
+    }
+    assertEquals(java.util.Arrays.asList("[test] peanut"), logged)
+  }
+
+  @Test def testInterrupt () :Unit = {
+    // tagged output is relayed, which must not keep us from noticing an interrupt
+    Log.setTag("test")
+    val main = Thread.currentThread
+    val interrupter = new Thread(() => { Thread.sleep(200) ; main.interrupt() })
+    interrupter.start()
+    val start = System.currentTimeMillis
+    try {
+      Exec.exec(cwd, "sleep", "30").waitFor()
+      fail("waitFor should have been interrupted")
+    } catch {
+      case e :InterruptedIOException => // expected
+    } finally {
+      Log.setTag(null)
+      Thread.interrupted()
+    }
+    assertTrue(System.currentTimeMillis - start < 10*1000)
+  }
 }
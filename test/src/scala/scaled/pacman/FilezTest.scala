@@ -0,0 +1,67 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, LinkOption, Path}
+import java.util.concurrent.ForkJoinPool
+import org.junit.Assert._
+import org.junit._
+
+class FilezTest {
+  import Fixtures._
+
+  def withTree (fn :Path => Unit) :Unit = withTempDir("filez") { root =>
+    for (file <- Seq("one", "a/two", "a/b/three", "c/four")) {
+      write(root.resolve("tree").resolve(file), file)
+    }
+    fn(root)
+  }
+
+  val pool = new ForkJoinPool(4)
+  @After def shutdownPool () :Unit = pool.shutdown()
+
+  def deleters = Seq[Path => Unit](
+    dir => Filez.deleteAll(dir, pool),
+    dir => Filez.deleteAllSerial(dir))
+
+  @Test def testDeleteAll () :Unit = for (delete <- deleters) withTree { root =>
+    delete(root.resolve("tree"))
+    assertFalse(Files.exists(root.resolve("tree")))
+    // deleting something that doesn't exist is fine
+    delete(root.resolve("tree"))
+  }
+
+  @Test def testDeleteFile () :Unit = for (delete <- deleters) withTree { root =>
+    // a regular file is just deleted
+    val file = root.resolve("tree").resolve("one")
+    delete(file)
+    assertFalse(Files.exists(file))
+    assertTrue(Files.exists(root.resolve("tree").resolve("a").resolve("two")))
+  }
+
+  @Test def testDeleteSymlink () :Unit = for (delete <- deleters) withTree { root =>
+    val tree = root.resolve("tree")
+    val link = Files.createSymbolicLink(root.resolve("link"), tree)
+    val nested = Files.createSymbolicLink(root.resolve("nested"), tree.resolve("a"))
+    Files.createSymbolicLink(tree.resolve("c").resolve("back"), tree.resolve("a"))
+
+    // deleting a link deletes just the link, not the contents of its target
+    delete(link)
+    delete(nested)
+    assertFalse(Files.exists(link, LinkOption.NOFOLLOW_LINKS))
+    assertFalse(Files.exists(nested, LinkOption.NOFOLLOW_LINKS))
+    assertTrue(Files.exists(tree.resolve("a").resolve("b").resolve("three")))
+
+    // links within a tree are deleted without following them either
+    delete(tree.resolve("c"))
+    assertFalse(Files.exists(tree.resolve("c")))
+    assertTrue(Files.exists(tree.resolve("a").resolve("two")))
+
+    // a dangling link is deleted as well
+    val dangling = Files.createSymbolicLink(root.resolve("dangling"), root.resolve("nowhere"))
+    delete(dangling)
+    assertFalse(Files.exists(dangling, LinkOption.NOFOLLOW_LINKS))
+  }
+}
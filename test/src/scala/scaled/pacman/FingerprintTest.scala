@@ -0,0 +1,95 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.DataInputStream
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import javax.lang.model.SourceVersion
+import org.junit.Assert._
+import org.junit._
+
+class FingerprintTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  // stands in for the annotation that kotlinc puts on every class it generates
+  val kotlinMetadata = "kotlin/Metadata" -> """
+    package kotlin;
+    import java.lang.annotation.*;
+    @Retention(RetentionPolicy.RUNTIME) public @interface Metadata { int k () default 1; }
+  """
+
+  // compiles srcs (path -> code) and returns the ABI hash of the resulting jar
+  def abi (srcs :(String, String)*) :String = compile(Nil, srcs) { classesDir =>
+    val jar = classesDir.resolveSibling("module.jar")
+    new JarWriter(false, true).write(classesDir, jar)
+    Fingerprint.abiHash(jar)
+  }
+
+  // compiles srcs with opts and returns the ABI of the class cname
+  def classAbi (opts :List[String], cname :String, srcs :(String, String)*) :String =
+    compile(opts, srcs) { classesDir =>
+      val in = new DataInputStream(Files.newInputStream(classesDir.resolve(s"$cname.class")))
+      try Fingerprint.classAbi(in) finally in.close()
+    }
+
+  def compile[T] (opts :List[String], srcs :Seq[(String, String)])(fn :Path => T) :T =
+    withTempDir("fingerprint") { root =>
+      val paths = for ((name, code) <- srcs) yield write(root.resolve(s"java/$name.java"), code)
+      val classesDir = Files.createDirectories(root.resolve("classes"))
+      val javac = new Javac()
+      try assertTrue(javac.compile(("-nowarn" :: opts).asJava, Collections.emptyList(), null,
+                                   classesDir, paths.asJava))
+      finally javac.close()
+      fn(classesDir)
+    }
+
+  @Test def testJava () :Unit = {
+    val orig = abi("A" -> "public class A { public int a () { return 1; } }")
+    // method bodies and private members aren't part of the ABI
+    assertEquals(orig, abi("A" -> "public class A { public int a () { return 2; } }"))
+    assertEquals(orig, abi("A" -> """public class A {
+      public int a () { return b(); }
+      private int b () { return 3; }
+    }"""))
+    // signatures and constants are
+    assertNotEquals(orig, abi("A" -> "public class A { public long a () { return 1; } }"))
+    assertNotEquals(abi("K" -> "public class K { public static final int X = 1; }"),
+                    abi("K" -> "public class K { public static final int X = 2; }"))
+  }
+
+  @Test def testKotlin () :Unit = {
+    // a Kotlin class may have inline functions, whose bodies are compiled into their callers
+    val orig = abi(kotlinMetadata, "A" -> """
+      @kotlin.Metadata public class A { public int a () { return 1; } }""")
+    assertNotEquals(orig, abi(kotlinMetadata, "A" -> """
+      @kotlin.Metadata public class A { public int a () { return 2; } }"""))
+    // rebuilding the same source yields the same ABI
+    assertEquals(orig, abi(kotlinMetadata, "A" -> """
+      @kotlin.Metadata public class A { public int a () { return 1; } }"""))
+  }
+
+  @Test def testNestAndSealed () :Unit = {
+    Assume.assumeTrue(SourceVersion.latest.ordinal >= 17)
+    val opts = List("--release", "17")
+    // the outer class's ABI changes only via its NestMembers attribute
+    assertNotEquals(
+      classAbi(opts, "O", "O" -> "public class O { public static class I {} }"),
+      classAbi(opts, "O", "O" -> "public class O { public static class I {} class J {} }"))
+
+    // the sealed interface's ABI changes only via its PermittedSubclasses attribute
+    val subs = Seq("A" -> "public final class A implements S {}",
+                   "B" -> "public final class B implements S {}")
+    assertNotEquals(
+      classAbi(opts, "S", subs :+ ("S" -> "public sealed interface S permits A, B {}") :_*),
+      classAbi(opts, "S", subs ++ Seq("C" -> "public final class C implements S {}",
+                                       "S" -> "public sealed interface S permits A, B, C {}") :_*))
+
+    // swapping record components changes only the Record attribute
+    assertNotEquals(classAbi(opts, "P", "P" -> "public record P (int x, int y) {}"),
+                    classAbi(opts, "P", "P" -> "public record P (int y, int x) {}"))
+  }
+}
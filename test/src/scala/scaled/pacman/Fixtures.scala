@@ -0,0 +1,58 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.{ByteArrayOutputStream, InputStream}
+import java.nio.file.{Files, Path}
+
+/** Scratch directories and packages shared by the tests. */
+object Fixtures {
+  import scala.collection.JavaConverters._
+
+  /** The `package.scaled` contents of a test package named `name`. */
+  def pkgLines (name :String) :Seq[String] = Seq(
+    s"   name: $name",
+    s" source: git:https://github.com/scaled/$name.git",
+    "version: 1.0",
+    s"descrip: The $name test package.",
+    s" weburl: https://github.com/scaled/$name/",
+    "license: New BSD"
+  )
+
+  /** Calls `fn` with a new temporary directory, which is deleted when `fn` returns. */
+  def withTempDir[T] (prefix :String)(fn :Path => T) :T = {
+    val root = Files.createTempDirectory(prefix)
+    try fn(root) finally Filez.deleteAll(root)
+  }
+
+  /** Calls `fn` with a package repo whose metadata lives in a temporary directory, so that tests
+    * neither see nor disturb the caches and scratch space of the user's real repo. */
+  def withRepo[T] (fn :PackageRepo => T) :T = withTempDir("repo") { dir => fn(new PackageRepo(dir)) }
+
+  /** Calls `fn` with the default module of a package `foo` rooted in a temporary directory. The
+    * module's `src/java` directory exists, but is empty. */
+  def withModule[T] (prefix :String)(fn :Module => T) :T = withTempDir(prefix) { root =>
+    Files.createDirectories(javaDir(root))
+    fn(new Package(root, pkgLines("foo").asJava).module(Module.DEFAULT))
+  }
+
+  /** The Java source directory of the module rooted at `root`. */
+  def javaDir (root :Path) :Path = root.resolve("src").resolve("java")
+
+  /** Writes `data` to `path`, creating its parent directories if needed. */
+  def write (path :Path, data :String) :Path = {
+    Files.createDirectories(path.getParent)
+    Files.write(path, data.getBytes("UTF-8"))
+  }
+
+  /** Reads the remaining contents of `in` and closes it. */
+  def readAll (in :InputStream) :Array[Byte] = try {
+    val out = new ByteArrayOutputStream()
+    val buf = new Array[Byte](8192)
+    var read = in.read(buf)
+    while (read >= 0) { out.write(buf, 0, read); read = in.read(buf) }
+    out.toByteArray
+  } finally in.close()
+}
@@ -0,0 +1,117 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import java.util.jar.JarFile
+import org.junit.Assert._
+import org.junit._
+
+class IncrementalJavaTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def withSources (srcs :(String, String)*)(fn :(Module, Path) => Unit) :Unit =
+    withModule("incjava") { mod =>
+      val srcDir = javaDir(mod.root)
+      for ((name, code) <- srcs) write(srcDir.resolve(s"$name.java"), code)
+      fn(mod, srcDir)
+    }
+
+  def incremental (javac :Javac, mod :Module, javaDir :Path) = {
+    val srcs = Files.list(javaDir).iterator.asScala.toList.sorted
+    new IncrementalJava(javac, mod, mod.pkg.jcopts, Collections.emptyList(), javaDir, srcs.asJava)
+  }
+
+  def compileAll (javac :Javac, mod :Module, javaDir :Path) :Unit = {
+    Files.createDirectories(mod.classesDir)
+    assertTrue(incremental(javac, mod, javaDir).compileAll())
+  }
+
+  @Test def testChangedSource () :Unit = withSources(
+    "A" -> "public class A { public int a () { return 1; } }",
+    "B" -> "public class B { public int b () { return 2; } }",
+    "C" -> "public class C { public int c () { return new A().a(); } }"
+  ) { (mod, javaDir) =>
+    val javac = new Javac()
+    compileAll(javac, mod, javaDir)
+    // nothing changed, nothing to recompile
+    val same = incremental(javac, mod, javaDir)
+    assertTrue(same.plan())
+    assertEquals(0, same.recompileCount)
+
+    // a class referenced by no one is recompiled alone
+    write(javaDir.resolve("B.java"), "public class B { public int b () { return 22; } }")
+    val justB = incremental(javac, mod, javaDir)
+    assertTrue(justB.plan())
+    assertEquals(1, justB.recompileCount)
+    justB.compile()
+
+    // a referenced class takes its referrers with it
+    write(javaDir.resolve("A.java"), "public class A { public long a () { return 1L; } }")
+    val withC = incremental(javac, mod, javaDir)
+    assertTrue(withC.plan())
+    assertEquals(2, withC.recompileCount)
+  }
+
+  @Test def testSubtype () :Unit = withSources(
+    "Base" -> "public class Base { public int base () { return 1; } }",
+    "Sub" -> "public class Sub extends Base {}",
+    "User" -> "public class User { public int use (Sub sub) { return sub.base(); } }",
+    "Other" -> "public class Other {}"
+  ) { (mod, javaDir) =>
+    val javac = new Javac()
+    compileAll(javac, mod, javaDir)
+    write(javaDir.resolve("Base.java"), "public class Base { public long base () { return 1L; } }")
+    val inc = incremental(javac, mod, javaDir)
+    assertTrue(inc.plan())
+    // Base, Sub (which inherits from it) and User (which references Sub), but not Other
+    assertEquals(3, inc.recompileCount)
+  }
+
+  @Test def testConstant () :Unit = withSources(
+    "K" -> "public class K { public static final int X = 1; }",
+    "U" -> "public class U { public int x () { return K.X; } }"
+  ) { (mod, javaDir) =>
+    val javac = new Javac()
+    compileAll(javac, mod, javaDir)
+    write(javaDir.resolve("K.java"), "public class K { public static final int X = 42; }")
+    // the reference from U was inlined, so only a full rebuild is safe
+    assertFalse(incremental(javac, mod, javaDir).plan())
+  }
+
+  @Test def testMissingClasses () :Unit = withSources(
+    "A" -> "public class A {}",
+    "B" -> "public class B {}"
+  ) { (mod, javaDir) =>
+    val javac = new Javac()
+    compileAll(javac, mod, javaDir)
+    Files.delete(mod.classesDir.resolve("B.class"))
+    write(javaDir.resolve("A.java"), "public class A { int a; }")
+    assertFalse(incremental(javac, mod, javaDir).plan())
+  }
+
+  @Test def testCleanRebuild () :Unit = withSources(
+    "A" -> "public class A { public int a () { return 1; } }",
+    "B" -> "public class B { public int b () { return 2; } }"
+  ) { (mod, javaDir) => withRepo { repo =>
+    val builder = new PackageBuilder(repo, mod.pkg)
+    builder.build(mod)
+    builder.clean(mod)
+    assertFalse(Files.exists(IncrementalJava.stateFile(mod)))
+    // the jar is still current, so this just records a snapshot
+    assertFalse(builder.rebuild(mod, null))
+
+    write(javaDir.resolve("A.java"), "public class A { public long a () { return 1L; } }")
+    assertTrue(builder.rebuild(mod, null))
+    val jar = new JarFile(mod.moduleJar.toFile)
+    try {
+      val names = jar.entries.asScala.map(_.getName).toSet
+      assertTrue(names("A.class"))
+      assertTrue(names("B.class"))
+    } finally jar.close()
+  }}
+}
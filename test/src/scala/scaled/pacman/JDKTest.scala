@@ -0,0 +1,41 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import java.util.Arrays
+import org.junit.Assert._
+import org.junit._
+
+class JDKTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def release (home :Path, version :String) :Path =
+    write(home.resolve("release"), s"""JAVA_VERSION="$version"\n""")
+
+  @Test def testProbeCache () :Unit = withTempDir("jdks") { root =>
+    val (one, two) = (root.resolve("one"), root.resolve("two"))
+    for ((home, version) <- Seq(one -> "1.8.0_292", two -> "11.0.2")) {
+      release(home, version)
+      write(home.resolve("bin").resolve("java"), "")
+    }
+    val cache = root.resolve("jdks")
+    def probe () = JDK.probe(Arrays.asList(one, two), cache).asScala.map(_.version).toList
+    assertEquals(List("1.8.0_292", "11.0.2"), probe())
+    assertTrue(Files.exists(cache))
+
+    // rewriting a file in place leaves the stamps alone, so the cached metadata is used
+    release(one, "1.8.0_999")
+    assertEquals(List("1.8.0_292", "11.0.2"), probe())
+
+    // but a JDK whose java binary changed is probed again
+    val java = one.resolve("bin").resolve("java")
+    Files.setLastModifiedTime(java, FileTime.fromMillis(
+      Files.getLastModifiedTime(java).toMillis + 60*1000L))
+    assertEquals(List("1.8.0_999", "11.0.2"), probe())
+  }
+}
@@ -0,0 +1,95 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import java.util.jar.JarFile
+import java.util.zip.ZipEntry
+import java.util.{Arrays, Calendar, GregorianCalendar}
+import org.junit.Assert._
+import org.junit._
+
+class JarWriterTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def populate (dir :Path) :Unit = {
+    val pkg = Files.createDirectories(dir.resolve("foo").resolve("bar"))
+    Files.write(pkg.resolve("Baz.class"), Array[Byte](1, 2, 3, 4))
+    write(pkg.resolve("notes.txt"), "some text\n")
+    Files.write(dir.resolve("icon.png"), Array.fill[Byte](64)(7))
+  }
+
+  def touch (dir :Path, millis :Long) :Unit = Files.walk(dir).iterator.asScala.foreach {
+    path => Files.setLastModifiedTime(path, FileTime.fromMillis(millis))
+  }
+
+  @Test def testReproducible () :Unit = withTempDir("jarwriter") { root =>
+    val classes = root.resolve("classes")
+    populate(classes)
+    val (jar1, jar2) = (root.resolve("one.jar"), root.resolve("two.jar"))
+    val writer = new JarWriter(false, true)
+    touch(classes, 1000000000000L)
+    writer.write(classes, jar1)
+    // a rebuild rewrites the same files with new modification times
+    touch(classes, 1500000000000L)
+    writer.write(classes, jar2)
+    assertTrue(Arrays.equals(Files.readAllBytes(jar1), Files.readAllBytes(jar2)))
+
+    // every entry is stamped with the DOS epoch
+    val epoch = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis
+    val jar = new JarFile(jar1.toFile)
+    try {
+      val entries = jar.entries.asScala.toList
+      assertEquals(List("META-INF/", JarFile.MANIFEST_NAME, "foo/", "foo/bar/",
+                        "foo/bar/Baz.class", "foo/bar/notes.txt", "icon.png"),
+                   entries.map(_.getName))
+      for (entry <- entries) assertEquals(entry.getName, epoch, entry.getTime)
+      // already compressed files are stored
+      assertEquals(ZipEntry.STORED, jar.getEntry("icon.png").getMethod)
+      val notes = jar.getEntry("foo/bar/notes.txt")
+      assertEquals(ZipEntry.DEFLATED, notes.getMethod)
+      assertEquals("some text\n", new String(readAll(jar.getInputStream(notes)), "UTF-8"))
+    } finally jar.close()
+  }
+
+  @Test def testMerge () :Unit = withTempDir("jarwriter") { root =>
+    val (classes, resources) = (root.resolve("classes"), root.resolve("resources"))
+    populate(classes)
+    write(resources.resolve("foo").resolve("bar").resolve("notes.txt"), "other text\n")
+    write(resources.resolve("extra.txt"), "extra\n")
+    val target = root.resolve("merged.jar")
+    new JarWriter(true, false).write(List(classes, resources).asJava, target)
+
+    val jar = new JarFile(target.toFile)
+    try {
+      // the first directory wins
+      val notes = jar.getEntry("foo/bar/notes.txt")
+      assertEquals("some text\n", new String(readAll(jar.getInputStream(notes)), "UTF-8"))
+      assertEquals(ZipEntry.STORED, notes.getMethod)
+      assertNotNull(jar.getEntry("extra.txt"))
+    } finally jar.close()
+  }
+
+  @Test def testZip64 () :Unit = withTempDir("jarwriter") { root =>
+    // more entries than a plain zip can count; the 4GB offset limit is handled the same way, but
+    // is too costly to exercise here
+    val target = root.resolve("many.jar")
+    val out = new JarWriter.ZipOut(Files.newOutputStream(target))
+    val count = 70000
+    try for (ii <- 0 until count) {
+      out.write(new JarWriter.Entry(s"e$ii.txt", s"entry $ii".getBytes("UTF-8")).encode(ii % 2 == 0),
+                0L)
+    } finally out.close()
+
+    val jar = new JarFile(target.toFile)
+    try {
+      assertEquals(count, jar.size)
+      val last = jar.getEntry(s"e${count-1}.txt")
+      assertEquals(s"entry ${count-1}", new String(readAll(jar.getInputStream(last)), "UTF-8"))
+    } finally jar.close()
+  }
+}
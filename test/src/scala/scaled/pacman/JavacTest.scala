@@ -0,0 +1,75 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.InterruptedIOException
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import org.junit.Assert._
+import org.junit._
+
+class JavacTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  val opts = List("-source", "1.8", "-target", "1.8", "-nowarn").asJava
+
+  def withDirs (fn :(Path, Path) => Unit) :Unit = withTempDir("javac") { root =>
+    fn(Files.createDirectories(root.resolve("java")),
+       Files.createDirectories(root.resolve("classes")))
+  }
+
+  @Test def testCompile () :Unit = withDirs { (javaDir, classesDir) =>
+    val a = write(javaDir.resolve("A.java"), "public class A { class Inner {} }")
+    val b = write(javaDir.resolve("B.java"), "public class B { A a; }")
+    val javac = new Javac()
+    val generated = new java.util.HashMap[String,Path]()
+    assertTrue(javac.compile(opts, Collections.emptyList(), List(javaDir).asJava, classesDir,
+                             List(a, b).asJava, (cname, src) => generated.put(cname, src)))
+    assertTrue(Files.exists(classesDir.resolve("A$Inner.class")))
+    assertTrue(Files.exists(classesDir.resolve("B.class")))
+    assertEquals(Map("A" -> a, "A$Inner" -> a, "B" -> b), generated.asScala.toMap)
+
+    // the pooled file manager is reused, and picks up the first compile's output as classpath
+    val c = write(javaDir.resolve("C.java"), "public class C { B b; }")
+    assertTrue(javac.compile(opts, List(classesDir).asJava, null, classesDir, List(c).asJava))
+    assertTrue(Files.exists(classesDir.resolve("C.class")))
+    javac.close()
+  }
+
+  @Test def testFailure () :Unit = withDirs { (javaDir, classesDir) =>
+    val bad = write(javaDir.resolve("Bad.java"), "public class Bad { Missing m; }")
+    val javac = new Javac()
+    assertFalse(javac.compile(opts, Collections.emptyList(), null, classesDir, List(bad).asJava))
+    // a failed compile doesn't poison the next one
+    val good = write(javaDir.resolve("Good.java"), "public class Good {}")
+    assertTrue(javac.compile(opts, Collections.emptyList(), null, classesDir, List(good).asJava))
+    javac.close()
+  }
+
+  @Test def testInterrupt () :Unit = withDirs { (javaDir, classesDir) =>
+    val a = write(javaDir.resolve("A.java"), "public class A { java.util.List<String> list; }")
+    val javac = new Javac()
+    Thread.currentThread.interrupt()
+    try {
+      javac.compile(opts, Collections.emptyList(), null, classesDir, List(a).asJava)
+      fail("compile should have been interrupted")
+    } catch {
+      case e :InterruptedIOException => // expected
+    } finally Thread.interrupted()
+    assertFalse(Files.exists(classesDir.resolve("A.class")))
+    // once the interrupt is cleared, we can compile again
+    assertTrue(javac.compile(opts, Collections.emptyList(), null, classesDir, List(a).asJava))
+    javac.close()
+  }
+
+  @Test def testCanCompile () :Unit = {
+    val javac = new Javac()
+    assertTrue(javac.canCompile(opts))
+    assertFalse(javac.canCompile(List("-J-Xmx1g").asJava))
+    assertFalse(javac.canCompile(List("-Xbogus-option").asJava))
+    javac.close()
+  }
+}
@@ -0,0 +1,148 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import org.junit.Assert._
+import org.junit._
+
+class LocalResolverTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def dep (aid :String, vers :String, extra :String = "") =
+    s"<dependency><groupId>test</groupId><artifactId>$aid</artifactId>" +
+    (if (vers == null) "" else s"<version>$vers</version>") + s"$extra</dependency>"
+
+  def pom (aid :String, body :String) =
+    s"""<project><modelVersion>4.0.0</modelVersion>
+       |<groupId>test</groupId><artifactId>$aid</artifactId><version>1.0</version>
+       |$body</project>""".stripMargin
+
+  def deps (ds :String*) = ds.mkString("<dependencies>", "", "</dependencies>")
+
+  val poms = Map(
+    "parent" -> pom("parent", "<packaging>pom</packaging><properties>" +
+                    "<b.version>1.0</b.version></properties>"),
+    "a" -> pom("a", "<parent><groupId>test</groupId><artifactId>parent</artifactId>" +
+               "<version>1.0</version></parent>" +
+               deps(dep("b", "${b.version}"), dep("c", "${project.version}"))),
+    "c" -> pom("c", deps(dep("b", "2.0"), dep("d", "1.0", "<optional>true</optional>"),
+                         dep("e", "${junit.version}", "<scope>test</scope>"),
+                         dep("f", "1.0", "<exclusions><exclusion><groupId>test</groupId>" +
+                             "<artifactId>g</artifactId></exclusion></exclusions>"))),
+    "f" -> pom("f", "<dependencyManagement>" +
+               deps(dep("bom", "1.0", "<type>pom</type><scope>import</scope>")) +
+               "</dependencyManagement>" + deps(dep("g", "1.0"), dep("h", null))),
+    "bom" -> pom("bom", "<dependencyManagement>" + deps(dep("h", "1.0")) +
+                 "</dependencyManagement>"))
+
+  def withRepo (fn :Path => Unit) :Unit = withTempDir("m2repo") { m2repo =>
+    def install (aid :String, vers :String, pom :String) :Unit = {
+      write(m2repo.resolve(s"test/$aid/$vers/$aid-$vers.pom"), pom)
+      write(m2repo.resolve(s"test/$aid/$vers/$aid-$vers.jar"), "")
+    }
+    for ((aid, pom) <- poms) install(aid, "1.0", pom)
+    for (aid <- Seq("b", "d", "e", "g", "h")) install(aid, "1.0", pom(aid, ""))
+    install("b", "2.0", pom("b", "").replace("1.0", "2.0"))
+    fn(m2repo)
+  }
+
+  def id (aid :String, vers :String = "1.0") = new RepoId("test", aid, vers, "jar")
+
+  @Test def testResolve () :Unit = withRepo { m2repo =>
+    val resolver = new LocalResolver(m2repo)
+    val paths = resolver.resolve(List(id("a")).asJava)
+    // b 1.0 is nearer than b 2.0; d is optional, e is test scoped and g is excluded
+    assertEquals(List(id("a"), id("b"), id("c"), id("f"), id("h")), paths.keySet.asScala.toList)
+    assertEquals(m2repo.resolve("test/h/1.0/h-1.0.jar"), paths.get(id("h")))
+  }
+
+  @Test def testExclusionPaths () :Unit = withRepo { m2repo =>
+    def excl (aid :String) =
+      s"<exclusions><exclusion><groupId>test</groupId><artifactId>$aid</artifactId></exclusion>" +
+      "</exclusions>"
+    def install (aid :String, ds :String*) :Unit = {
+      write(m2repo.resolve(s"test/$aid/1.0/$aid-1.0.pom"), pom(aid, deps(ds :_*)))
+      write(m2repo.resolve(s"test/$aid/1.0/$aid-1.0.jar"), "")
+    }
+    install("x")
+    install("m", dep("x", "1.0"))
+    install("n", dep("m", "1.0"))
+    install("p", dep("m", "1.0"))
+    install("q", dep("m", "1.0"))
+    install("r", dep("n", "1.0"))
+    install("s", dep("x", "1.0"))
+    def resolve (ds :String*) = {
+      install("root", ds :_*)
+      new LocalResolver(m2repo).resolve(List(id("root")).asJava).keySet.asScala.toList
+    }
+    // these match what mvn dependency:tree reports for the same graphs: an exclusion only prunes
+    // its own path, so x is still reached through a farther path that doesn't exclude it...
+    assertEquals(List(id("root"), id("s"), id("q"), id("m"), id("x")),
+                 resolve(dep("s", "1.0", excl("x")), dep("q", "1.0")))
+    // ...but when the excluding path reaches an intermediate (m) first, that m wins along with its
+    // path's exclusions, and the losing m's x goes with it
+    assertEquals(List(id("root"), id("p"), id("m"), id("q")),
+                 resolve(dep("p", "1.0", excl("x")), dep("q", "1.0")))
+    assertEquals(List(id("root"), id("p"), id("m"), id("r"), id("n")),
+                 resolve(dep("p", "1.0", excl("x")), dep("r", "1.0")))
+    assertEquals(List(id("root"), id("q"), id("m"), id("x"), id("p")),
+                 resolve(dep("q", "1.0"), dep("p", "1.0", excl("x"))))
+  }
+
+  @Test def testTransitiveManagement () :Unit = withRepo { m2repo =>
+    def install (aid :String, vers :String, body :String) :Unit = {
+      write(m2repo.resolve(s"test/$aid/$vers/$aid-$vers.pom"),
+            pom(aid, body).replace("<version>1.0</version>\n", s"<version>$vers</version>\n"))
+      write(m2repo.resolve(s"test/$aid/$vers/$aid-$vers.jar"), "")
+    }
+    install("x", "1.0", "")
+    install("x", "2.0", "")
+    install("e", "1.0", deps(dep("x", "1.0")))
+    install("dm", "1.0", "<dependencyManagement>" + deps(dep("x", "2.0")) +
+            "</dependencyManagement>" + deps(dep("e", "1.0")))
+    install("top", "1.0", deps(dep("dm", "1.0")))
+    def resolve (aid :String) =
+      new LocalResolver(m2repo).resolve(List(id(aid)).asJava).keySet.asScala.toList
+    // dm's management reaches past its own depends, and overrides the version e declares...
+    assertEquals(List(id("dm"), id("e"), id("x", "2.0")), resolve("dm"))
+    // ...but only when dm was requested; below that, only the requested POM's management counts
+    assertEquals(List(id("top"), id("dm"), id("e"), id("x")), resolve("top"))
+  }
+
+  @Test def testMiss () :Unit = withRepo { m2repo =>
+    Files.delete(m2repo.resolve("test/h/1.0/h-1.0.jar"))
+    try {
+      new LocalResolver(m2repo).resolve(List(id("a")).asJava)
+      fail("Resolved depends with a missing artifact")
+    } catch {
+      case miss :LocalResolver.Miss => // expected
+    }
+  }
+
+  @Test def testProfiles () :Unit = withRepo { m2repo =>
+    def profile (body :String) = s"<profiles><profile><id>p</id>$body</profile></profiles>"
+    def assertMiss (aid :String, pom :String) :Unit = {
+      write(m2repo.resolve(s"test/$aid/1.0/$aid-1.0.pom"), pom)
+      try {
+        new LocalResolver(m2repo).resolve(List(id("a")).asJava)
+        fail(s"Resolved depends with profile in $aid")
+      } catch {
+        case miss :LocalResolver.Miss => // expected
+      }
+    }
+    val origC = poms("c")
+    // profiles that don't touch depends are fine
+    write(m2repo.resolve("test/c/1.0/c-1.0.pom"), origC.replace(
+      "</project>", profile("<properties><x>1</x></properties>") + "</project>"))
+    assertEquals(5, new LocalResolver(m2repo).resolve(List(id("a")).asJava).size)
+    // but a profile may add depends, in a POM or its parent, or manage them
+    assertMiss("c", origC.replace("</project>", profile(deps(dep("d", "1.0"))) + "</project>"))
+    write(m2repo.resolve("test/c/1.0/c-1.0.pom"), origC)
+    assertMiss("parent", poms("parent").replace("</project>", profile(
+      "<dependencyManagement>" + deps(dep("b", "2.0")) + "</dependencyManagement>") + "</project>"))
+  }
+}
@@ -0,0 +1,165 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.net.URLClassLoader
+import java.nio.file.{Files, Path}
+import java.util.{Collections, Optional}
+import java.util.concurrent.{ConcurrentLinkedQueue, CyclicBarrier}
+import org.junit.Assert._
+import org.junit._
+
+class ModuleLoaderTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  // resolves nothing; our test module has no depends
+  def resolver (ignoreJar :Boolean) = new Depends.Resolver {
+    def ignoreModuleJar = ignoreJar
+    def moduleBySource (source :Source) = Optional.empty[Module]()
+    def resolve (ids :java.util.List[RepoId]) = Collections.emptyMap[RepoId,Path]()
+    def resolve (id :SystemId) :Path = throw new IllegalArgumentException(id.toString)
+    def isSystem (id :RepoId) = false
+    def systemLoader (path :Path) :ClassLoader = throw new AssertionError(path)
+  }
+
+  def loader (mod :Module, ignoreJar :Boolean) = {
+    val resolve = resolver(ignoreJar)
+    new ModuleLoader(resolve, new Depends(mod, resolve))
+  }
+
+  // compiles (fully qualified) class name -> code into mod's classes directory
+  def compile (mod :Module, srcs :(String, String)*) :Unit = {
+    val paths = for ((cname, code) <- srcs) yield
+      write(javaDir(mod.root).resolve(cname.replace('.', '/') + ".java"), code)
+    Files.createDirectories(mod.classesDir)
+    val javac = new Javac()
+    try assertTrue(javac.compile(List("-nowarn").asJava, Collections.emptyList(), null,
+                                 mod.classesDir, paths.asJava))
+    finally javac.close()
+  }
+
+  // compiles code into mod's classes directory and jars it up
+  def jar (mod :Module, srcs :(String, String)*) :Unit = {
+    compile(mod, srcs :_*)
+    Files.createDirectories(mod.outputDir)
+    new JarWriter(false, true).write(mod.classesDir, mod.moduleJar)
+  }
+
+  // calls fn with modules a and b (where a depends on b) and a resolver that knows about both;
+  // a has class mla.A and b has class mlb.B
+  def withPair (fn :(Module, Module, Depends.Resolver) => Unit) :Unit =
+    withTempDir("moduleloader") { root =>
+    def source (name :String) = Source.parse(s"git:https://github.com/scaled/$name.git")
+    val pkg = new Package(root, pkgLines("foo").asJava)
+    def module (name :String, deps :Source*) = new Module(
+      pkg, name, root.resolve(name), source(name),
+      deps.map(id => new Depend(id, Depend.Scope.MAIN)).asJava)
+    val b = module("b")
+    val a = module("a", b.source)
+    jar(b, "mlb.B" -> "package mlb; public class B {}")
+    jar(a, "mla.A" -> "package mla; public class A {}")
+    val resolve = new Depends.Resolver {
+      def ignoreModuleJar = false
+      def moduleBySource (source :Source) = Optional.ofNullable(
+        if (source == b.source) b else null)
+      def resolve (ids :java.util.List[RepoId]) = Collections.emptyMap[RepoId,Path]()
+      def resolve (id :SystemId) :Path = throw new IllegalArgumentException(id.toString)
+      def isSystem (id :RepoId) = false
+      def systemLoader (path :Path) :ClassLoader = throw new AssertionError(path)
+    }
+    fn(a, b, resolve)
+  }
+
+  def assertMissing (loader :ClassLoader, cname :String) :Unit = try {
+    loader.loadClass(cname)
+    fail(s"$cname should not be loadable")
+  } catch {
+    case e :ClassNotFoundException => // expected
+  }
+
+  @Test def testJar () :Unit = withModule("moduleloader") { mod =>
+    jar(mod, "mlfoo.A" -> "package mlfoo; public class A {}")
+    val ml = loader(mod, false)
+    assertTrue(ml.packages.contains("mlfoo"))
+    assertEquals(ml, ml.loadClass("mlfoo.A").getClassLoader)
+    assertNotNull(ml.getResource("mlfoo/A.class"))
+    // classes in packages we don't know about are still sought (and not found) in our classpath
+    assertMissing(ml, "mlbar.B")
+    assertNull(ml.getResource("mlbar/B.class"))
+  }
+
+  @Test def testModuleDepend () :Unit = withPair { (a, b, resolve) =>
+    val bl = b.loader(resolve)
+    // a's loader is private to this test, so that we can watch what it asks of b's loader
+    val al = new ModuleLoader(resolve, a.depends(resolve))
+    assertEquals(Seq(bl), al.delegates.toSeq)
+    var sought = Seq[String]()
+    al.delegates(0) = new URLClassLoader(bl.getURLs, null) {
+      override def loadClass (name :String) = { sought :+= name ; bl.loadClass(name) }
+    }
+    assertEquals(Set("mla", "mlb"), al.packages.asScala.filter(_ startsWith "ml").toSet)
+
+    // a class in one of b's packages comes from b
+    val cb = al.loadClass("mlb.B")
+    assertEquals(bl, cb.getClassLoader)
+    assertEquals(bl.loadClass("mlb.B"), cb)
+    assertEquals(al, al.loadClass("mla.A").getClassLoader)
+    assertEquals(Seq("mlb.B"), sought)
+
+    // a class that's nowhere is sought in b once, and thereafter known to be missing
+    assertMissing(al, "mlb.Missing")
+    assertEquals(Seq("mlb.B", "mlb.Missing"), sought)
+    assertMissing(al, "mlb.Missing")
+    assertEquals(Seq("mlb.B", "mlb.Missing"), sought)
+  }
+
+  @Test def testConcurrentLoads () :Unit = withPair { (a, b, resolve) =>
+    val names = Seq("mla.A", "mlb.B")
+    val loaded = new ConcurrentLinkedQueue[(ModuleLoader, String, Class[_])]()
+    val errors = new ConcurrentLinkedQueue[Throwable]()
+    // neither module has a loader yet, so the threads race to create them as well as to load
+    val gate = new CyclicBarrier(16)
+    val threads = for (ii <- 0 until 16) yield new Thread(() => try {
+      gate.await()
+      val ml = a.loader(resolve)
+      // half the threads load b's class first
+      for (name <- if (ii % 2 == 0) names else names.reverse) {
+        loaded.add((ml, name, ml.loadClass(name)))
+      }
+    } catch {
+      case t :Throwable => errors.add(t)
+    })
+    threads foreach { _.start() }
+    threads foreach { _.join(30000) }
+    assertEquals(Seq(), errors.asScala.toSeq)
+    assertEquals(32, loaded.size)
+
+    // every thread got the same loader, and the same class for each name
+    val loaders = loaded.asScala.map(_._1).toSet
+    assertEquals(Set(a.loader(resolve)), loaders)
+    assertEquals(Seq(b.loader(resolve)), a.loader(resolve).delegates.toSeq)
+    for ((name, classes) <- loaded.asScala.groupBy(_._2)) {
+      assertEquals(name, 1, classes.map(_._3).toSet.size)
+    }
+    assertEquals(b.loader(resolve), a.loader(resolve).loadClass("mlb.B").getClassLoader)
+  }
+
+  @Test def testDirectory () :Unit = withModule("moduleloader") { mod =>
+    compile(mod, "mlfoo.A" -> "package mlfoo; public class A {}")
+    val ml = loader(mod, true)
+    // a classes directory may change while we're in use, so we can't enumerate its packages
+    assertNull(ml.packages)
+    assertEquals(ml, ml.loadClass("mlfoo.A").getClassLoader)
+    assertMissing(ml, "mlbar.B")
+
+    // classes added to existing and new packages after we're first used are found
+    compile(mod, "mlfoo.C" -> "package mlfoo; public class C {}",
+            "mlbar.B" -> "package mlbar; public class B {}")
+    assertEquals(ml, ml.loadClass("mlfoo.C").getClassLoader)
+    assertEquals(ml, ml.loadClass("mlbar.B").getClassLoader)
+    assertNotNull(ml.getResource("mlbar/B.class"))
+  }
+}
@@ -0,0 +1,52 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.Files
+import org.junit.Assert._
+import org.junit._
+
+class PackageOpTest {
+  import Fixtures._
+  import scala.collection.mutable
+
+  // installs packages a, b and c into `repo`, where c depends on b and b on a
+  def installChain (repo :PackageRepo) :Unit = {
+    def install (name :String, depend :Option[String], source :String) :Unit = {
+      val root = repo.packageDir(name)
+      val depends = depend.map(dep => s" depend: git:https://github.com/scaled/$dep.git")
+      write(root.resolve(Package.FILE), (pkgLines(name) ++ depends).mkString("\n"))
+      write(javaDir(root).resolve(s"${name.toUpperCase}.java"), source)
+    }
+    install("a", None, "public class A { public static final int X = 1; }")
+    install("b", Some("a"), "public class B { public A a () { return null; } }")
+    // C uses A via the classpath it gets through B, and inlines A.X
+    install("c", Some("b"), "public class C { public int x () { return A.X; } }")
+    repo.init()
+    new BuildScheduler(repo).build(repo.topoPackages)
+  }
+
+  @Test def testTransitiveAbiChange () :Unit = withRepo { repo =>
+    installChain(repo)
+    val a = repo.packageByName("a").get
+    val cclass = repo.packageByName("c").get.module(Module.DEFAULT).classesDir.resolve("C.class")
+    val before = Files.readAllBytes(cclass)
+
+    // A's ABI changes but B's does not; upgrading A must still rebuild C
+    write(javaDir(a.root).resolve("A.java"), "public class A { public static final int X = 2; }")
+    val rebuilt = mutable.Set[String]()
+    new PackageOp(repo) {
+      // there's no VCS clone to update, so just reparse the package
+      override def update (pkg :Package) :Package = new Package(pkg.root.resolve(Package.FILE))
+      override def rebuild (pkg :Package) :Boolean = {
+        val did = super.rebuild(pkg)
+        if (did) rebuilt += pkg.name
+        did
+      }
+    }.upgrade(a)
+    assertEquals(Set("a", "b", "c"), rebuilt.toSet)
+    assertFalse(java.util.Arrays.equals(before, Files.readAllBytes(cclass)))
+  }
+}
@@ -0,0 +1,87 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import org.junit.Assert._
+import org.junit._
+
+class PackageSnapshotTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  val fooPkg = pkgLines("foo") ++ Seq(
+    " depend: mvn:com.samskivert:mfetcher:1.0.6:jar",
+    "execdep: sys:jdk:tools:1.8"
+  )
+
+  def withPackages (fn :(Path, Path) => Unit) :Unit = withTempDir("snapshot") { root =>
+    val pkgDir = Files.createDirectories(root.resolve("Packages").resolve("foo").resolve("src"))
+    Files.write(pkgDir.resolveSibling(Package.FILE), fooPkg.asJava)
+    fn(root.resolve("Packages"), root.resolve("packages.snapshot"))
+  }
+
+  @Test def testRoundTrip () :Unit = withPackages { (pkgsDir, file) =>
+    val parsed = PackageSnapshot.load(file).packages(pkgsDir)
+    val snap = PackageSnapshot.load(file)
+    assertFalse(snap.isCurrent) // nothing has been saved yet
+
+    val writer = PackageSnapshot.load(file)
+    writer.packages(pkgsDir)
+    writer.save(file)
+    val reader = PackageSnapshot.load(file)
+    assertTrue(reader.isCurrent)
+    val restored = reader.packages(pkgsDir)
+
+    assertEquals(1, restored.size)
+    val (ppkg, rpkg) = (parsed.get(0), restored.get(0))
+    assertEquals(ppkg.source, rpkg.source)
+    assertEquals(ppkg.name, rpkg.name)
+    assertEquals(ppkg.descrip, rpkg.descrip)
+    assertEquals(ppkg.jcopts, rpkg.jcopts)
+    assertEquals(ppkg.depends, rpkg.depends)
+    val rmod = rpkg.module(Module.DEFAULT)
+    assertTrue(rmod.isDefault)
+    assertEquals(ppkg.module(Module.DEFAULT).depends, rmod.depends)
+  }
+
+  @Test def testStale () :Unit = withPackages { (pkgsDir, file) =>
+    val writer = PackageSnapshot.load(file)
+    writer.packages(pkgsDir)
+    writer.save(file)
+
+    val pkgFile = pkgsDir.resolve("foo").resolve(Package.FILE)
+    Files.setLastModifiedTime(pkgFile, FileTime.fromMillis(0L))
+    assertFalse(PackageSnapshot.load(file).isCurrent)
+  }
+
+  @Test def testMissingModule () :Unit = withTempDir("snapshot") { root =>
+    val pkgsDir = root.resolve("Packages")
+    val pkgDir = Files.createDirectories(pkgsDir.resolve("foo"))
+    Files.write(pkgDir.resolve(Package.FILE), (fooPkg :+ " module: bar").asJava)
+    val file = root.resolve("packages.snapshot")
+
+    val writer = PackageSnapshot.load(file)
+    val broken = writer.packages(pkgsDir).get(0)
+    assertNull(broken.module("bar"))
+    assertTrue(broken.errors.asScala.exists(_ contains "Failed to parse module bar"))
+    writer.save(file)
+    assertTrue(PackageSnapshot.load(file).isCurrent)
+
+    // adding the missing module file makes the snapshot stale, and the module appears
+    write(pkgDir.resolve("bar").resolve(Module.FILE), "")
+    val reader = PackageSnapshot.load(file)
+    assertFalse(reader.isCurrent)
+    val fixed = reader.packages(pkgsDir).get(0)
+    assertNotNull(fixed.module("bar"))
+    assertEquals(Seq(), fixed.errors.asScala.toSeq)
+  }
+
+  @Test def testCorrupt () :Unit = withPackages { (pkgsDir, file) =>
+    write(file, "not a snapshot")
+    assertEquals(1, PackageSnapshot.load(file).packages(pkgsDir).size)
+  }
+}
@@ -0,0 +1,52 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import org.junit.Assert._
+import org.junit._
+
+class ReaperTest {
+  import Fixtures._
+
+  def eventually (cond : => Boolean) :Boolean = {
+    val end = System.currentTimeMillis + 5000L
+    while (!cond && System.currentTimeMillis < end) Thread.sleep(10)
+    cond
+  }
+
+  @Test def testTrash () :Unit = withRepo { repo => withTempDir("reaper") { root =>
+    val reaper = new Reaper(repo)
+    val keep = write(root.resolve("classes").resolve("keep.txt"), "keep")
+    write(root.resolve("classes").resolve("foo").resolve("A.class"), "A")
+    reaper.trash(root.resolve("classes"), Collections.singleton(keep))
+    assertTrue(Files.exists(keep))
+    assertFalse(Files.exists(root.resolve("classes").resolve("foo")))
+    reaper.trash(root.resolve("classes"))
+    assertFalse(Files.exists(root.resolve("classes")))
+  }}
+
+  @Test def testReclaim () :Unit = withRepo { repo =>
+    val (owner, other) = (new Reaper(repo), new Reaper(repo))
+    val trashDir = owner.trashDir()
+
+    // trash belonging to a live reaper is left alone
+    val inflight = write(owner.ownTrashDir().resolve("inflight").resolve("file"), "inflight")
+    // trash whose owner has exited, and trash from before we tracked owners, is reclaimed
+    val dead = trashDir.resolve("dead")
+    write(dead.resolve("file"), "dead")
+    write(trashDir.resolve("dead.lock"), "")
+    val legacy = trashDir.resolve("legacy")
+    write(legacy.resolve("file"), "legacy")
+
+    other.reclaim()
+    assertTrue(Files.exists(inflight))
+    assertFalse(Files.exists(dead))
+    assertFalse(Files.exists(trashDir.resolve("dead.lock")))
+    assertTrue(eventually(!Files.exists(legacy)))
+    assertTrue(eventually(!Files.exists(other.ownTrashDir().resolve(dead.getFileName))))
+  }
+}
@@ -0,0 +1,34 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import org.junit.Assert._
+import org.junit._
+
+class ResolveCacheTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  @Test def testGetPut () :Unit = withRepo { repo => withTempDir("resolvecache") { root =>
+    val id = new RepoId("com.test", "dep", "1.0", "jar")
+    val ids = List(id).asJava
+    val jar = write(root.resolve("dep.jar"), "jar")
+    val cache = new ResolveCache(repo)
+    assertNull(cache.get(ids))
+    cache.put(ids, Map(id -> jar).asJava)
+    assertEquals(Map(id -> jar), cache.get(ids).asScala)
+
+    // a fresh cache reads the recorded resolution from disk
+    val fresh = new ResolveCache(repo)
+    assertEquals(Map(id -> jar), fresh.get(ids).asScala)
+    assertEquals(1, fresh.hits)
+
+    // if an artifact goes missing, the resolution is no longer valid, even if remembered
+    Files.delete(jar)
+    assertNull(cache.get(ids))
+    assertNull(fresh.get(ids))
+  }}
+}
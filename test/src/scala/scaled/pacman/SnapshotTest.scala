@@ -0,0 +1,84 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import java.util.Collections
+import org.junit.Assert._
+import org.junit._
+
+class SnapshotTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  def withTree (fn :Path => Unit) :Unit = withTempDir("snapshot") { root =>
+    write(root.resolve("java").resolve("foo").resolve("A.java"), "class A {}")
+    write(root.resolve("java").resolve("foo").resolve("B.java"), "class B {}")
+    write(root.resolve("resources").resolve("a.txt"), "resource")
+    fn(root)
+  }
+
+  @Test def testScan () :Unit = withTree { root =>
+    val snap = Snapshot.scan(root)
+    assertEquals(3, snap.size)
+    val javaDir = root.resolve("java")
+    assertEquals(List(javaDir.resolve("foo").resolve("A.java"),
+                      javaDir.resolve("foo").resolve("B.java")), snap.files(javaDir, ".java").asScala)
+    assertEquals(Set("java/foo/A.java", "java/foo/B.java", "resources/a.txt"),
+                 snap.hashes.keySet.asScala)
+    assertTrue(snap.sameAs(Snapshot.scan(root)))
+  }
+
+  @Test def testSaveLoad () :Unit = withTree { root =>
+    val file = root.resolveSibling(root.getFileName + ".snap")
+    try {
+      assertNull(Snapshot.load(root, file))
+      val snap = Snapshot.scan(root)
+      snap.save(file, null)
+      val loaded = Snapshot.load(root, file)
+      assertEquals(snap.hashes, loaded.hashes)
+      assertTrue(Snapshot.scan(root).sameAs(loaded))
+
+      // a touched file (new mtime, same contents) is the same, a modified one is not
+      val a = root.resolve("java").resolve("foo").resolve("A.java")
+      Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis + 5000))
+      assertTrue(Snapshot.scan(root).sameAs(loaded))
+      write(a, "class Z {}")
+      assertFalse(Snapshot.scan(root).sameAs(loaded))
+    } finally Files.deleteIfExists(file)
+  }
+
+  @Test def testRescan () :Unit = withTree { root =>
+    val snap = Snapshot.scan(root)
+    val fooDir = root.resolve("java").resolve("foo")
+
+    // rescanning nothing in particular changes nothing
+    assertTrue(snap.rescan(Collections.emptyList()).sameAs(snap))
+
+    // a modified file
+    write(fooDir.resolve("A.java"), "class A { int a; }")
+    val modified = snap.rescan(List(fooDir.resolve("A.java")).asJava)
+    assertFalse(modified.sameAs(snap))
+    assertTrue(modified.sameAs(Snapshot.scan(root)))
+
+    // an added file, reported via its directory
+    write(fooDir.resolve("C.java"), "class C {}")
+    val added = modified.rescan(List(fooDir).asJava)
+    assertEquals(4, added.size)
+    assertTrue(added.sameAs(Snapshot.scan(root)))
+
+    // a deleted directory clears out everything below it, but not siblings with the same prefix
+    write(root.resolve("java").resolve("foobar").resolve("D.java"), "class D {}")
+    val withD = added.rescan(List(root.resolve("java").resolve("foobar")).asJava)
+    Filez.deleteAll(fooDir)
+    val deleted = withD.rescan(List(fooDir).asJava)
+    assertEquals(List(root.resolve("java").resolve("foobar").resolve("D.java")),
+                 deleted.files(root.resolve("java"), ".java").asScala)
+    assertTrue(deleted.sameAs(Snapshot.scan(root)))
+    // the original snapshot was not affected
+    assertEquals(3, snap.size)
+  }
+}
@@ -0,0 +1,37 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.StringWriter
+import java.util.Arrays
+import org.junit.Assert._
+import org.junit._
+
+class TraceTest {
+
+  @Test def testWrite () :Unit = {
+    val thread = new Thread("builder \"1\"")
+    val events = Arrays.asList(
+      new Trace.Event("compile", "javac", Array[AnyRef]("module", "foo#core"), thread, 10L, 35L),
+      new Trace.Event("jar", "write", Array[AnyRef](), thread, 40L, 42L))
+    val out = new StringWriter()
+    Trace.write(events, out)
+    val tid = thread.getId
+    assertEquals(
+      "{\"traceEvents\":[\n" +
+      s"""{"ph":"X","pid":1,"tid":$tid,"ts":10,"dur":25,"cat":"compile","name":"javac",""" +
+      """"args":{"module":"foo#core"}},""" + "\n" +
+      s"""{"ph":"X","pid":1,"tid":$tid,"ts":40,"dur":2,"cat":"jar","name":"write"},""" + "\n" +
+      // thread names are quoted like any other string
+      s"""{"ph":"M","pid":1,"tid":$tid,"name":"thread_name","args":{"name":"builder \\"1\\""}}""" +
+      "\n],\"displayTimeUnit\":\"ms\"}\n", out.toString)
+  }
+
+  @Test def testDisabled () :Unit = {
+    // tests don't set pacman.trace, so every span is the same no-op and nothing is recorded
+    Assume.assumeFalse(Trace.enabled)
+    assertSame(Trace.begin("a", "b"), Trace.begin("c", "d", "key", "value"))
+  }
+}
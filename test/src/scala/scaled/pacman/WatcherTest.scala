@@ -0,0 +1,43 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.Path
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+import java.util.{Collection, Collections, Map => JMap}
+import org.junit.Assert._
+import org.junit._
+
+class WatcherTest {
+  import Fixtures._
+  import scala.collection.JavaConverters._
+
+  @Test def testDebounce () :Unit = withRepo { repo => withModule("watcher") { mod =>
+    val rebuilds = new LinkedBlockingQueue[JMap[Module,Collection[Path]]]()
+    val watcher = new Watcher(repo, Collections.singletonList(mod.pkg)) {
+      override def rebuild (changed :JMap[Module,Collection[Path]]) :Unit = rebuilds.put(changed)
+    }
+    val thread = new Thread(() => watcher.run())
+    thread.start()
+    try {
+      // the first pass brings every module up to date
+      val all = rebuilds.poll(10, TimeUnit.SECONDS)
+      assertEquals(Set(mod), all.keySet.asScala)
+      assertNull(all.get(mod))
+
+      // a burst of changes, well inside the quiet period, is coalesced into one rebuild
+      val srcs = Seq("A", "B", "C").map(name => write(javaDir(mod.root).resolve(s"$name.java"),
+                                                     s"public class $name {}"))
+      val burst = rebuilds.poll(10, TimeUnit.SECONDS)
+      assertNotNull(burst)
+      assertEquals(Set(mod), burst.keySet.asScala)
+      assertEquals(srcs.toSet, burst.get(mod).asScala.toSet)
+      assertNull(rebuilds.poll(3*Props.watchQuiet, TimeUnit.MILLISECONDS))
+    } finally {
+      watcher.close()
+      thread.join(5000)
+    }
+  }}
+}